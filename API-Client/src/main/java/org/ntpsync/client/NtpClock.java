@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.ntpsync.service.INtpSyncRemoteService;
+import org.ntpsync.service.IOffsetListener;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Corrected time from NTPSync for apps using its remote API. Create one instance per app, call
+ * start() once and read the time as often as needed:
+ * 
+ * <pre>
+ * NtpClock clock = new NtpClock(context);
+ * clock.start();
+ * ...
+ * long now = clock.currentTimeMillis();
+ * </pre>
+ * 
+ * The clock binds to NtpSyncRemoteService once, is pushed every new offset and reconnects when
+ * NTPSync is restarted or installed later. Besides that it refreshes the offset in the
+ * background once per refresh interval, which NTPSync answers from its cache unless its offset
+ * is older. The latest offset and drift are kept in an immutable Snapshot, thus reading the
+ * time takes no lock and no IPC.
+ */
+public class NtpClock {
+    public static final String TAG = "NTPSync Client";
+
+    public static final long MIN_REFRESH_INTERVAL = 60 * 1000;
+    public static final long MAX_REFRESH_INTERVAL = 60 * 60 * 1000;
+    public static final long DEFAULT_REFRESH_INTERVAL = 15 * 60 * 1000;
+
+    // messages that are returned from service
+    public static final int RETURN_OKAY = 1;
+
+    public static final String OUTPUT_OFFSET = "offset";
+    public static final String OUTPUT_AGE = "age";
+    public static final String OUTPUT_ERROR_BOUND = "error_bound";
+    public static final String OUTPUT_NTP_SERVERS = "ntp_servers";
+    public static final String OUTPUT_SHARED_OFFSET = "shared_offset";
+
+    private static final String NTPSYNC_PACKAGE = "org.ntpsync";
+
+    // frequency tolerance of the local clock as in RFC 5905, the error bound grows by it
+    private static final double PHI = 15e-6;
+
+    // delay before binding again if NTPSync is not installed, doubled up to the max interval
+    private static final long MIN_BIND_DELAY = 1000;
+
+    /**
+     * Corrected time at an anchor on the elapsed realtime clock, all times in milliseconds
+     */
+    public static final class Snapshot {
+        private final long mAnchorElapsed;
+        private final long mAnchorTime;
+        private final long mOffset;
+        private final double mDrift;
+        private final double mErrorBound;
+        private final double mErrorRate;
+
+        Snapshot(long anchorElapsed, long anchorTime, long offset, double drift,
+                double errorBound, double errorRate) {
+            mAnchorElapsed = anchorElapsed;
+            mAnchorTime = anchorTime;
+            mOffset = offset;
+            mDrift = drift;
+            mErrorBound = errorBound;
+            mErrorRate = errorRate;
+        }
+
+        /**
+         * @return corrected time in milliseconds since the epoch
+         */
+        public long currentTimeMillis() {
+            return mAnchorTime + Math.round(getElapsedSinceAnchor() * (1 + mDrift * 1e-6) / 1e6);
+        }
+
+        /**
+         * @return corrected time in nanoseconds since the epoch, as precise as the anchor
+         */
+        public long currentTimeNanos() {
+            return mAnchorTime * 1000000L
+                    + Math.round(getElapsedSinceAnchor() * (1 + mDrift * 1e-6));
+        }
+
+        /**
+         * @return offset of the wall clock when the snapshot was taken
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return drift in ppm, positive if the local clock is slow
+         */
+        public double getDrift() {
+            return mDrift;
+        }
+
+        /**
+         * @return maximum error of the corrected time now
+         */
+        public double getErrorBound() {
+            return mErrorBound + mErrorRate * getElapsedSinceAnchor() / 1e6;
+        }
+
+        private long getElapsedSinceAnchor() {
+            return elapsedRealtimeNanos() - mAnchorElapsed;
+        }
+    }
+
+    private final Context mContext;
+    private final long mRefreshInterval;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // the only field read outside of mThread
+    private volatile Snapshot mSnapshot;
+
+    private INtpSyncRemoteService mService;
+    private SharedOffsetReader mReader;
+    // servers of the refreshed offset, pushed offsets of other servers are ignored
+    private String[] mNtpServers;
+    private boolean mBound;
+    private boolean mStopped;
+    private long mBindDelay = MIN_BIND_DELAY;
+
+    public NtpClock(Context context) {
+        this(context, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param context
+     * @param refreshInterval
+     *            milliseconds, limited to MIN_REFRESH_INTERVAL and MAX_REFRESH_INTERVAL
+     */
+    public NtpClock(Context context, long refreshInterval) {
+        mContext = context.getApplicationContext();
+        mRefreshInterval = Math.max(MIN_REFRESH_INTERVAL,
+                Math.min(refreshInterval, MAX_REFRESH_INTERVAL));
+
+        mThread = new HandlerThread("NtpClock");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Binds to NTPSync, the time is uncorrected until the first offset arrives
+     */
+    public void start() {
+        mHandler.post(mBind);
+    }
+
+    /**
+     * Unbinds from NTPSync and stops the background thread, the clock cannot be started again
+     */
+    public void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStopped = true;
+                mHandler.removeCallbacksAndMessages(null);
+
+                if (mService != null) {
+                    try {
+                        mService.unregisterOffsetListener(mListener);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Could not unregister from NtpSyncRemoteService!", e);
+                    }
+                    mService = null;
+                }
+                if (mBound) {
+                    mContext.unbindService(mConnection);
+                    mBound = false;
+                }
+                mReader = null;
+
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * @return latest snapshot or null if no offset has been received yet
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return corrected time in milliseconds since the epoch, uncorrected if no offset has been
+     *         received yet
+     */
+    public long currentTimeMillis() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return System.currentTimeMillis();
+        }
+        return snapshot.currentTimeMillis();
+    }
+
+    /**
+     * @return corrected time in nanoseconds since the epoch, uncorrected if no offset has been
+     *         received yet
+     */
+    public long currentTimeNanos() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return System.currentTimeMillis() * 1000000L;
+        }
+        return snapshot.currentTimeNanos();
+    }
+
+    /**
+     * @return maximum error of the corrected time in milliseconds, infinite if no offset has
+     *         been received yet
+     */
+    public double getErrorBound() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return snapshot.getErrorBound();
+    }
+
+    private final Runnable mBind = new Runnable() {
+        @Override
+        public void run() {
+            if (mStopped || mBound) {
+                return;
+            }
+
+            Intent intent = new Intent(INtpSyncRemoteService.class.getName());
+            intent.setPackage(NTPSYNC_PACKAGE);
+            mBound = mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+            if (!mBound) {
+                Log.d(TAG, "NTPSync is not available, binding again in " + mBindDelay + " ms");
+                mHandler.postDelayed(this, mBindDelay);
+                mBindDelay = Math.min(mBindDelay * 2, MAX_REFRESH_INTERVAL);
+            }
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * Callbacks are delivered on the main thread, the work is done on mThread. The binding stays
+     * when NTPSync dies, Android connects it again when NTPSync is restarted.
+     */
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder binder) {
+            final INtpSyncRemoteService service = INtpSyncRemoteService.Stub.asInterface(binder);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connect(service);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName className) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "Disconnected from NtpSyncRemoteService, keeping the last offset");
+
+                    // the snapshot stays valid, only its error bound grows
+                    mService = null;
+                    mReader = null;
+                    mHandler.removeCallbacks(mRefresh);
+                }
+            });
+        }
+    };
+
+    private final IOffsetListener.Stub mListener = new IOffsetListener.Stub() {
+        @Override
+        public void onOffset(final Bundle sample) throws RemoteException {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mService != null
+                            && isSameServers(mNtpServers,
+                                    sample.getStringArray(OUTPUT_NTP_SERVERS))) {
+                        update(sample);
+                    }
+                }
+            });
+        }
+    };
+
+    private void connect(INtpSyncRemoteService service) {
+        if (mStopped) {
+            return;
+        }
+        Log.d(TAG, "Connected to NtpSyncRemoteService");
+        mService = service;
+        mBindDelay = MIN_BIND_DELAY;
+
+        try {
+            service.registerOffsetListener(mListener);
+
+            // the drift is only published in shared memory
+            Bundle output = new Bundle();
+            if (service.getSharedOffset(output) == RETURN_OKAY) {
+                ParcelFileDescriptor descriptor = output.getParcelable(OUTPUT_SHARED_OFFSET);
+                if (descriptor != null) {
+                    try {
+                        mReader = new SharedOffsetReader(descriptor);
+                    } finally {
+                        descriptor.close();
+                    }
+                }
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not subscribe to NtpSyncRemoteService!", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map shared offset!", e);
+        }
+
+        refresh();
+    }
+
+    private void refresh() {
+        mHandler.removeCallbacks(mRefresh);
+        if (mService == null) {
+            return;
+        }
+
+        try {
+            // answered from the cache of NTPSync unless its offset is older than the interval
+            Bundle output = new Bundle();
+            if (mService.getCachedOffset(null, mRefreshInterval, output) == RETURN_OKAY) {
+                mNtpServers = output.getStringArray(OUTPUT_NTP_SERVERS);
+                update(output);
+            } else {
+                Log.d(TAG, "NTPSync could not get the offset");
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Could not refresh offset!", e);
+        }
+
+        mHandler.postDelayed(mRefresh, mRefreshInterval);
+    }
+
+    /**
+     * Takes the offset of the service, or the one in shared memory if it is more accurate
+     * 
+     * @param output
+     *            of getOffset or IOffsetListener
+     */
+    private void update(Bundle output) {
+        // the drift changes slowly, the previous one is better than none
+        Snapshot previous = mSnapshot;
+        double drift = (previous != null ? previous.getDrift() : 0);
+
+        long age = output.getLong(OUTPUT_AGE);
+        long offset = output.getLong(OUTPUT_OFFSET) + Math.round(drift * 1e-6 * age);
+        Snapshot snapshot = new Snapshot(elapsedRealtimeNanos(), System.currentTimeMillis()
+                + offset, offset, drift, output.getDouble(OUTPUT_ERROR_BOUND), PHI);
+
+        if (mReader != null) {
+            Snapshot shared = mReader.read();
+            if (shared != null && shared.getErrorBound() <= snapshot.getErrorBound()) {
+                snapshot = shared;
+            }
+        }
+
+        mSnapshot = snapshot;
+    }
+
+    private static boolean isSameServers(String[] a, String[] b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        String[] sortedA = a.clone();
+        String[] sortedB = b.clone();
+        Arrays.sort(sortedA);
+        Arrays.sort(sortedB);
+        return Arrays.equals(sortedA, sortedB);
+    }
+
+    /**
+     * The clock of the anchors, the same for NTPSync and its clients on the same device
+     * 
+     * @return nanoseconds since boot
+     */
+    @SuppressLint("NewApi")
+    static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= 17) {
+            return SystemClock.elapsedRealtimeNanos();
+        } else {
+            return SystemClock.elapsedRealtime() * 1000000L;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.client;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Reads the corrected time NTPSync publishes in shared memory, see getSharedOffset of
+ * INtpSyncRemoteService. The layout and the seqlock are those of SharedOffset in NTPSync.
+ */
+public class SharedOffsetReader {
+    public static final int SIZE = 64;
+
+    private static final int MAGIC = 0x4e545053; // "NTPS"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 4;
+    private static final int SEQUENCE_INDEX = 8;
+    private static final int ANCHOR_ELAPSED_INDEX = 16;
+    private static final int ANCHOR_TIME_INDEX = 24;
+    private static final int OFFSET_INDEX = 32;
+    private static final int DRIFT_INDEX = 40;
+    private static final int ERROR_BOUND_INDEX = 48;
+    private static final int ERROR_RATE_INDEX = 56;
+
+    // reads give up after this number of concurrent writes
+    private static final int MAX_RETRIES = 100;
+
+    // a volatile write followed by a volatile read orders the accesses to the mapping
+    private static volatile int fence;
+
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private int mSequence;
+    private NtpClock.Snapshot mSnapshot;
+
+    /**
+     * @param descriptor
+     *            from getSharedOffset, can be closed afterwards
+     * @throws IOException
+     */
+    public SharedOffsetReader(ParcelFileDescriptor descriptor) throws IOException {
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            mBuffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lock free, returns the previous snapshot without reading the fields if nothing was
+     * published in the meantime. Not thread safe, use one reader per thread.
+     * 
+     * @return snapshot or null if nothing has been published since NTPSync started or the writer
+     *         was busy for too long
+     */
+    public NtpClock.Snapshot read() {
+        for (int i = 0; i < MAX_RETRIES; i++) {
+            int sequence = mBuffer.getInt(SEQUENCE_INDEX);
+            if (mSnapshot != null && mSequence == sequence) {
+                return mSnapshot;
+            }
+            if (sequence == 0 || mBuffer.getInt(MAGIC_INDEX) != MAGIC
+                    || mBuffer.getInt(VERSION_INDEX) != VERSION) {
+                return null;
+            }
+            if ((sequence & 1) != 0) {
+                // write in progress
+                continue;
+            }
+
+            fence();
+            long anchorElapsed = mBuffer.getLong(ANCHOR_ELAPSED_INDEX);
+            NtpClock.Snapshot read = new NtpClock.Snapshot(anchorElapsed,
+                    mBuffer.getLong(ANCHOR_TIME_INDEX), mBuffer.getLong(OFFSET_INDEX),
+                    mBuffer.getDouble(DRIFT_INDEX), mBuffer.getDouble(ERROR_BOUND_INDEX),
+                    mBuffer.getDouble(ERROR_RATE_INDEX));
+            fence();
+
+            if (mBuffer.getInt(SEQUENCE_INDEX) == sequence) {
+                // cleared, or published before a reboot if the anchor is in the future
+                if (anchorElapsed == 0 || anchorElapsed > NtpClock.elapsedRealtimeNanos()) {
+                    return null;
+                }
+                mSequence = sequence;
+                mSnapshot = read;
+                return read;
+            }
+        }
+        return null;
+    }
+}
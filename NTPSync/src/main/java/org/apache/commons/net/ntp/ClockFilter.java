@@ -0,0 +1,130 @@
+package org.apache.commons.net.ntp;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/***
+ * Clock filter as described in RFC 5905 section 10. The last eight samples
+ * of one server are kept in a shift register and the one with the lowest
+ * round-trip delay is selected, because its offset is the least affected
+ * by queueing in the network. The jitter is the root mean square of the
+ * differences between the offset of the selected sample and the offsets
+ * of all other samples.
+ ***/
+public class ClockFilter
+{
+    /*** Number of stages of the shift register (NTP_SHIFT) ***/
+    public static final int NTP_SHIFT = 8;
+
+    private final TimeInfo[] _stages = new TimeInfo[NTP_SHIFT];
+    private int _count;
+    private int _next;
+
+    /***
+     * Shifts a new sample into the filter, the oldest one drops out when
+     * the filter is full. Samples whose delay cannot be computed are ignored.
+     *
+     * @param info the new sample
+     * @return true if the sample was added
+     ***/
+    public boolean add(TimeInfo info)
+    {
+        // compute offset/delay if not already done
+        info.computeDetails();
+        if (info.getOffset() == null || info.getDelay() == null)
+        {
+            return false;
+        }
+
+        _stages[_next] = info;
+        _next = (_next + 1) % NTP_SHIFT;
+        if (_count < NTP_SHIFT)
+        {
+            _count++;
+        }
+        return true;
+    }
+
+    /***
+     * Returns number of samples currently held by the filter.
+     *
+     * @return number of samples
+     ***/
+    public int size()
+    {
+        return _count;
+    }
+
+    /***
+     * Returns the sample with the lowest round-trip delay, its jitter is
+     * set to the jitter of the filter.
+     *
+     * @return best sample or null if the filter is empty
+     ***/
+    public TimeInfo getBest()
+    {
+        TimeInfo best = null;
+        for (int i = 0; i < _count; i++)
+        {
+            if (best == null || getDelayNanos(_stages[i]) < getDelayNanos(best))
+            {
+                best = _stages[i];
+            }
+        }
+        if (best != null)
+        {
+            best.setJitter(getJitter(best));
+        }
+        return best;
+    }
+
+    /***
+     * Root mean square of the offset differences to the given sample.
+     */
+    private double getJitter(TimeInfo best)
+    {
+        if (_count < 2)
+        {
+            return 0;
+        }
+        long bestOffset = getOffsetNanos(best);
+        double sum = 0;
+        for (int i = 0; i < _count; i++)
+        {
+            double diff = (getOffsetNanos(_stages[i]) - bestOffset) / 1e6;
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum / (_count - 1));
+    }
+
+    /***
+     * Samples with high resolution timestamps are compared in nanoseconds,
+     * the others in whole milliseconds.
+     */
+    private static long getDelayNanos(TimeInfo info)
+    {
+        Long nanos = info.getDelayNanos();
+        return (nanos != null) ? nanos.longValue() : info.getDelay().longValue() * 1000000L;
+    }
+
+    private static long getOffsetNanos(TimeInfo info)
+    {
+        Long nanos = info.getOffsetNanos();
+        return (nanos != null) ? nanos.longValue() : info.getOffset().longValue() * 1000000L;
+    }
+
+}
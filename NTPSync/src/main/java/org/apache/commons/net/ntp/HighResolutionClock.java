@@ -0,0 +1,159 @@
+package org.apache.commons.net.ntp;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/***
+ * Wall clock with sub-millisecond resolution. System.currentTimeMillis is
+ * read once at the moment it ticks over to the next millisecond together
+ * with System.nanoTime, afterwards the current time is derived from the
+ * monotonic nanoTime alone, so NTP timestamps keep their full fractional
+ * precision instead of being quantized to one millisecond.
+ * <p>
+ * The anchor is renewed when it is older than {@link #MAX_ANCHOR_AGE} or no
+ * longer matches the wall clock, e.g. because the clock was set or nanoTime
+ * stopped while the device was sleeping. The nanoTime of the actual event is
+ * read before checking the anchor, so renewing it does not delay the
+ * timestamp, but it does delay whatever follows. Call {@link #prepare()}
+ * before taking a timestamp that has to be sent right away.
+ * <p>
+ * This class is thread-safe.
+ ***/
+public final class HighResolutionClock
+{
+    /*** Maximum age of the anchor in nanoseconds ***/
+    public static final long MAX_ANCHOR_AGE = 60L * 1000000000L;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final class Anchor
+    {
+        final long millis;
+        final long nanos;
+        final long ntpTime;
+
+        Anchor(long millis, long nanos)
+        {
+            this.millis = millis;
+            this.nanos = nanos;
+            this.ntpTime = TimeStamp.toNtpTime(millis);
+        }
+    }
+
+    private static volatile Anchor _anchor;
+
+    private HighResolutionClock()
+    {
+    }
+
+    /***
+     * Returns the current time as 64-bit NTP timestamp with sub-millisecond
+     * fraction.
+     *
+     * @return NTP timestamp value
+     ***/
+    public static long currentNtpTime()
+    {
+        // read first, everything below does not delay the timestamp
+        long nanos = System.nanoTime();
+        return toNtpTime(getAnchor(nanos, MAX_ANCHOR_AGE), nanos);
+    }
+
+    /***
+     * Returns the current time in nanoseconds since January 1, 1970,
+     * 00:00:00 GMT.
+     *
+     * @return nanoseconds
+     ***/
+    public static long currentTimeNanos()
+    {
+        long nanos = System.nanoTime();
+        Anchor anchor = getAnchor(nanos, MAX_ANCHOR_AGE);
+        return anchor.millis * NANOS_PER_MILLI + (nanos - anchor.nanos);
+    }
+
+    /***
+     * Renews the anchor ahead of time if it is older than half of
+     * {@link #MAX_ANCHOR_AGE} or no longer matches the wall clock, so that
+     * timestamps taken during the next 30 seconds do not wait for the next
+     * millisecond tick. Call it before the transmit timestamp of a request,
+     * the wait would otherwise be part of the measured delay.
+     ***/
+    public static void prepare()
+    {
+        getAnchor(System.nanoTime(), MAX_ANCHOR_AGE / 2);
+    }
+
+    /***
+     * Drops the anchor, the next timestamp anchors again. Should be called
+     * after the wall clock has been set.
+     ***/
+    public static void reset()
+    {
+        _anchor = null;
+    }
+
+    private static Anchor getAnchor(long nanos, long maxAge)
+    {
+        Anchor anchor = _anchor;
+        if (anchor == null || nanos - anchor.nanos > maxAge || nanos - anchor.nanos < 0)
+        {
+            anchor = anchor();
+        } else
+        {
+            // stepped wall clock or nanoTime not counting during sleep
+            long expected = anchor.millis + (nanos - anchor.nanos) / NANOS_PER_MILLI;
+            long drift = System.currentTimeMillis() - expected;
+            if (drift > 1 || drift < -1)
+            {
+                anchor = anchor();
+            }
+        }
+        return anchor;
+    }
+
+    /***
+     * Waits for the next millisecond tick of the wall clock, so the anchor
+     * is exact to the resolution of nanoTime. Waits at most one millisecond.
+     ***/
+    private static Anchor anchor()
+    {
+        long start = System.currentTimeMillis();
+        long millis;
+        long nanos;
+        do
+        {
+            millis = System.currentTimeMillis();
+            nanos = System.nanoTime();
+        } while (millis == start);
+
+        Anchor anchor = new Anchor(millis, nanos);
+        _anchor = anchor;
+        return anchor;
+    }
+
+    private static long toNtpTime(Anchor anchor, long nanos)
+    {
+        long elapsed = nanos - anchor.nanos;
+        long seconds = elapsed / NANOS_PER_SECOND;
+        long remainder = elapsed % NANOS_PER_SECOND;
+        // remainder < 2^30, shifting it by 32 bits cannot overflow
+        return anchor.ntpTime + (seconds << 32) + (remainder << 32) / NANOS_PER_SECOND;
+    }
+
+}
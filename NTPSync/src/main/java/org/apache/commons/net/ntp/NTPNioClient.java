@@ -0,0 +1,324 @@
+package org.apache.commons.net.ntp;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/***
+ * Non-blocking NTP client built on one {@link DatagramChannel} and a
+ * {@link Selector}. Any number of requests to different servers can be in
+ * flight at the same time, each with its own deadline, while a single thread
+ * drives all of them by calling {@link #poll(long)}. Requests are written
+ * from and replies read into direct buffers and decoded with a
+ * {@link NtpPacketCodec}, replies are matched to their request by originate
+ * timestamp.
+ * <p>
+ * Instances are not thread-safe, all methods must be called from the thread
+ * driving the client.
+ ***/
+public final class NTPNioClient implements Closeable
+{
+    /***
+     * Receives the outcome of a request. Exactly one of the methods is
+     * called per request, from within {@link NTPNioClient#poll(long)} or
+     * {@link NTPNioClient#send(InetSocketAddress, int, Callback)}.
+     ***/
+    public interface Callback
+    {
+        /***
+         * Called with a valid reply. The codec is only valid during this
+         * call, it is reused for the next reply.
+         *
+         * @param server the server that replied
+         * @param reply codec holding the reply with destination time set
+         ***/
+        void onReply(InetSocketAddress server, NtpPacketCodec reply);
+
+        /***
+         * Called if no valid reply arrived before the deadline or the
+         * request could not be sent.
+         *
+         * @param server the server the request was sent to
+         * @param e SocketTimeoutException on timeout
+         ***/
+        void onFailure(InetSocketAddress server, IOException e);
+    }
+
+    private static final class Request implements Comparable<Request>
+    {
+        final InetSocketAddress server;
+        final long originateTime;
+        final long deadline;
+        final Callback callback;
+        boolean done;
+
+        Request(InetSocketAddress server, long originateTime, long deadline, Callback callback)
+        {
+            this.server = server;
+            this.originateTime = originateTime;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+//        @Override
+        public int compareTo(Request another)
+        {
+            return (deadline < another.deadline) ? -1 : ((deadline == another.deadline) ? 0 : 1);
+        }
+    }
+
+    private final DatagramChannel _channel;
+    private final Selector _selector;
+    private final NtpPacketCodec _sendCodec;
+    private final NtpPacketCodec _receiveCodec;
+
+    private final HashMap<Long, Request> _pending = new HashMap<Long, Request>();
+    private final PriorityQueue<Request> _deadlines = new PriorityQueue<Request>();
+
+    private int _version = NtpV3Packet.VERSION_3;
+    private boolean _highResolution;
+    private long _lastOriginateTime;
+
+    /***
+     * Opens a non-blocking datagram channel on the next available port.
+     *
+     * @exception IOException If the channel or selector could not be opened.
+     ***/
+    public NTPNioClient() throws IOException
+    {
+        _channel = DatagramChannel.open();
+        try
+        {
+            _channel.configureBlocking(false);
+            _channel.socket().bind(null);
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+        } catch (IOException e)
+        {
+            _channel.close();
+            throw e;
+        }
+
+        _sendCodec = new NtpPacketCodec(ByteBuffer.allocateDirect(NtpPacketCodec.PACKET_SIZE));
+        _receiveCodec = new NtpPacketCodec(ByteBuffer.allocateDirect(NtpPacketCodec.PACKET_SIZE));
+    }
+
+    /***
+     * Sends a request to the given server. If the request cannot be sent the
+     * callback is notified immediately.
+     *
+     * @param server address and port of the server
+     * @param timeout milliseconds to wait for the reply
+     * @param callback notified about the outcome
+     * @exception IOException If the channel is closed.
+     ***/
+    public void send(InetSocketAddress server, int timeout, Callback callback) throws IOException
+    {
+        // renewing the anchor must not happen between timestamping and sending
+        if (_highResolution)
+        {
+            HighResolutionClock.prepare();
+        }
+
+        // originate timestamps identify the replies, keep them unique
+        long now = System.currentTimeMillis();
+        long originateTime = currentNtpTime(now);
+        if (_lastOriginateTime != 0 && originateTime - _lastOriginateTime <= 0)
+        {
+            originateTime = _lastOriginateTime + 1;
+        }
+        _lastOriginateTime = originateTime;
+
+        _sendCodec.writeRequest(_version, originateTime);
+        int sent;
+        try
+        {
+            sent = _channel.send(_sendCodec.getBuffer(), server);
+        } catch (IOException e)
+        {
+            if (!_channel.isOpen())
+            {
+                throw e;
+            }
+            callback.onFailure(server, e);
+            return;
+        }
+        if (sent == 0)
+        {
+            callback.onFailure(server, new IOException("Send buffer is full"));
+            return;
+        }
+
+        Request request = new Request(server, originateTime, now + timeout, callback);
+        _pending.put(Long.valueOf(originateTime), request);
+        _deadlines.add(request);
+    }
+
+    /***
+     * Waits for replies and dispatches them and expired requests to their
+     * callbacks. Returns early when the next deadline is reached.
+     *
+     * @param maxWait maximum milliseconds to wait, 0 does not block
+     * @return number of requests still in flight
+     * @exception IOException If an error occurs on the channel.
+     ***/
+    public int poll(long maxWait) throws IOException
+    {
+        long now = System.currentTimeMillis();
+        Request next = peekDeadline();
+        long wait = maxWait;
+        if (next != null)
+        {
+            wait = Math.min(wait, Math.max(0, next.deadline - now));
+        }
+
+        int ready = (wait > 0) ? _selector.select(wait) : _selector.selectNow();
+        if (ready > 0)
+        {
+            _selector.selectedKeys().clear();
+            receiveAll();
+        }
+
+        expire(System.currentTimeMillis());
+
+        return _pending.size();
+    }
+
+    /***
+     * Returns number of requests in flight.
+     *
+     * @return number of pending requests
+     ***/
+    public int getPendingCount()
+    {
+        return _pending.size();
+    }
+
+    /***
+     * Sets the NTP protocol version number that is set on request packets.
+     *
+     * @param version the NTP protocol version number
+     ***/
+    public void setVersion(int version)
+    {
+        _version = version;
+    }
+
+    /***
+     * Enables sub-millisecond timestamps taken from
+     * {@link HighResolutionClock}. Disabled by default.
+     *
+     * @param highResolution true to use high resolution timestamps
+     ***/
+    public void setHighResolution(boolean highResolution)
+    {
+        _highResolution = highResolution;
+    }
+
+    /***
+     * Closes channel and selector. Requests still in flight are dropped
+     * without notifying their callbacks.
+     ***/
+//    @Override
+    public void close() throws IOException
+    {
+        _pending.clear();
+        _deadlines.clear();
+        try
+        {
+            _selector.close();
+        } finally
+        {
+            _channel.close();
+        }
+    }
+
+    private long currentNtpTime(long millis)
+    {
+        return _highResolution ? HighResolutionClock.currentNtpTime()
+            : NtpPacketCodec.toNtpTime(millis);
+    }
+
+    private void receiveAll() throws IOException
+    {
+        while (true)
+        {
+            ByteBuffer buffer = _receiveCodec.getBuffer();
+            SocketAddress from = _channel.receive(buffer);
+            if (from == null)
+            {
+                return;
+            }
+            _receiveCodec.setDestinationTime(currentNtpTime(System.currentTimeMillis()));
+
+            _receiveCodec.setReceivedLength(buffer.position());
+            if (buffer.position() < NtpPacketCodec.PACKET_SIZE)
+            {
+                continue;
+            }
+            Request request = _pending.get(Long.valueOf(_receiveCodec.getOriginateTime()));
+            if (request == null || !request.server.equals(from)
+                || !_receiveCodec.isValidReply(request.originateTime))
+            {
+                continue;
+            }
+
+            _pending.remove(Long.valueOf(request.originateTime));
+            request.done = true;
+            request.callback.onReply(request.server, _receiveCodec);
+        }
+    }
+
+    private void expire(long now)
+    {
+        Request next;
+        while ((next = peekDeadline()) != null && next.deadline <= now)
+        {
+            _deadlines.poll();
+            _pending.remove(Long.valueOf(next.originateTime));
+            next.done = true;
+            next.callback.onFailure(next.server,
+                new SocketTimeoutException("No reply from " + next.server));
+        }
+    }
+
+    /***
+     * Returns the request with the earliest deadline that is still pending,
+     * dropping answered ones from the head of the queue.
+     ***/
+    private Request peekDeadline()
+    {
+        Request next;
+        while ((next = _deadlines.peek()) != null && next.done)
+        {
+            _deadlines.poll();
+        }
+        return next;
+    }
+
+}
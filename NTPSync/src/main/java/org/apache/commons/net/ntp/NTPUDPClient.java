@@ -20,6 +20,7 @@ package org.apache.commons.net.ntp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 
 import org.apache.commons.net.DatagramSocketClient;
 
@@ -45,6 +46,12 @@ public final class NTPUDPClient extends DatagramSocketClient
     public static final int DEFAULT_PORT = 123;
 
     private int _version = NtpV3Packet.VERSION_3;
+    private boolean _highResolution;
+
+    private int _packetsSent;
+    private int _packetsReceived;
+    private long _bytesSent;
+    private long _bytesReceived;
 
     /***
      * Retrieves the time information from the specified server and port and
@@ -65,6 +72,8 @@ public final class NTPUDPClient extends DatagramSocketClient
         {
             open();
         }
+        // renewing the anchor must not happen between timestamping and sending
+        prepareClock();
 
         NtpV3Packet message = new NtpV3Impl();
         message.setMode(NtpV3Packet.MODE_CLIENT);
@@ -82,18 +91,18 @@ public final class NTPUDPClient extends DatagramSocketClient
          * introduces an error in the delay time.
          * No extraneous logging and initializations here !!!
          */
-        TimeStamp now = TimeStamp.getCurrentTime();
+        TimeStamp now = new TimeStamp(currentNtpTime());
 
         // Note that if you do not set the transmit time field then originating time
         // in server response is all 0's which is "Thu Feb 07 01:28:16 EST 2036".
         message.setTransmitTime(now);
 
-        _socket_.send(sendPacket);
-        _socket_.receive(receivePacket);
+        send(sendPacket);
+        receive(receivePacket);
 
-        long returnTime = System.currentTimeMillis();
+        long returnTime = currentNtpTime();
         // create TimeInfo message container but don't pre-compute the details yet
-        TimeInfo info = new TimeInfo(recMessage, returnTime, false);
+        TimeInfo info = createTimeInfo(recMessage, returnTime);
 
         return info;
     }
@@ -114,6 +123,282 @@ public final class NTPUDPClient extends DatagramSocketClient
         return getTime(host, NtpV3Packet.NTP_PORT);
     }
 
+    /***
+     * Retrieves the time information from the specified server into the given
+     * codec. Nothing is allocated, so this can be used in polling loops
+     * without producing garbage when the same codec is passed every time.
+     * Offset and delay are then available from the codec as primitives.
+     * <p>
+     * @param host The address of the server.
+     * @param port The port of the service.
+     * @param codec Codec holding request and reply.
+     * @return true if a valid reply to the request was received.
+     * @exception IOException If an error occurs while retrieving the time.
+     ***/
+    public boolean getTime(InetAddress host, int port, NtpPacketCodec codec) throws IOException
+    {
+        // if not connected then open to next available UDP port
+        if (!isOpen())
+        {
+            open();
+        }
+        // renewing the anchor must not happen between timestamping and sending
+        prepareClock();
+
+        DatagramPacket packet = codec.getDatagramPacket();
+        packet.setAddress(host);
+        packet.setPort(port);
+
+        // see getTime(InetAddress, int), no extraneous work between timestamping and sending
+        codec.writeRequest(_version, currentNtpTime());
+
+        send(packet);
+        receive(packet);
+
+        codec.setDestinationTime(currentNtpTime());
+        codec.setReceivedLength(packet.getLength());
+
+        return codec.isValidReply();
+    }
+
+    /***
+     * Retrieves the time information from the specified server using a burst
+     * of <code>count</code> requests spaced <code>interval</code> milliseconds
+     * apart (0 sends them back-to-back) on the open socket. Replies are matched
+     * to their request by originate timestamp and fed into a new
+     * {@link ClockFilter}, the sample with the lowest delay is returned with
+     * the jitter of the burst set. After the last request the default timeout
+     * is waited for outstanding replies.
+     * <p>
+     * @param host The address of the server.
+     * @param port The port of the service.
+     * @param count Number of requests to send.
+     * @param interval Milliseconds between two requests.
+     * @return The filtered time value retrieved from the server.
+     * @exception IOException If an error occurs while retrieving the time or
+     *   no reply was received.
+     ***/
+    public TimeInfo getTime(InetAddress host, int port, int count, int interval)
+        throws IOException
+    {
+        return getTime(host, port, count, interval, new ClockFilter());
+    }
+
+    /***
+     * Same as {@link #getTime(InetAddress, int, int, int)}, but feeds the
+     * replies into the given clock filter, so samples of previous bursts to
+     * the same server are taken into account as well.
+     * <p>
+     * @param host The address of the server.
+     * @param port The port of the service.
+     * @param count Number of requests to send.
+     * @param interval Milliseconds between two requests.
+     * @param filter Clock filter of this server.
+     * @return The filtered time value retrieved from the server.
+     * @exception IOException If an error occurs while retrieving the time or
+     *   no reply was received.
+     ***/
+    public TimeInfo getTime(InetAddress host, int port, int count, int interval,
+        ClockFilter filter) throws IOException
+    {
+        // if not connected then open to next available UDP port
+        if (!isOpen())
+        {
+            open();
+        }
+        // renewing the anchor must not happen between timestamping and sending
+        prepareClock();
+
+        NtpV3Packet message = new NtpV3Impl();
+        message.setMode(NtpV3Packet.MODE_CLIENT);
+        message.setVersion(_version);
+        DatagramPacket sendPacket = message.getDatagramPacket();
+        sendPacket.setAddress(host);
+        sendPacket.setPort(port);
+
+        long[] originateTimes = new long[count];
+        boolean[] answered = new boolean[count];
+        int sent = 0;
+        int received = 0;
+        long nextSend = 0;
+        long deadline = 0;
+        int oldTimeout = _socket_.getSoTimeout();
+        try
+        {
+            while (received < count)
+            {
+                long now = System.currentTimeMillis();
+                if (sent < count && now >= nextSend)
+                {
+                    // originate timestamps identify the replies, keep them unique
+                    long originateTime = currentNtpTime();
+                    if (sent > 0 && originateTime <= originateTimes[sent - 1])
+                    {
+                        originateTime = originateTimes[sent - 1] + 1;
+                    }
+                    message.setTransmitTime(new TimeStamp(originateTime));
+
+                    send(sendPacket);
+                    originateTimes[sent++] = originateTime;
+
+                    nextSend = now + interval;
+                    if (sent == count && oldTimeout > 0)
+                    {
+                        deadline = System.currentTimeMillis() + oldTimeout;
+                    }
+                    continue;
+                }
+
+                // wait for replies until the next request is due
+                if (sent < count)
+                {
+                    _socket_.setSoTimeout((int) Math.max(1, nextSend - now));
+                } else if (deadline != 0)
+                {
+                    if (deadline <= now)
+                    {
+                        break;
+                    }
+                    _socket_.setSoTimeout((int) (deadline - now));
+                } else
+                {
+                    _socket_.setSoTimeout(0);
+                }
+
+                NtpV3Packet recMessage = new NtpV3Impl();
+                DatagramPacket receivePacket = recMessage.getDatagramPacket();
+                try
+                {
+                    receive(receivePacket);
+                } catch (SocketTimeoutException e)
+                {
+                    continue;
+                }
+                long returnTime = currentNtpTime();
+
+                if (!host.equals(receivePacket.getAddress()))
+                {
+                    continue;
+                }
+                long originateTime = recMessage.getOriginateTimeStamp().ntpValue();
+                for (int i = 0; i < sent; i++)
+                {
+                    if (!answered[i] && originateTimes[i] == originateTime)
+                    {
+                        answered[i] = true;
+                        received++;
+                        filter.add(createTimeInfo(recMessage, returnTime));
+                        break;
+                    }
+                }
+            }
+        } finally
+        {
+            _socket_.setSoTimeout(oldTimeout);
+        }
+
+        TimeInfo best = filter.getBest();
+        if (best == null)
+        {
+            throw new SocketTimeoutException("No reply to " + count + " requests");
+        }
+        return best;
+    }
+
+    /***
+     * Retrieves the time information from several servers at once. One request is
+     * sent to every server back-to-back on the open socket, then replies are
+     * collected as they arrive and matched to their request by source address and
+     * originate timestamp. This method returns as soon as <code>quorum</code>
+     * replies have been received or the default timeout has elapsed, so the
+     * total wait is that of the fastest servers, not the sum of all timeouts.
+     * <p>
+     * @param hosts The addresses of the servers.
+     * @param port The port of the service.
+     * @param quorum Number of replies after which the remaining servers are not
+     *   waited for anymore.
+     * @return Array of the same length as <code>hosts</code>. An element is null
+     *   if the corresponding server did not reply in time.
+     * @exception IOException If an error occurs while sending the requests.
+     ***/
+    public TimeInfo[] getTimes(InetAddress[] hosts, int port, int quorum) throws IOException
+    {
+        // if not connected then open to next available UDP port
+        if (!isOpen())
+        {
+            open();
+        }
+        // renewing the anchor must not happen between timestamping and sending
+        prepareClock();
+
+        NtpV3Packet message = new NtpV3Impl();
+        message.setMode(NtpV3Packet.MODE_CLIENT);
+        message.setVersion(_version);
+        DatagramPacket sendPacket = message.getDatagramPacket();
+        sendPacket.setPort(port);
+
+        long[] originateTimes = new long[hosts.length];
+        for (int i = 0; i < hosts.length; i++)
+        {
+            sendPacket.setAddress(hosts[i]);
+
+            TimeStamp now = new TimeStamp(currentNtpTime());
+            message.setTransmitTime(now);
+
+            send(sendPacket);
+            originateTimes[i] = now.ntpValue();
+        }
+
+        TimeInfo[] infos = new TimeInfo[hosts.length];
+        int received = 0;
+        int oldTimeout = _socket_.getSoTimeout();
+        long deadline = (oldTimeout > 0) ? System.currentTimeMillis() + oldTimeout : 0;
+        try
+        {
+            while (received < quorum && received < hosts.length)
+            {
+                if (deadline != 0)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                    {
+                        break;
+                    }
+                    _socket_.setSoTimeout((int) remaining);
+                }
+
+                NtpV3Packet recMessage = new NtpV3Impl();
+                DatagramPacket receivePacket = recMessage.getDatagramPacket();
+                try
+                {
+                    receive(receivePacket);
+                } catch (SocketTimeoutException e)
+                {
+                    break;
+                }
+                long returnTime = currentNtpTime();
+
+                // ignore duplicates and replies to requests we did not send
+                long originateTime = recMessage.getOriginateTimeStamp().ntpValue();
+                for (int i = 0; i < hosts.length; i++)
+                {
+                    if (infos[i] == null && originateTimes[i] == originateTime
+                            && hosts[i].equals(receivePacket.getAddress()))
+                    {
+                        infos[i] = createTimeInfo(recMessage, returnTime);
+                        received++;
+                        break;
+                    }
+                }
+            }
+        } finally
+        {
+            _socket_.setSoTimeout(oldTimeout);
+        }
+
+        return infos;
+    }
+
     /***
      * Returns the NTP protocol version number that client sets on request packet
      * that is sent to remote host (e.g. 3=NTP v3, 4=NTP v4, etc.)
@@ -137,4 +422,97 @@ public final class NTPUDPClient extends DatagramSocketClient
         _version = version;
     }
 
+    /***
+     * Returns whether timestamps are taken from {@link HighResolutionClock}.
+     *
+     * @return true if high resolution timestamps are used
+     * @see #setHighResolution(boolean)
+     ***/
+    public boolean isHighResolution()
+    {
+        return _highResolution;
+    }
+
+    /***
+     * Enables sub-millisecond timestamps. Requests are stamped and replies
+     * received using {@link HighResolutionClock} instead of
+     * System.currentTimeMillis, the returned <i>TimeInfo</i> objects then
+     * carry offset and delay in nanoseconds as well. Disabled by default.
+     *
+     * @param highResolution true to use high resolution timestamps
+     ***/
+    public void setHighResolution(boolean highResolution)
+    {
+        _highResolution = highResolution;
+    }
+
+    /***
+     * Returns the number of packets sent since the client was created.
+     *
+     * @return number of packets sent
+     ***/
+    public int getPacketsSent()
+    {
+        return _packetsSent;
+    }
+
+    /***
+     * Returns the number of packets received since the client was created,
+     * including invalid and late replies.
+     *
+     * @return number of packets received
+     ***/
+    public int getPacketsReceived()
+    {
+        return _packetsReceived;
+    }
+
+    /***
+     * Returns the number of UDP payload bytes sent and received since the
+     * client was created.
+     *
+     * @return number of bytes
+     ***/
+    public long getBytesTransferred()
+    {
+        return _bytesSent + _bytesReceived;
+    }
+
+    private void send(DatagramPacket packet) throws IOException
+    {
+        _socket_.send(packet);
+        _packetsSent++;
+        _bytesSent += packet.getLength();
+    }
+
+    private void receive(DatagramPacket packet) throws IOException
+    {
+        _socket_.receive(packet);
+        _packetsReceived++;
+        _bytesReceived += packet.getLength();
+    }
+
+    private void prepareClock()
+    {
+        if (_highResolution)
+        {
+            HighResolutionClock.prepare();
+        }
+    }
+
+    private long currentNtpTime()
+    {
+        return _highResolution ? HighResolutionClock.currentNtpTime()
+            : NtpPacketCodec.toNtpTime(System.currentTimeMillis());
+    }
+
+    private TimeInfo createTimeInfo(NtpV3Packet message, long returnTime)
+    {
+        if (_highResolution)
+        {
+            return new TimeInfo(message, new TimeStamp(returnTime), false);
+        }
+        return new TimeInfo(message, TimeStamp.getTime(returnTime), false);
+    }
+
 }
@@ -0,0 +1,354 @@
+package org.apache.commons.net.ntp;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/***
+ * Flyweight NTP packet codec reading and writing the header fields directly
+ * from a reusable buffer. Unlike {@link NtpV3Impl} and {@link TimeInfo},
+ * timestamps are returned as primitive 64-bit NTP values and offset/delay
+ * are computed without creating any objects, so one codec can be used for
+ * any number of queries without producing garbage.
+ * <p>
+ * The same buffer holds the request and, after receiving, the reply. The
+ * time the request was sent and the time the reply arrived are kept in the
+ * codec itself.
+ * <p>
+ * The codec itself allocates nothing per query. Sending and receiving through
+ * {@link NTPUDPClient#getTime(java.net.InetAddress, int, NtpPacketCodec)}
+ * still allocates a few bytes inside the platform's DatagramSocket
+ * implementation, which is outside of our control. NtpPacketCodecBenchmark
+ * in the test sources measures both.
+ ***/
+public final class NtpPacketCodec
+{
+    /*** Size of an NTP packet without extension fields ***/
+    public static final int PACKET_SIZE = 48;
+
+    private static final int STRATUM_INDEX = 1;
+    private static final int POLL_INDEX = 2;
+    private static final int PRECISION_INDEX = 3;
+    private static final int ROOT_DELAY_INDEX = 4;
+    private static final int ROOT_DISPERSION_INDEX = 8;
+    private static final int REFERENCE_ID_INDEX = 12;
+    private static final int REFERENCE_TIMESTAMP_INDEX = 16;
+    private static final int ORIGINATE_TIMESTAMP_INDEX = 24;
+    private static final int RECEIVE_TIMESTAMP_INDEX = 32;
+    private static final int TRANSMIT_TIMESTAMP_INDEX = 40;
+
+    private final ByteBuffer _buffer;
+    private DatagramPacket _packet;
+
+    private long _sentTime;
+    private long _destinationTime;
+    private int _length;
+
+    /***
+     * Creates codec with its own heap buffer.
+     ***/
+    public NtpPacketCodec()
+    {
+        this(ByteBuffer.allocate(PACKET_SIZE));
+    }
+
+    /***
+     * Creates codec working on the first 48 bytes of the given buffer, which
+     * may also be a direct buffer.
+     *
+     * @param buffer buffer holding the packet
+     ***/
+    public NtpPacketCodec(ByteBuffer buffer)
+    {
+        if (buffer.capacity() < PACKET_SIZE)
+        {
+            throw new IllegalArgumentException("buffer must hold at least " + PACKET_SIZE
+                + " bytes");
+        }
+        _buffer = buffer;
+    }
+
+    /***
+     * Returns the buffer, positioned at 0 with a limit of one packet.
+     *
+     * @return the buffer
+     ***/
+    public ByteBuffer getBuffer()
+    {
+        _buffer.clear();
+        _buffer.limit(PACKET_SIZE);
+        return _buffer;
+    }
+
+    /***
+     * Returns a datagram packet on the buffer, created once and reused
+     * afterwards. Only available for array backed buffers.
+     *
+     * @return datagram packet of one NTP packet size
+     ***/
+    public DatagramPacket getDatagramPacket()
+    {
+        if (_packet == null)
+        {
+            _packet = new DatagramPacket(_buffer.array(), _buffer.arrayOffset(), PACKET_SIZE);
+        }
+        _packet.setLength(PACKET_SIZE);
+        return _packet;
+    }
+
+    /***
+     * Writes a client request into the buffer. All fields are cleared and
+     * the transmit timestamp is set to the given time, which is remembered
+     * to validate the reply.
+     *
+     * @param version NTP version
+     * @param transmitTime 64-bit NTP time the request is sent
+     ***/
+    public void writeRequest(int version, long transmitTime)
+    {
+        for (int i = 0; i < PACKET_SIZE; i++)
+        {
+            _buffer.put(i, (byte) 0);
+        }
+        _buffer.put(0, (byte) ((version & 0x7) << 3 | NtpV3Packet.MODE_CLIENT));
+        _buffer.putLong(TRANSMIT_TIMESTAMP_INDEX, transmitTime);
+        _sentTime = transmitTime;
+        _length = 0;
+    }
+
+    /***
+     * Sets the number of bytes of the received datagram, shorter replies are
+     * not valid.
+     *
+     * @param length length of the datagram
+     ***/
+    public void setReceivedLength(int length)
+    {
+        _length = length;
+    }
+
+    /***
+     * Sets the time the reply was received by the local machine (t4).
+     *
+     * @param destinationTime 64-bit NTP time
+     ***/
+    public void setDestinationTime(long destinationTime)
+    {
+        _destinationTime = destinationTime;
+    }
+
+    /***
+     * Returns the time the reply was received by the local machine (t4).
+     *
+     * @return 64-bit NTP time
+     ***/
+    public long getDestinationTime()
+    {
+        return _destinationTime;
+    }
+
+    /***
+     * Checks if the buffer holds a server reply to the request written by
+     * {@link #writeRequest(int, long)} with usable timestamps.
+     *
+     * @return true if the reply is valid
+     ***/
+    public boolean isValidReply()
+    {
+        return isValidReply(_sentTime);
+    }
+
+    /***
+     * Checks if the buffer holds a server reply to a request sent at the
+     * given time with usable timestamps. The received length must have been
+     * set by {@link #setReceivedLength(int)}.
+     *
+     * @param sentTime 64-bit NTP transmit time of the request
+     * @return true if the reply is valid
+     ***/
+    public boolean isValidReply(long sentTime)
+    {
+        if (_length < PACKET_SIZE)
+        {
+            return false;
+        }
+        int mode = getMode();
+        return (mode == NtpV3Packet.MODE_SERVER || mode == NtpV3Packet.MODE_SYMMETRIC_PASSIVE)
+            && getOriginateTime() == sentTime
+            && getReceiveTime() != 0
+            && getTransmitTime() != 0;
+    }
+
+    public int getMode()
+    {
+        return _buffer.get(0) & 0x7;
+    }
+
+    public int getVersion()
+    {
+        return (_buffer.get(0) >> 3) & 0x7;
+    }
+
+    public int getLeapIndicator()
+    {
+        return (_buffer.get(0) >> 6) & 0x3;
+    }
+
+    public int getStratum()
+    {
+        return _buffer.get(STRATUM_INDEX) & 0xFF;
+    }
+
+    public int getPoll()
+    {
+        return _buffer.get(POLL_INDEX);
+    }
+
+    public int getPrecision()
+    {
+        return _buffer.get(PRECISION_INDEX);
+    }
+
+    /***
+     * @return root delay as 32-bit NTP short format (16.16 seconds)
+     ***/
+    public int getRootDelay()
+    {
+        return _buffer.getInt(ROOT_DELAY_INDEX);
+    }
+
+    /***
+     * @return root dispersion as 32-bit NTP short format (16.16 seconds)
+     ***/
+    public int getRootDispersion()
+    {
+        return _buffer.getInt(ROOT_DISPERSION_INDEX);
+    }
+
+    public int getReferenceId()
+    {
+        return _buffer.getInt(REFERENCE_ID_INDEX);
+    }
+
+    public long getReferenceTime()
+    {
+        return _buffer.getLong(REFERENCE_TIMESTAMP_INDEX);
+    }
+
+    /*** @return originate timestamp, the time the request was sent (t1) ***/
+    public long getOriginateTime()
+    {
+        return _buffer.getLong(ORIGINATE_TIMESTAMP_INDEX);
+    }
+
+    /*** @return receive timestamp, the time the server received the request (t2) ***/
+    public long getReceiveTime()
+    {
+        return _buffer.getLong(RECEIVE_TIMESTAMP_INDEX);
+    }
+
+    /*** @return transmit timestamp, the time the server sent the reply (t3) ***/
+    public long getTransmitTime()
+    {
+        return _buffer.getLong(TRANSMIT_TIMESTAMP_INDEX);
+    }
+
+    /***
+     * Clock offset of the reply in NTP fixed point format (32.32 seconds).
+     * Differences of 64-bit NTP values are computed modulo 2^64, so this is
+     * correct across era boundaries as long as the clocks are less than 68
+     * years apart.
+     *
+     * @return ((t2 - t1) + (t3 - t4)) / 2
+     ***/
+    public long getOffset()
+    {
+        return ((getReceiveTime() - getOriginateTime())
+            + (getTransmitTime() - _destinationTime)) >> 1;
+    }
+
+    /***
+     * Round-trip delay of the reply in NTP fixed point format (32.32 seconds).
+     *
+     * @return (t4 - t1) - (t3 - t2)
+     ***/
+    public long getDelay()
+    {
+        return (_destinationTime - getOriginateTime()) - (getTransmitTime() - getReceiveTime());
+    }
+
+    public long getOffsetInMillis()
+    {
+        return toMillis(getOffset());
+    }
+
+    public long getDelayInMillis()
+    {
+        return toMillis(getDelay());
+    }
+
+    public long getOffsetInNanos()
+    {
+        return toNanos(getOffset());
+    }
+
+    public long getDelayInNanos()
+    {
+        return toNanos(getDelay());
+    }
+
+    /***
+     * Converts a signed NTP fixed point duration (32.32 seconds) to
+     * milliseconds, rounding towards negative infinity.
+     *
+     * @param duration NTP duration
+     * @return milliseconds
+     ***/
+    public static long toMillis(long duration)
+    {
+        return (duration >> 32) * 1000 + (((duration & 0xffffffffL) * 1000) >>> 32);
+    }
+
+    /***
+     * Converts a signed NTP fixed point duration (32.32 seconds) to
+     * nanoseconds, rounding towards negative infinity. Durations of more
+     * than about 292 years overflow.
+     *
+     * @param duration NTP duration
+     * @return nanoseconds
+     ***/
+    public static long toNanos(long duration)
+    {
+        return (duration >> 32) * 1000000000L
+            + (((duration & 0xffffffffL) * 1000000000L) >>> 32);
+    }
+
+    /***
+     * Converts Java time to a 64-bit NTP timestamp value without creating
+     * a {@link TimeStamp} object.
+     *
+     * @param millis milliseconds since January 1, 1970, 00:00:00 GMT
+     * @return NTP timestamp value
+     ***/
+    public static long toNtpTime(long millis)
+    {
+        return TimeStamp.toNtpTime(millis);
+    }
+
+}
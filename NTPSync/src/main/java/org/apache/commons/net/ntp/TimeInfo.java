@@ -34,12 +34,20 @@ public class TimeInfo {
     private List<String> _comments;
     private Long _delay;
     private Long _offset;
+    private Long _delayNanos;
+    private Long _offsetNanos;
+    private Double _jitter;
 
     /**
      * time at which time message packet was received by local machine
      */
     private final long _returnTime;
 
+    /**
+     * same as NTP timestamp with full fraction, 0 if only known in milliseconds
+     */
+    private final long _returnNtpTime;
+
     /**
      * flag indicating that the TimeInfo details was processed and delay/offset were computed
      */
@@ -99,11 +107,33 @@ public class TimeInfo {
      */
     public TimeInfo(NtpV3Packet message, long returnTime, List<String> comments,
                    boolean doComputeDetails)
+    {
+        this(message, returnTime, 0, comments, doComputeDetails);
+    }
+
+    /**
+     * Create TimeInfo object with raw packet message and destination time received
+     * as NTP timestamp, e.g. from {@link HighResolutionClock}. Offset and delay are
+     * computed from the full 64-bit timestamps and are available in nanoseconds.
+     *
+     * @param message NTP message packet
+     * @param returnTime  destination receive time
+     * @param doComputeDetails  flag to pre-compute delay/offset values
+     * @throws IllegalArgumentException if message is null
+     */
+    public TimeInfo(NtpV3Packet message, TimeStamp returnTime, boolean doComputeDetails)
+    {
+        this(message, returnTime.getTime(), returnTime.ntpValue(), null, doComputeDetails);
+    }
+
+    private TimeInfo(NtpV3Packet message, long returnTime, long returnNtpTime,
+                   List<String> comments, boolean doComputeDetails)
     {
         if (message == null) {
             throw new IllegalArgumentException("message cannot be null");
         }
         this._returnTime = returnTime;
+        this._returnNtpTime = returnNtpTime;
         this._message = message;
         this._comments = comments;
         if (doComputeDetails) {
@@ -201,6 +231,10 @@ public class TimeInfo {
                 // rcvTime is 0 just use xmitTime time
                 _offset = Long.valueOf(xmitTime - _returnTime);
             }
+        } else if (_returnNtpTime != 0)
+        {
+            computeHighResolutionDetails(origNtpTime.ntpValue(), rcvNtpTime.ntpValue(),
+                xmitNtpTime.ntpValue());
         } else
         {
              long delayValue = _returnTime - origTime;
@@ -244,6 +278,38 @@ public class TimeInfo {
         }
     }
 
+    /**
+     * Same equations as in computeDetails(), but on the 64-bit NTP values, whose
+     * differences are taken modulo 2^64, so no timestamp is rounded to milliseconds
+     * before the result.
+     */
+    private void computeHighResolutionDetails(long origTime, long rcvTime, long xmitTime)
+    {
+        long delayValue = _returnNtpTime - origTime;
+        if (delayValue < 0) {
+            _comments.add("Error: OrigTime > DestRcvTime");
+        }
+        if (xmitTime - rcvTime < 0)
+        {
+            // server cannot send out a packet before receiving it...
+            _comments.add("Error: xmitTime < rcvTime"); // time-travel not allowed
+        } else
+        {
+            // subtract processing time from round-trip network delay
+            delayValue -= xmitTime - rcvTime;
+            if (delayValue < 0)
+            {
+                _comments.add("Warning: processing time > total network time");
+            }
+        }
+
+        _delayNanos = Long.valueOf(NtpPacketCodec.toNanos(delayValue));
+        _offsetNanos = Long.valueOf(NtpPacketCodec.toNanos(
+            ((rcvTime - origTime) + (xmitTime - _returnNtpTime)) >> 1));
+        _delay = Long.valueOf(Math.round(_delayNanos.longValue() / 1e6));
+        _offset = Long.valueOf(Math.round(_offsetNanos.longValue() / 1e6));
+    }
+
     /**
      * Return list of comments (if any) during processing of NTP packet.
      *
@@ -275,6 +341,49 @@ public class TimeInfo {
         return _offset;
     }
 
+    /**
+     * Get round-trip network delay in nanoseconds. Only available if the destination
+     * time was given as NTP timestamp.
+     *
+     * @return Long or null if delay not available in nanoseconds.
+     */
+    public Long getDelayNanos()
+    {
+        return _delayNanos;
+    }
+
+    /**
+     * Get clock offset in nanoseconds. Only available if the destination time was
+     * given as NTP timestamp.
+     *
+     * @return Long or null if offset not available in nanoseconds.
+     */
+    public Long getOffsetNanos()
+    {
+        return _offsetNanos;
+    }
+
+    /**
+     * Get jitter of the clock filter this sample was selected by. If null then
+     * the sample is the result of a single round trip.
+     *
+     * @return Double or null if jitter not available.
+     */
+    public Double getJitter()
+    {
+        return _jitter;
+    }
+
+    /**
+     * Set jitter in milliseconds, called by the clock filter.
+     *
+     * @param jitter jitter of the clock filter
+     */
+    void setJitter(double jitter)
+    {
+        _jitter = Double.valueOf(jitter);
+    }
+
     /**
      * Returns NTP message packet.
      *
@@ -295,4 +404,15 @@ public class TimeInfo {
         return _returnTime;
     }
 
+    /**
+     * Returns time at which time message packet was received by local machine as
+     * NTP timestamp value.
+     *
+     * @return packet return time or 0 if only known in milliseconds.
+     */
+    public long getReturnNtpTime()
+    {
+        return _returnNtpTime;
+    }
+
 }
@@ -1,6 +1,9 @@
 package org.ntpsync;
 
 import org.ntpsync.util.Constants;
+import org.ntpsync.util.DnsCache;
+import org.ntpsync.util.ServerRegistry;
+import org.ntpsync.util.SharedOffset;
 import org.sufficientlysecure.rootcommands.RootCommands;
 
 import android.app.Application;
@@ -12,4 +15,16 @@ public class NTPSyncApplication extends Application {
         RootCommands.DEBUG = BuildConfig.DEBUG;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // load addresses of NTP servers resolved before
+        DnsCache.init(this);
+        // load health of NTP servers queried before
+        ServerRegistry.init(this);
+        // publish offsets for client apps reading them without IPC
+        SharedOffset.init(this);
+    }
+
 }
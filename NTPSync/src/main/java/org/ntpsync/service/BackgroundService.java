@@ -22,6 +22,7 @@ package org.ntpsync.service;
 
 import org.ntpsync.util.Constants;
 import org.ntpsync.util.Log;
+import org.ntpsync.util.RetryScheduler;
 
 import android.content.Context;
 import android.content.Intent;
@@ -52,6 +53,9 @@ public class BackgroundService extends WakefulIntentService {
         Bundle data = new Bundle();
         data.putBoolean(NtpSyncService.DATA_GET_NTP_SERVER_FROM_PREFS, true);
         data.putBoolean(NtpSyncService.DATA_APPLY_DIRECTLY, true);
+        data.putBoolean(NtpSyncService.DATA_RETRY_ON_FAILURE, true);
+        data.putString(NtpSyncService.DATA_ORIGIN,
+                intent.getStringExtra(RetryScheduler.EXTRA_ORIGIN));
         serviceIntent.putExtra(NtpSyncService.EXTRA_DATA, data);
 
         appContext.startService(serviceIntent);
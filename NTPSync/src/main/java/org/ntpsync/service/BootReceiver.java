@@ -23,6 +23,7 @@ package org.ntpsync.service;
 import org.ntpsync.util.Constants;
 import org.ntpsync.util.Log;
 import org.ntpsync.util.PreferenceHelper;
+import org.ntpsync.util.RetryScheduler;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -36,9 +37,12 @@ public class BootReceiver extends BroadcastReceiver {
 
             Context appContext = context.getApplicationContext();
 
+            // alarms of retries do not survive reboots
+            RetryScheduler.restore(appContext);
+
             // if set on boot is enabled
             if (PreferenceHelper.getSetOnBoot(appContext)) {
-                new DailyListener().sendWakefulWork(appContext);
+                new DailyListener().sendWakefulWork(appContext, RetryScheduler.ORIGIN_BOOT);
             }
         }
     }
@@ -23,8 +23,7 @@ package org.ntpsync.service;
 import org.ntpsync.util.Constants;
 import org.ntpsync.util.Log;
 import org.ntpsync.util.PreferenceHelper;
-
-import com.commonsware.cwac.wakeful.WakefulIntentService;
+import org.ntpsync.util.RetryScheduler;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -41,9 +40,15 @@ public class ConnectivityReceiver extends BroadcastReceiver {
         if (intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
             Log.d(Constants.TAG, "ConnectivityReceiver invoked...");
 
-            // only when background update is enabled in prefs
-            if (PreferenceHelper.getSyncDaily(context)) {
-                Log.d(Constants.TAG, "Daily sync is enabled!");
+            // only when the preference that started the waiting sync is still enabled
+            String origin = RetryScheduler.getWaitingOrigin(context);
+            if (!RetryScheduler.isEnabled(context, origin)) {
+                Log.d(Constants.TAG, "Sync of origin " + origin
+                        + " is disabled, disable receiver!");
+
+                disableReceiver(context);
+            } else {
+                Log.d(Constants.TAG, "Sync of origin " + origin + " is waiting!");
 
                 boolean noConnectivity = intent.getBooleanExtra(
                         ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
@@ -63,15 +68,11 @@ public class ConnectivityReceiver extends BroadcastReceiver {
                         if (((netInfo.getType() == ConnectivityManager.TYPE_MOBILE) && updateOnlyOnWifi == false)
                                 || (netInfo.getType() == ConnectivityManager.TYPE_WIFI)
                                 || (netInfo.getType() == ConnectivityManager.TYPE_ETHERNET)) {
-                            Log.d(Constants.TAG,
-                                    "We have internet, start sync and disable receiver!");
-
-                            // Start service with wakelock by using WakefulIntentService
-                            Intent backgroundIntent = new Intent(context, BackgroundService.class);
-                            WakefulIntentService.sendWakefulWork(context, backgroundIntent);
+                            Log.d(Constants.TAG, "We have internet, schedule sync!");
 
-                            // disable receiver after we started the service
-                            disableReceiver(context);
+                            // the sync starts once the network did not change for a while, this
+                            // receiver stays enabled until then, so every change pushes it back
+                            RetryScheduler.debounce(context, origin);
                         }
                     }
                 }
@@ -20,11 +20,17 @@
 
 package org.ntpsync.service;
 
-import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
 
 import org.ntpsync.util.Constants;
+import org.ntpsync.util.DnsCache;
+import org.ntpsync.util.DriftCorrector;
 import org.ntpsync.util.Log;
+import org.ntpsync.util.PollScheduler;
 import org.ntpsync.util.PreferenceHelper;
+import org.ntpsync.util.RetryScheduler;
+import org.ntpsync.util.SyncHistory;
 
 import com.commonsware.cwac.wakeful.WakefulIntentService;
 import com.commonsware.cwac.wakeful.WakefulIntentService.AlarmListener;
@@ -40,24 +46,38 @@ public class DailyListener implements AlarmListener {
     public void scheduleAlarms(AlarmManager mgr, PendingIntent pi, Context context) {
         // register when enabled in preferences
         if (PreferenceHelper.getSyncDaily(context)) {
-            Log.i(Constants.TAG, "Schedule daily sync...");
+            // interval adapts to the drift of the clock, see PollScheduler
+            List<SyncHistory.Sample> samples = SyncHistory.getSamples(context);
+            int poll = PollScheduler.getPollExponent(samples);
+            long nextSync = PollScheduler.getNextSyncTime(samples, System.currentTimeMillis());
 
-            // every day at 9 am
-            Calendar calendar = Calendar.getInstance();
-            // if it's after or equal 9 am schedule for next day
-            if (Calendar.getInstance().get(Calendar.HOUR_OF_DAY) >= 9) {
-                calendar.add(Calendar.DAY_OF_YEAR, 1); // add, not set!
-            }
-            calendar.set(Calendar.HOUR_OF_DAY, 9);
-            calendar.set(Calendar.MINUTE, 0);
-            calendar.set(Calendar.SECOND, 0);
+            Log.i(Constants.TAG, "Schedule sync at " + new Date(nextSync) + ", then every 2^"
+                    + poll + " seconds...");
+
+            // repeating, thus failed syncs are retried after one interval, after each sync the
+            // alarm is scheduled again
+            mgr.setRepeating(AlarmManager.RTC, nextSync, PollScheduler.getInterval(poll), pi);
 
-            mgr.setInexactRepeating(AlarmManager.RTC, calendar.getTimeInMillis(),
-                    AlarmManager.INTERVAL_DAY, pi);
+            // resolve NTP servers now, so that the sync does not have to wait for DNS
+            DnsCache.prefetch(PreferenceHelper.getNtpServers(context));
         }
+
+        // correct the drift between syncs if enabled, cancels it otherwise
+        DriftCorrector.schedule(context);
     }
 
     public void sendWakefulWork(Context context) {
+        sendWakefulWork(context, RetryScheduler.ORIGIN_DAILY);
+    }
+
+    /**
+     * Starts a sync now if there is connectivity, otherwise once there is
+     * 
+     * @param context
+     * @param origin
+     *            RetryScheduler.ORIGIN_DAILY or RetryScheduler.ORIGIN_BOOT
+     */
+    public void sendWakefulWork(Context context, String origin) {
         ConnectivityManager cm = (ConnectivityManager) context
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo netInfo = cm.getActiveNetworkInfo();
@@ -73,22 +93,23 @@ public class DailyListener implements AlarmListener {
                 Log.d(Constants.TAG, "We have internet, start sync directly now!");
 
                 Intent backgroundIntent = new Intent(context, BackgroundService.class);
+                backgroundIntent.putExtra(RetryScheduler.EXTRA_ORIGIN, origin);
                 WakefulIntentService.sendWakefulWork(context, backgroundIntent);
             } else {
                 Log.d(Constants.TAG, "We have no internet, enable ConnectivityReceiver!");
 
                 // enable receiver to schedule update when internet is available!
-                ConnectivityReceiver.enableReceiver(context);
+                RetryScheduler.waitForConnectivity(context, origin);
             }
         } else {
             Log.d(Constants.TAG, "We have no internet, enable ConnectivityReceiver!");
 
             // enable receiver to schedule update when internet is available!
-            ConnectivityReceiver.enableReceiver(context);
+            RetryScheduler.waitForConnectivity(context, origin);
         }
     }
 
     public long getMaxAge() {
-        return (AlarmManager.INTERVAL_DAY + 60 * 1000);
+        return (PollScheduler.getInterval(PollScheduler.MAXPOLL) + 60 * 1000);
     }
 }
\ No newline at end of file
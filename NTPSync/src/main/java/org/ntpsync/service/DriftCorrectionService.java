@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.service;
+
+import org.ntpsync.util.Constants;
+import org.ntpsync.util.DriftCorrector;
+import org.ntpsync.util.Log;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+/**
+ * Started by the alarm of DriftCorrector to apply a predictive drift correction
+ */
+public class DriftCorrectionService extends IntentService {
+
+    public DriftCorrectionService() {
+        super("DriftCorrectionService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        int returnMessage = DriftCorrector.correct(this);
+        if (returnMessage != NtpSyncService.RETURN_OKAY) {
+            Log.e(Constants.TAG, "Drift correction failed, disabling it until the next sync!");
+
+            // will be scheduled again after the next sync
+            DriftCorrector.cancel(this);
+        }
+    }
+}
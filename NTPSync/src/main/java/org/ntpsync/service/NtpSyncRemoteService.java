@@ -20,18 +20,36 @@
 
 package org.ntpsync.service;
 
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ntp.ClockFilter;
+
 import org.ntpsync.util.Constants;
 import org.ntpsync.util.Log;
+import org.ntpsync.util.NtpQueryFuture;
+import org.ntpsync.util.NtpSample;
+import org.ntpsync.util.NtpSyncResult;
 import org.ntpsync.util.NtpSyncUtils;
+import org.ntpsync.util.OffsetCache;
 import org.ntpsync.util.PreferenceHelper;
+import org.ntpsync.util.SharedOffset;
+import org.ntpsync.util.SyncCostLog;
+import org.ntpsync.util.SyncHistory;
 import org.ntpsync.util.Utils;
 
 import android.app.Service;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 /**
  * This class exposes the remote service to the client
@@ -42,17 +60,276 @@ public class NtpSyncRemoteService extends Service {
     public static final String PERMISSION_SET_TIME = "org.ntpsync.permission.SET_TIME";
 
     public static final String OUTPUT_OFFSET = "offset";
+    // milliseconds since the offset was measured
+    public static final String OUTPUT_AGE = "age";
+    // maximum error of the offset in milliseconds
+    public static final String OUTPUT_ERROR_BOUND = "error_bound";
+    // servers the offset was measured with
+    public static final String OUTPUT_NTP_SERVERS = "ntp_servers";
+    // descriptor of the region of SharedOffset
+    public static final String OUTPUT_SHARED_OFFSET = "shared_offset";
+
+    // dead listeners are removed by RemoteCallbackList
+    private final RemoteCallbackList<IOffsetListener> mListeners =
+            new RemoteCallbackList<IOffsetListener>();
+    // broadcasts are done on the main thread, one after another
+    private Handler mHandler;
+
+    private static final int MAX_RESULTS = 8;
+
+    /**
+     * Result of queryServers, kept for callers accepting a maximum age
+     */
+    private static class CachedResult {
+        final NtpSyncResult mResult;
+        final long mMeasured;
+
+        CachedResult(NtpSyncResult result, long measured) {
+            mResult = result;
+            mMeasured = measured;
+        }
+    }
+
+    private final HashMap<String, CachedResult> mResults = new HashMap<String, CachedResult>();
+
+    // held by setTime while measuring and correcting
+    private final Object mSetTimeLock = new Object();
+
+    /**
+     * Pushes every new offset to the listeners. The service is kept alive by the clients bound
+     * to it, thus it is registered as long as there can be listeners.
+     */
+    private final OffsetCache.Listener mOffsetListener = new OffsetCache.Listener() {
+        @Override
+        public void onOffsetChanged(final OffsetCache.Entry entry) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    broadcastOffset(entry);
+                }
+            });
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(Constants.TAG, "NtpSyncRemoteService, onCreate()");
+
+        mHandler = new Handler();
+        OffsetCache.addListener(mOffsetListener);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.d(Constants.TAG, "NtpSyncRemoteService, onDestroy()");
+
+        OffsetCache.removeListener(mOffsetListener);
+        mHandler.removeCallbacksAndMessages(null);
+        mListeners.kill();
+    }
+
+    private static Bundle putEntry(OffsetCache.Entry entry, Bundle output) {
+        output.putLong(OUTPUT_OFFSET, entry.getOffset());
+        output.putLong(OUTPUT_AGE, entry.getAge());
+        output.putDouble(OUTPUT_ERROR_BOUND, entry.getErrorBound());
+        output.putStringArray(OUTPUT_NTP_SERVERS, entry.getHostnames());
+        return output;
+    }
+
+    private void broadcastOffset(OffsetCache.Entry entry) {
+        Bundle sample = putEntry(entry, new Bundle());
+
+        int count = mListeners.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    // oneway, does not wait for the listener
+                    mListeners.getBroadcastItem(i).onOffset(sample);
+                } catch (RemoteException e) {
+                    // died, RemoteCallbackList removes it
+                }
+            }
+        } finally {
+            mListeners.finishBroadcast();
+        }
+        Log.d(Constants.TAG, "Offset " + entry.getOffset() + " pushed to " + count
+                + " listeners");
+    }
+
+    /**
+     * Gets the offset from the OffsetCache, which runs the query on the executor of
+     * NtpSyncUtils unless a recent enough offset is cached. Concurrent calls for the same
+     * servers share one query. The AIDL methods are synchronous, thus the binder thread waits
+     * for the result, but never longer than the query timeout.
+     * 
+     * @param ntpHostname
+     *            one or more hostnames, null for the NTP servers from the preferences
+     * @param maxAge
+     *            milliseconds, 0 to wait for a query
+     * @param output
+     *            gets offset, age and error bound
+     * @return offset
+     */
+    private long queryOffset(String ntpHostname, long maxAge, Bundle output) throws Exception {
+        OffsetCache.Entry entry = OffsetCache.get(getHostnames(ntpHostname), maxAge,
+                NtpSyncUtils.QUERY_TIMEOUT);
+
+        putEntry(entry, output);
+        return entry.getOffset();
+    }
+
+    /**
+     * Like queryOffset, but always with a query of its own, for setting the clock
+     */
+    private long measureOffset(String ntpHostname, Bundle output) throws Exception {
+        OffsetCache.Entry entry = OffsetCache.measure(getHostnames(ntpHostname),
+                NtpSyncUtils.QUERY_TIMEOUT);
+
+        putEntry(entry, output);
+        return entry.getOffset();
+    }
+
+    private String[] getHostnames(String ntpHostname) {
+        // get hostname from prefs if not defined
+        if (ntpHostname == null) {
+            ntpHostname = PreferenceHelper.getNtpServer(this);
+        }
+
+        // several servers may be given, they are failed over to
+        return PreferenceHelper.splitNtpServers(ntpHostname);
+    }
+
+    private int getOffset(String ntpHostname, long maxAge, Bundle output) {
+        // check permission to do this
+        if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
+            Log.d(Constants.TAG, "Permission granted (GET_TIME)!");
+
+            int returnMessage;
+            try {
+                queryOffset(ntpHostname, maxAge, output);
+
+                returnMessage = NtpSyncService.RETURN_OKAY;
+            } catch (Exception e) {
+                returnMessage = NtpSyncService.RETURN_SERVER_TIMEOUT;
+            }
+
+            return returnMessage;
+        } else {
+            Log.e(Constants.TAG, "Permission to get time is missing! You need "
+                    + PERMISSION_GET_TIME);
+
+            return NtpSyncService.RETURN_GENERIC_ERROR;
+        }
+    }
+
+    private int registerOffsetListener(final IOffsetListener listener) {
+        // check permission to do this
+        if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
+            if (listener == null || !mListeners.register(listener)) {
+                return NtpSyncService.RETURN_GENERIC_ERROR;
+            }
+
+            // deliver the most recent offset, so the client does not wait for the next sync
+            final OffsetCache.Entry entry = OffsetCache.peek(PreferenceHelper
+                    .getNtpServers(this));
+            if (entry != null) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.onOffset(putEntry(entry, new Bundle()));
+                        } catch (RemoteException e) {
+                            mListeners.unregister(listener);
+                        }
+                    }
+                });
+            }
+
+            return NtpSyncService.RETURN_OKAY;
+        } else {
+            Log.e(Constants.TAG, "Permission to get time is missing! You need "
+                    + PERMISSION_GET_TIME);
+
+            return NtpSyncService.RETURN_GENERIC_ERROR;
+        }
+    }
+
+    /**
+     * Queries the servers at once, or takes a recent enough result of the same query. The
+     * combined offset is also put into the OffsetCache and thus pushed to listeners.
+     */
+    private int queryServers(String[] ntpHostnames, int count, int timeout, long maxAge,
+            QueryResult output) {
+        // check permission to do this
+        if (checkCallingPermission(PERMISSION_GET_TIME) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(Constants.TAG, "Permission to get time is missing! You need "
+                    + PERMISSION_GET_TIME);
+
+            return NtpSyncService.RETURN_GENERIC_ERROR;
+        }
+
+        // get hostnames from prefs if not defined
+        if (ntpHostnames == null || ntpHostnames.length == 0) {
+            ntpHostnames = PreferenceHelper.getNtpServers(this);
+        }
+        count = Math.max(1, Math.min(count, ClockFilter.NTP_SHIFT));
+        if (timeout <= 0 || timeout > NtpSyncUtils.QUERY_TIMEOUT) {
+            timeout = NtpSyncUtils.QUERY_TIMEOUT;
+        }
+
+        String[] sorted = ntpHostnames.clone();
+        Arrays.sort(sorted);
+        String key = Arrays.toString(sorted) + "/" + count;
+
+        CachedResult cached;
+        synchronized (mResults) {
+            cached = mResults.get(key);
+        }
+        if (cached == null || maxAge <= 0
+                || SystemClock.elapsedRealtime() - cached.mMeasured > maxAge) {
+            NtpQueryFuture<NtpSyncResult> future = NtpSyncUtils.multiQueryAsync(ntpHostnames,
+                    count, 0, timeout, null);
+            try {
+                // the query stops at its deadline by itself, do not give up right before it
+                // delivers its result
+                NtpSyncResult result = future.get(timeout + NtpSyncUtils.QUERY_TIMEOUT_MARGIN,
+                        TimeUnit.MILLISECONDS);
+                cached = new CachedResult(result, SystemClock.elapsedRealtime());
+            } catch (Exception e) {
+                // nobody waits for it anymore, free the executor thread
+                future.cancel(true);
+                Log.d(Constants.TAG, "Query of several servers failed", e);
+                return NtpSyncService.RETURN_SERVER_TIMEOUT;
+            }
+
+            synchronized (mResults) {
+                if (mResults.size() >= MAX_RESULTS && !mResults.containsKey(key)) {
+                    mResults.clear();
+                }
+                mResults.put(key, cached);
+            }
+            OffsetCache.put(ntpHostnames, cached.mResult.getOffset(),
+                    cached.mResult.getErrorBound());
+        }
+
+        NtpSyncResult result = cached.mResult;
+        List<NtpSample> samples = result.getSamples();
+        ServerSample[] serverSamples = new ServerSample[samples.size()];
+        for (int i = 0; i < serverSamples.length; i++) {
+            NtpSample sample = samples.get(i);
+            serverSamples[i] = new ServerSample(sample.getHostname(), sample.getAddress(),
+                    sample.getTime(), sample.getOffset(), sample.getDelay(), sample.getJitter(),
+                    sample.getStratum(), sample.getLeapIndicator(), sample.getRootDelay(),
+                    sample.getRootDispersion(), sample.getRootDistance(), result.getSurvivors()
+                            .contains(sample));
+        }
+        output.set(serverSamples, samples.indexOf(result.getSystemPeer()),
+                result.getOffsetDouble(), result.getJitter(), result.getErrorBound(),
+                SystemClock.elapsedRealtime() - cached.mMeasured);
+
+        return NtpSyncService.RETURN_OKAY;
     }
 
     @Override
@@ -69,27 +346,65 @@ public class NtpSyncRemoteService extends Service {
         public int getOffset(String ntpHostname, Bundle output) throws RemoteException {
             Log.d(Constants.TAG, "getOffset called!");
 
-            // check permission to do this
-            if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
-                Log.d(Constants.TAG, "Permission granted (GET_TIME)!");
+            return NtpSyncRemoteService.this.getOffset(ntpHostname, 0, output);
+        }
 
-                // get hostname from prefs if not defined
-                if (ntpHostname == null) {
-                    ntpHostname = PreferenceHelper.getNtpServer(NtpSyncRemoteService.this);
-                }
+        /**
+         * Implementation of getCachedOffset
+         */
+        @Override
+        public int getCachedOffset(String ntpHostname, long maxAge, Bundle output)
+                throws RemoteException {
+            Log.d(Constants.TAG, "getCachedOffset called!");
 
-                int returnMessage;
-                try {
-                    long offset = NtpSyncUtils.query(ntpHostname);
+            return NtpSyncRemoteService.this.getOffset(ntpHostname, maxAge, output);
+        }
+
+        /**
+         * Implementation of setTime
+         */
+        @Override
+        public int setTime(String ntpHostname, Bundle output) throws RemoteException {
+            Log.d(Constants.TAG, "setTime called!");
 
-                    output.putLong(OUTPUT_OFFSET, offset);
+            // check permission to do this
+            if (checkCallingPermission(PERMISSION_SET_TIME) == PackageManager.PERMISSION_GRANTED) {
+                Log.d(Constants.TAG, "Permission granted (SET_TIME)!");
+
+                int returnMessage;
+                // one caller after another, each measures the offset after the previous one
+                // corrected the clock, otherwise the same offset would be applied twice
+                synchronized (mSetTimeLock) {
+                    try {
+                        long offset = measureOffset(ntpHostname, output);
 
-                    returnMessage = NtpSyncService.RETURN_OKAY;
-                } catch (Exception e) {
-                    returnMessage = NtpSyncService.RETURN_SERVER_TIMEOUT;
+                        returnMessage = Utils.setTime(NtpSyncRemoteService.this, offset);
+                    } catch (Exception e) {
+                        returnMessage = NtpSyncService.RETURN_SERVER_TIMEOUT;
+                    }
                 }
 
                 return returnMessage;
+            } else {
+                Log.e(Constants.TAG, "Permission to set time is missing! You need "
+                        + PERMISSION_SET_TIME);
+
+                return NtpSyncService.RETURN_GENERIC_ERROR;
+            }
+        }
+
+        /**
+         * Implementation of getSyncCost
+         */
+        @Override
+        public int getSyncCost(Bundle output) throws RemoteException {
+            Log.d(Constants.TAG, "getSyncCost called!");
+
+            // check permission to do this
+            if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
+                output.putAll(SyncCostLog.getSummary(NtpSyncRemoteService.this));
+
+                return NtpSyncService.RETURN_OKAY;
             } else {
                 Log.e(Constants.TAG, "Permission to get time is missing! You need "
                         + PERMISSION_GET_TIME);
@@ -99,40 +414,86 @@ public class NtpSyncRemoteService extends Service {
         }
 
         /**
-         * Implementation of setTime
+         * Implementation of getHistory
          */
         @Override
-        public int setTime(String ntpHostname, Bundle output) throws RemoteException {
-            Log.d(Constants.TAG, "setTime called!");
+        public int getHistory(long from, long to, Bundle output) throws RemoteException {
+            Log.d(Constants.TAG, "getHistory called!");
 
             // check permission to do this
-            if (checkCallingPermission(PERMISSION_SET_TIME) == PackageManager.PERMISSION_GRANTED) {
-                Log.d(Constants.TAG, "Permission granted (SET_TIME)!");
+            if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
+                output.putAll(SyncHistory.getHistory(NtpSyncRemoteService.this, from, to));
 
-                // get hostname from prefs if not defined
-                if (ntpHostname == null) {
-                    ntpHostname = PreferenceHelper.getNtpServer(NtpSyncRemoteService.this);
-                }
+                return NtpSyncService.RETURN_OKAY;
+            } else {
+                Log.e(Constants.TAG, "Permission to get time is missing! You need "
+                        + PERMISSION_GET_TIME);
 
-                int returnMessage;
-                try {
-                    long offset = NtpSyncUtils.query(ntpHostname);
+                return NtpSyncService.RETURN_GENERIC_ERROR;
+            }
+        }
+
+        /**
+         * Implementation of registerOffsetListener
+         */
+        @Override
+        public int registerOffsetListener(IOffsetListener listener) throws RemoteException {
+            Log.d(Constants.TAG, "registerOffsetListener called!");
+
+            return NtpSyncRemoteService.this.registerOffsetListener(listener);
+        }
+
+        /**
+         * Implementation of unregisterOffsetListener
+         */
+        @Override
+        public int unregisterOffsetListener(IOffsetListener listener) throws RemoteException {
+            Log.d(Constants.TAG, "unregisterOffsetListener called!");
+
+            if (listener != null && mListeners.unregister(listener)) {
+                return NtpSyncService.RETURN_OKAY;
+            } else {
+                return NtpSyncService.RETURN_GENERIC_ERROR;
+            }
+        }
 
-                    output.putLong(OUTPUT_OFFSET, offset);
+        /**
+         * Implementation of getSharedOffset
+         */
+        @Override
+        public int getSharedOffset(Bundle output) throws RemoteException {
+            Log.d(Constants.TAG, "getSharedOffset called!");
 
-                    returnMessage = Utils.setTime(offset);
-                } catch (Exception e) {
-                    returnMessage = NtpSyncService.RETURN_SERVER_TIMEOUT;
+            // check permission to do this
+            if (checkCallingPermission(PERMISSION_GET_TIME) == PackageManager.PERMISSION_GRANTED) {
+                try {
+                    output.putParcelable(OUTPUT_SHARED_OFFSET,
+                            SharedOffset.open(NtpSyncRemoteService.this));
+                } catch (FileNotFoundException e) {
+                    Log.e(Constants.TAG, "Could not open shared offset!", e);
+                    return NtpSyncService.RETURN_GENERIC_ERROR;
                 }
 
-                return returnMessage;
+                return NtpSyncService.RETURN_OKAY;
             } else {
-                Log.e(Constants.TAG, "Permission to set time is missing! You need "
-                        + PERMISSION_SET_TIME);
+                Log.e(Constants.TAG, "Permission to get time is missing! You need "
+                        + PERMISSION_GET_TIME);
 
                 return NtpSyncService.RETURN_GENERIC_ERROR;
             }
         }
+
+        /**
+         * Implementation of queryServers
+         */
+        @Override
+        public int queryServers(String[] ntpHostnames, int count, int timeout, long maxAge,
+                QueryResult result) throws RemoteException {
+            Log.d(Constants.TAG, "queryServers called!");
+
+            return NtpSyncRemoteService.this.queryServers(ntpHostnames, count, timeout, maxAge,
+                    result);
+        }
     };
 
 }
\ No newline at end of file
@@ -27,21 +27,31 @@ import java.util.Date;
 import org.apache.commons.net.ntp.TimeInfo;
 import org.ntpsync.R;
 import org.ntpsync.util.Constants;
+import org.ntpsync.util.DriftCorrector;
 import org.ntpsync.util.Log;
+import org.ntpsync.util.NtpQueryFuture;
+import org.ntpsync.util.NtpSample;
+import org.ntpsync.util.NtpSyncResult;
 import org.ntpsync.util.NtpSyncUtils;
+import org.ntpsync.util.OffsetCache;
 import org.ntpsync.util.PreferenceHelper;
+import org.ntpsync.util.RetryScheduler;
+import org.ntpsync.util.ServerRegistry;
+import org.ntpsync.util.SyncCost;
+import org.ntpsync.util.SyncCostLog;
+import org.ntpsync.util.SyncHistory;
 import org.ntpsync.util.Utils;
+import org.ntpsync.util.WakeLockManager;
+
+import com.commonsware.cwac.wakeful.WakefulIntentService;
 
 import android.app.IntentService;
-import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
 import android.os.RemoteException;
 import android.widget.Toast;
 
@@ -59,6 +69,14 @@ public class NtpSyncService extends IntentService {
     // keys for data bundle
     public static final String DATA_GET_NTP_SERVER_FROM_PREFS = "use_ntp_server_from_prefs";
     public static final String DATA_APPLY_DIRECTLY = "apply_directly";
+    // int, number of requests sent per query, the one with the lowest delay is used
+    public static final String DATA_BURST = "burst";
+    // int, milliseconds between the requests of a burst, 0 sends them back-to-back
+    public static final String DATA_BURST_INTERVAL = "burst_interval";
+    // boolean, failed queries are retried by the RetryScheduler, used for automatic syncs
+    public static final String DATA_RETRY_ON_FAILURE = "retry_on_failure";
+    // String, RetryScheduler.ORIGIN_ of an automatic sync, retries are dropped if it is disabled
+    public static final String DATA_ORIGIN = "origin";
 
     // messages that can be send to handler
     public static final int RETURN_GENERIC_ERROR = 0;
@@ -70,41 +88,184 @@ public class NtpSyncService extends IntentService {
     public static final String MESSAGE_DATA_TIME = "time";
     public static final String MESSAGE_DATA_DETAILED_OUTPUT = "detailed_output";
 
-    Messenger mMessenger;
-    Bundle mData;
-
-    // private static WifiLock wifiLock;
-    private static WakeLock wakeLock;
+    // the query including failover plus setting the clock, which may be slewed
+    private static final long WAKE_LOCK_TIMEOUT = NtpSyncUtils.QUERY_TIMEOUT + 30 * 1000;
 
     public NtpSyncService() {
         super("NtpService");
     }
 
-    private static void lock() {
-        try {
-            wakeLock.acquire();
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "Error getting Lock!", e);
+    /**
+     * Result of a query is delivered by the executor of NtpSyncUtils, this keeps what is needed
+     * to answer the intent. The wake lease is released as soon as the query is done and the
+     * clock is set, before the result is formatted and delivered.
+     */
+    private abstract class QueryCallback<V> implements NtpQueryFuture.Callback<V> {
+        final Messenger mMessenger;
+        final Bundle mData;
+        final WakeLockManager.Lease mLease;
+        final SyncCost mCost = new SyncCost();
+
+        QueryCallback(Messenger messenger, Bundle data, WakeLockManager.Lease lease) {
+            mMessenger = messenger;
+            mData = data;
+            mLease = lease;
+        }
+
+        @Override
+        public SyncCost getCost() {
+            return mCost;
+        }
+
+        /**
+         * Puts the result into the message data
+         * 
+         * @return one of the RETURN_ codes
+         */
+        abstract int onResult(V result, Bundle messageData);
+
+        @Override
+        public void onResult(V result) {
+            Bundle messageData = new Bundle();
+            int returnMessage;
+            try {
+                returnMessage = onResult(result, messageData);
+            } finally {
+                releaseWakeLock();
+            }
+            deliverResult(returnMessage, messageData);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            int returnMessage;
+            if (e instanceof IOException) {
+                returnMessage = RETURN_SERVER_TIMEOUT;
+                Log.d(Constants.TAG, "Timeout on server!");
+            } else {
+                returnMessage = RETURN_GENERIC_ERROR;
+                Log.e(Constants.TAG, "Query failed!", e);
+            }
+            try {
+                onFailure(returnMessage);
+            } finally {
+                releaseWakeLock();
+            }
+            deliverResult(returnMessage, null);
+        }
+
+        /**
+         * Lets the CPU sleep again, the rest does not need to finish before the device sleeps
+         */
+        void releaseWakeLock() {
+            if (mLease.release()) {
+                mCost.addWakeLockTime(mLease.getHeldTime());
+            }
         }
-    }
 
-    private static void unlock() {
-        if (wakeLock.isHeld())
-            wakeLock.release();
+        /**
+         * Called if the query failed
+         * 
+         * @param returnMessage
+         *            one of the RETURN_ codes
+         */
+        void onFailure(int returnMessage) {
+        }
+
+        private void deliverResult(int returnMessage, Bundle messageData) {
+            SyncCostLog.add(NtpSyncService.this, mCost);
+            Log.d(Constants.TAG, "Cost of sync: " + mCost);
+
+            if (mMessenger == null && PreferenceHelper.getShowSyncToast(NtpSyncService.this)) {
+                Message msg = Message.obtain();
+                msg.arg1 = returnMessage;
+                msg.setData(messageData);
+                handleResult(msg);
+            } else {
+                sendMessageToHandler(mMessenger, returnMessage, messageData);
+            }
+        }
     }
 
-    private static void getLocks(Context context) {
-        // initialise the lock
-        wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).newWakeLock(
-                PowerManager.PARTIAL_WAKE_LOCK, "NtpSyncWakeLock");
+    /**
+     * Applies the offset of a query and returns the new time
+     */
+    private abstract class OffsetCallback<V> extends QueryCallback<V> {
+        OffsetCallback(Messenger messenger, Bundle data, WakeLockManager.Lease lease) {
+            super(messenger, data, lease);
+        }
+
+        /**
+         * @return sample of the server the offset is based on
+         */
+        abstract NtpSample getSample(V result);
+
+        long getOffset(V result) {
+            return getSample(result).getOffset();
+        }
+
+        double getJitter(V result) {
+            return getSample(result).getJitter();
+        }
+
+        /**
+         * @return maximum error of the offset
+         */
+        double getRootDistance(V result) {
+            return getSample(result).getRootDistance();
+        }
+
+        @Override
+        int onResult(V result, Bundle messageData) {
+            long offset = getOffset(result);
+            // answer clients of the remote service from this sync, before the clock is set
+            OffsetCache.put(PreferenceHelper.getNtpServers(NtpSyncService.this), offset,
+                    getRootDistance(result));
+
+            // calculate new time
+            Date newTime = new Date(System.currentTimeMillis() + offset);
+
+            messageData.putSerializable(MESSAGE_DATA_TIME, newTime);
+
+            int returnMessage = RETURN_OKAY;
+            boolean applied = false;
+            if (mData.containsKey(DATA_APPLY_DIRECTLY)) {
+                if (mData.getBoolean(DATA_APPLY_DIRECTLY)) {
+                    returnMessage = Utils.setTime(NtpSyncService.this, offset, mCost);
+                    applied = (returnMessage == RETURN_OKAY);
+                }
+            }
+
+            if (mData.getBoolean(DATA_RETRY_ON_FAILURE, false)) {
+                RetryScheduler.onSyncSucceeded(NtpSyncService.this);
+            }
+
+            // remember sync to adapt the interval of automatic syncs and estimate the drift
+            long corrections = DriftCorrector.onSync(NtpSyncService.this, applied);
+            SyncHistory.add(NtpSyncService.this, new SyncHistory.Sample(getSample(result),
+                    offset, getJitter(result), getRootDistance(result), returnMessage, applied,
+                    corrections));
+            if (PreferenceHelper.getSyncDaily(NtpSyncService.this)) {
+                WakefulIntentService.scheduleAlarms(new DailyListener(), NtpSyncService.this,
+                        true);
+            }
+
+            return returnMessage;
+        }
+
+        @Override
+        void onFailure(int returnMessage) {
+            SyncHistory.add(NtpSyncService.this,
+                    new SyncHistory.Sample(System.currentTimeMillis(), returnMessage));
+
+            if (mData.getBoolean(DATA_RETRY_ON_FAILURE, false)) {
+                RetryScheduler.onSyncFailed(NtpSyncService.this, mData.getString(DATA_ORIGIN));
+            }
+        }
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        // lock cpu
-        getLocks(this);
-        lock();
-
         Bundle extras = intent.getExtras();
         if (extras == null) {
             Log.e(Constants.TAG, "Extra bundle is null!");
@@ -118,104 +279,117 @@ public class NtpSyncService extends IntentService {
         }
 
         int action = extras.getInt(EXTRA_ACTION);
+        if (action != ACTION_QUERY && action != ACTION_QUERY_DETAILED) {
+            Log.e(Constants.TAG, "Unknown action " + action + "!");
+            return;
+        }
 
         // for these actions we get a result back which is send via the messenger and we require
         // a data bundle
+        Bundle data;
         if (!(extras.containsKey(EXTRA_DATA))) {
             Log.e(Constants.TAG, "Extra bundle must contain a data bundle!");
             return;
         } else {
-            mData = extras.getBundle(EXTRA_DATA);
+            data = extras.getBundle(EXTRA_DATA);
         }
 
-        boolean noMessenger = false;
+        Messenger messenger = null;
         if (!(extras.containsKey(EXTRA_MESSENGER))) {
             Log.e(Constants.TAG, "No messenger present, using default result handling!");
-            noMessenger = true;
         } else {
-            mMessenger = (Messenger) extras.get(EXTRA_MESSENGER);
+            messenger = (Messenger) extras.get(EXTRA_MESSENGER);
         }
 
-        // get NTP server from preferences
-        String ntpHostname = PreferenceHelper.getNtpServer(this);
+        // get NTP servers from preferences, the best scoring first
+        String[] ntpHostnames = ServerRegistry.rank(PreferenceHelper.getNtpServers(this));
 
-        // default values
-        int returnMessage = RETURN_GENERIC_ERROR;
-        long offset = 0;
+        // keep the cpu awake for the query, which runs on the executor of NtpSyncUtils and
+        // releases the lease when done
+        WakeLockManager.Lease lease = WakeLockManager.acquire(this, WAKE_LOCK_TIMEOUT);
 
-        // execute action from extra bundle
+        // execute action from extra bundle, the queries run on the executor of NtpSyncUtils
+        NtpQueryFuture<?> future;
         switch (action) {
         case ACTION_QUERY:
 
-            // return time to ui
-            Bundle messageData = new Bundle();
-            try {
-                offset = NtpSyncUtils.query(ntpHostname);
-                returnMessage = RETURN_OKAY;
-
-                // calculate new time
-                Date newTime = new Date(System.currentTimeMillis() + offset);
-
-                messageData.putSerializable(MESSAGE_DATA_TIME, newTime);
-
-                if (mData.containsKey(DATA_APPLY_DIRECTLY)) {
-                    if (mData.getBoolean(DATA_APPLY_DIRECTLY)) {
-                        returnMessage = Utils.setTime(offset);
-                    }
-                }
-            } catch (IOException e) {
-                returnMessage = RETURN_SERVER_TIMEOUT;
-                Log.d(Constants.TAG, "Timeout on server!");
-            }
-
-            if (noMessenger && PreferenceHelper.getShowSyncToast(this)) {
-                Message msg = Message.obtain();
-                msg.arg1 = returnMessage;
-                msg.setData(messageData);
-                handleResult(msg);
+            if (PreferenceHelper.getQueryMultipleServers(this)) {
+                future = NtpSyncUtils.multiQueryAsync(ntpHostnames, data.getInt(DATA_BURST, 1),
+                        data.getInt(DATA_BURST_INTERVAL, 0), NtpSyncUtils.QUERY_TIMEOUT,
+                        new OffsetCallback<NtpSyncResult>(messenger, data, lease) {
+                            @Override
+                            NtpSample getSample(NtpSyncResult result) {
+                                return result.getSystemPeer();
+                            }
+
+                            @Override
+                            long getOffset(NtpSyncResult result) {
+                                return result.getOffset();
+                            }
+
+                            @Override
+                            double getJitter(NtpSyncResult result) {
+                                return result.getJitter();
+                            }
+
+                            @Override
+                            double getRootDistance(NtpSyncResult result) {
+                                return result.getErrorBound();
+                            }
+                        });
             } else {
-                sendMessageToHandler(returnMessage, messageData);
+                // fail over to the next server instead of waiting for one that does not answer
+                future = NtpSyncUtils.failoverQueryAsync(ntpHostnames, data.getInt(DATA_BURST, 1),
+                        data.getInt(DATA_BURST_INTERVAL, 0), NtpSyncUtils.QUERY_TIMEOUT,
+                        new OffsetCallback<NtpSample>(messenger, data, lease) {
+                            @Override
+                            NtpSample getSample(NtpSample result) {
+                                return result;
+                            }
+                        });
             }
 
             break;
 
         case ACTION_QUERY_DETAILED:
 
-            String output = null;
-            Bundle messageDataDetailedQuery = null;
-            try {
-                TimeInfo info = NtpSyncUtils.detailedQuery(ntpHostname);
-
-                output = NtpSyncUtils.processResponse(info, this);
+            future = NtpSyncUtils.detailedQueryAsync(ntpHostnames[0], NtpSyncUtils.QUERY_TIMEOUT,
+                    new QueryCallback<TimeInfo>(messenger, data, lease) {
+                        @Override
+                        int onResult(TimeInfo result, Bundle messageData) {
+                            // formatting resolves the reference id, it is only shown
+                            releaseWakeLock();
 
-                // return detailed output to ui
-                messageDataDetailedQuery = new Bundle();
-                messageDataDetailedQuery.putSerializable(MESSAGE_DATA_DETAILED_OUTPUT, output);
+                            String output = NtpSyncUtils.processResponse(result,
+                                    NtpSyncService.this);
 
-                returnMessage = RETURN_OKAY;
-            } catch (IOException e) {
-                returnMessage = RETURN_SERVER_TIMEOUT;
-                Log.d(Constants.TAG, "Timeout on server!");
-            }
+                            // return detailed output to ui
+                            messageData.putSerializable(MESSAGE_DATA_DETAILED_OUTPUT, output);
 
-            if (noMessenger && PreferenceHelper.getShowSyncToast(this)) {
-                Message msg = Message.obtain();
-                msg.arg1 = returnMessage;
-                msg.setData(messageDataDetailedQuery);
-                handleResult(msg);
-            } else {
-                sendMessageToHandler(returnMessage, messageDataDetailedQuery);
-            }
+                            return RETURN_OKAY;
+                        }
+                    });
 
             break;
 
         default:
-            break;
-
+            // not possible, the action has been validated
+            lease.release();
+            return;
         }
 
-        // unlock cpu
-        unlock();
+        // the worker thread waits for the query and its callback, so the service stays started
+        // and the process is not killed in the middle of a sync
+        try {
+            if (!future.awaitCallback(WAKE_LOCK_TIMEOUT)) {
+                Log.e(Constants.TAG, "Sync did not finish in time, cancelling it!");
+                future.cancel(true);
+                lease.release();
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            lease.release();
+        }
     }
 
     private void handleResult(final Message message) {
@@ -275,7 +449,8 @@ public class NtpSyncService extends IntentService {
         });
     }
 
-    private void sendMessageToHandler(Integer arg1, Integer arg2, Bundle messageData) {
+    private void sendMessageToHandler(Messenger messenger, Integer arg1, Integer arg2,
+            Bundle messageData) {
         Message msg = Message.obtain();
         msg.arg1 = arg1;
         if (arg2 != null) {
@@ -286,7 +461,7 @@ public class NtpSyncService extends IntentService {
         }
 
         try {
-            mMessenger.send(msg);
+            messenger.send(msg);
         } catch (RemoteException e) {
             Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
         } catch (NullPointerException e) {
@@ -294,8 +469,8 @@ public class NtpSyncService extends IntentService {
         }
     }
 
-    private void sendMessageToHandler(Integer arg1, Bundle messageData) {
-        sendMessageToHandler(arg1, null, messageData);
+    private void sendMessageToHandler(Messenger messenger, Integer arg1, Bundle messageData) {
+        sendMessageToHandler(messenger, arg1, null, messageData);
     }
 
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Output of queryServers of INtpSyncRemoteService: the sample of every answering server and
+ * the offset combined from them. All times are in milliseconds.
+ * <p>
+ * Clients of the remote service need a copy of this class in the same package.
+ */
+public class QueryResult implements Parcelable {
+    private ServerSample[] mSamples = new ServerSample[0];
+    private int mSystemPeer = -1;
+    private double mOffset;
+    private double mJitter;
+    private double mErrorBound;
+    private long mAge;
+
+    public QueryResult() {
+    }
+
+    private QueryResult(Parcel in) {
+        readFromParcel(in);
+    }
+
+    void set(ServerSample[] samples, int systemPeer, double offset, double jitter,
+            double errorBound, long age) {
+        mSamples = samples;
+        mSystemPeer = systemPeer;
+        mOffset = offset;
+        mJitter = jitter;
+        mErrorBound = errorBound;
+        mAge = age;
+    }
+
+    /**
+     * @return samples of all servers that answered
+     */
+    public ServerSample[] getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return sample of the server with the smallest root distance among the survivors, null if
+     *         there was no answer
+     */
+    public ServerSample getSystemPeer() {
+        return (mSystemPeer >= 0 && mSystemPeer < mSamples.length) ? mSamples[mSystemPeer] : null;
+    }
+
+    /**
+     * @return combined offset, rounded to milliseconds
+     */
+    public long getOffset() {
+        return Math.round(mOffset);
+    }
+
+    public double getOffsetDouble() {
+        return mOffset;
+    }
+
+    /**
+     * @return system jitter of the combined offset
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * @return maximum error of the combined offset when it was measured
+     */
+    public double getErrorBound() {
+        return mErrorBound;
+    }
+
+    /**
+     * @return time since the servers were queried
+     */
+    public long getAge() {
+        return mAge;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedArray(mSamples, flags);
+        dest.writeInt(mSystemPeer);
+        dest.writeDouble(mOffset);
+        dest.writeDouble(mJitter);
+        dest.writeDouble(mErrorBound);
+        dest.writeLong(mAge);
+    }
+
+    /**
+     * Used by AIDL for out parameters
+     */
+    public void readFromParcel(Parcel in) {
+        mSamples = in.createTypedArray(ServerSample.CREATOR);
+        mSystemPeer = in.readInt();
+        mOffset = in.readDouble();
+        mJitter = in.readDouble();
+        mErrorBound = in.readDouble();
+        mAge = in.readLong();
+    }
+
+    public static final Parcelable.Creator<QueryResult> CREATOR =
+            new Parcelable.Creator<QueryResult>() {
+                @Override
+                public QueryResult createFromParcel(Parcel in) {
+                    return new QueryResult(in);
+                }
+
+                @Override
+                public QueryResult[] newArray(int size) {
+                    return new QueryResult[size];
+                }
+            };
+}
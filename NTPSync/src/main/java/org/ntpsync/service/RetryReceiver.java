@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.service;
+
+import org.ntpsync.util.Constants;
+import org.ntpsync.util.Log;
+import org.ntpsync.util.RetryScheduler;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the alarms of RetryScheduler and starts a sync if there is connectivity, otherwise
+ * ConnectivityReceiver is enabled to start it later
+ */
+public class RetryReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(Constants.TAG, "RetryReceiver invoked with " + intent.getAction());
+
+        Context appContext = context.getApplicationContext();
+
+        if (RetryScheduler.ACTION_DEBOUNCED.equals(intent.getAction())) {
+            RetryScheduler.onDebounced(appContext);
+        }
+
+        // the sync may have been disabled in the meantime
+        String origin = intent.getStringExtra(RetryScheduler.EXTRA_ORIGIN);
+        if (origin == null) {
+            origin = RetryScheduler.ORIGIN_DAILY;
+        }
+        if (RetryScheduler.isEnabled(appContext, origin)) {
+            new DailyListener().sendWakefulWork(appContext, origin);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Sample of one NTP server, part of a QueryResult. All times are in milliseconds.
+ * <p>
+ * Clients of the remote service need a copy of this class in the same package.
+ */
+public class ServerSample implements Parcelable {
+    private final String mHostname;
+    private final String mAddress;
+    private final long mTime;
+    private final long mOffset;
+    private final long mDelay;
+    private final double mJitter;
+    private final int mStratum;
+    private final int mLeapIndicator;
+    private final double mRootDelay;
+    private final double mRootDispersion;
+    private final double mRootDistance;
+    private final boolean mSurvivor;
+
+    public ServerSample(String hostname, String address, long time, long offset, long delay,
+            double jitter, int stratum, int leapIndicator, double rootDelay,
+            double rootDispersion, double rootDistance, boolean survivor) {
+        mHostname = hostname;
+        mAddress = address;
+        mTime = time;
+        mOffset = offset;
+        mDelay = delay;
+        mJitter = jitter;
+        mStratum = stratum;
+        mLeapIndicator = leapIndicator;
+        mRootDelay = rootDelay;
+        mRootDispersion = rootDispersion;
+        mRootDistance = rootDistance;
+        mSurvivor = survivor;
+    }
+
+    private ServerSample(Parcel in) {
+        mHostname = in.readString();
+        mAddress = in.readString();
+        mTime = in.readLong();
+        mOffset = in.readLong();
+        mDelay = in.readLong();
+        mJitter = in.readDouble();
+        mStratum = in.readInt();
+        mLeapIndicator = in.readInt();
+        mRootDelay = in.readDouble();
+        mRootDispersion = in.readDouble();
+        mRootDistance = in.readDouble();
+        mSurvivor = (in.readInt() != 0);
+    }
+
+    /**
+     * @return hostname the server was queried by
+     */
+    public String getHostname() {
+        return mHostname;
+    }
+
+    /**
+     * @return address the reply came from
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return local time when the reply was received
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public long getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * @return jitter of the requests to this server, 0 if only one was answered
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public int getStratum() {
+        return mStratum;
+    }
+
+    public int getLeapIndicator() {
+        return mLeapIndicator;
+    }
+
+    public double getRootDelay() {
+        return mRootDelay;
+    }
+
+    public double getRootDispersion() {
+        return mRootDispersion;
+    }
+
+    /**
+     * @return maximum error of the offset of this server
+     */
+    public double getRootDistance() {
+        return mRootDistance;
+    }
+
+    /**
+     * @return true if the sample survived selection and clustering and is part of the combined
+     *         offset
+     */
+    public boolean isSurvivor() {
+        return mSurvivor;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mHostname);
+        dest.writeString(mAddress);
+        dest.writeLong(mTime);
+        dest.writeLong(mOffset);
+        dest.writeLong(mDelay);
+        dest.writeDouble(mJitter);
+        dest.writeInt(mStratum);
+        dest.writeInt(mLeapIndicator);
+        dest.writeDouble(mRootDelay);
+        dest.writeDouble(mRootDispersion);
+        dest.writeDouble(mRootDistance);
+        dest.writeInt(mSurvivor ? 1 : 0);
+    }
+
+    public static final Parcelable.Creator<ServerSample> CREATOR =
+            new Parcelable.Creator<ServerSample>() {
+                @Override
+                public ServerSample createFromParcel(Parcel in) {
+                    return new ServerSample(in);
+                }
+
+                @Override
+                public ServerSample[] newArray(int size) {
+                    return new ServerSample[size];
+                }
+            };
+}
@@ -23,10 +23,14 @@ package org.ntpsync.ui;
 import java.text.DateFormat;
 import java.util.Date;
 
+import org.ntpsync.BuildConfig;
 import org.ntpsync.R;
 import org.ntpsync.service.DailyListener;
 import org.ntpsync.service.NtpSyncService;
+import org.ntpsync.util.ClockSetters;
 import org.ntpsync.util.Constants;
+import org.ntpsync.util.DnsCache;
+import org.ntpsync.util.DriftCorrector;
 import org.ntpsync.util.PreferenceHelper;
 import org.ntpsync.util.Utils;
 
@@ -41,6 +45,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Messenger;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.text.Html;
@@ -54,8 +59,11 @@ public class BaseActivity extends PreferenceActivity {
     private Preference mQuery;
     private Preference mDetailedQuery;
     private Preference mQueryAndSet;
+    private Preference mSyncHistory;
 
     private Preference mSyncDailyPref;
+    private Preference mNtpServerPref;
+    private Preference mDriftCorrectionPref;
 
     private Preference mHelp;
 
@@ -102,9 +110,41 @@ public class BaseActivity extends PreferenceActivity {
         mQuery = (Preference) findPreference(getString(R.string.pref_query_key));
         mDetailedQuery = (Preference) findPreference(getString(R.string.pref_detailed_query_key));
         mQueryAndSet = (Preference) findPreference(getString(R.string.pref_query_and_set_key));
+        mSyncHistory = findPreference(getString(R.string.pref_sync_history_key));
         mSyncDailyPref = findPreference(getString(R.string.pref_sync_daily_key));
+        mNtpServerPref = findPreference(getString(R.string.pref_ntp_server_key));
+        mDriftCorrectionPref = findPreference(getString(R.string.pref_drift_correction_key));
         mHelp = (Preference) findPreference(getString(R.string.pref_help_key));
 
+        mSyncHistory.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                startActivity(new Intent(mActivity, SyncHistoryActivity.class));
+
+                return false;
+            }
+
+        });
+
+        // cost accounting is only of interest when tuning the schedule
+        if (BuildConfig.DEBUG) {
+            findPreference(getString(R.string.pref_sync_cost_key)).setOnPreferenceClickListener(
+                    new OnPreferenceClickListener() {
+
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            startActivity(new Intent(mActivity, SyncCostActivity.class));
+
+                            return false;
+                        }
+
+                    });
+        } else {
+            getPreferenceScreen().removePreference(
+                    findPreference(getString(R.string.pref_debug_key)));
+        }
+
         mQuery.setOnPreferenceClickListener(new OnPreferenceClickListener() {
 
             @Override
@@ -179,6 +219,9 @@ public class BaseActivity extends PreferenceActivity {
 
             @Override
             public boolean onPreferenceClick(Preference preference) {
+                // asked for by the user, so ask for root again even if it was denied before
+                ClockSetters.retryRoot(mActivity);
+
                 // start progress indicator
                 setIndeterminateProgress(true);
 
@@ -340,6 +383,33 @@ public class BaseActivity extends PreferenceActivity {
                 } else {
                     WakefulIntentService.cancelAlarms(mActivity);
                 }
+                DriftCorrector.schedule(mActivity);
+
+                return false;
+            }
+
+        });
+
+        /*
+         * Resolve changed NTP servers in the background, so that the next sync does not have to
+         * wait for DNS
+         */
+        mNtpServerPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                DnsCache.prefetch(PreferenceHelper.splitNtpServers(newValue.toString()));
+
+                return true;
+            }
+
+        });
+
+        mDriftCorrectionPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                DriftCorrector.schedule(mActivity);
 
                 return false;
             }
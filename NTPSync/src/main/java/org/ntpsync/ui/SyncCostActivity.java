@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.ui;
+
+import java.util.Locale;
+
+import org.ntpsync.R;
+import org.ntpsync.util.SyncCostLog;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.TextView;
+
+/**
+ * Debug screen showing percentiles of the cost of the most recent syncs
+ */
+public class SyncCostActivity extends Activity {
+    private TextView mText;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.sync_cost_activity);
+        mText = (TextView) findViewById(R.id.sync_cost_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        Bundle summary = SyncCostLog.getSummary(this);
+        int count = summary.getInt(SyncCostLog.SUMMARY_COUNT);
+        if (count == 0) {
+            mText.setText(R.string.sync_cost_none);
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(getString(R.string.sync_cost_count, count)).append("\n\n");
+        sb.append(String.format(Locale.US, "%-16s", ""));
+        for (double percentile : SyncCostLog.PERCENTILES) {
+            sb.append(String.format(Locale.US, "%9s", (percentile < 100) ? "p"
+                    + (int) percentile : "max"));
+        }
+        sb.append('\n');
+
+        appendRow(sb, R.string.sync_cost_wake_lock_time,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_WAKE_LOCK_TIME));
+        appendRow(sb, R.string.sync_cost_dns_time,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_DNS_TIME));
+        appendRow(sb, R.string.sync_cost_socket_time,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_SOCKET_TIME));
+        appendRow(sb, R.string.sync_cost_root_shell_time,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_ROOT_SHELL_TIME));
+        appendRow(sb, R.string.sync_cost_slew_time,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_SLEW_TIME));
+        appendRow(sb, R.string.sync_cost_packets,
+                summary.getDoubleArray(SyncCostLog.SUMMARY_PACKETS));
+        appendRow(sb, R.string.sync_cost_bytes, summary.getDoubleArray(SyncCostLog.SUMMARY_BYTES));
+
+        mText.setText(sb.toString());
+    }
+
+    private void appendRow(StringBuilder sb, int label, double[] percentiles) {
+        sb.append(String.format(Locale.US, "%-16s", getString(label)));
+        for (double value : percentiles) {
+            sb.append(String.format(Locale.US, "%9.1f", value));
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.ui;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.ntpsync.R;
+import org.ntpsync.service.NtpSyncService;
+import org.ntpsync.util.SyncHistory;
+
+import android.app.Activity;
+import android.app.AlarmManager;
+import android.os.Bundle;
+import android.widget.TextView;
+
+/**
+ * Shows the syncs and corrections of the clock of the last week, most recent first
+ */
+public class SyncHistoryActivity extends Activity {
+    private static final long RANGE = 7 * AlarmManager.INTERVAL_DAY;
+
+    private TextView mText;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.sync_history_activity);
+        mText = (TextView) findViewById(R.id.sync_history_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        long now = System.currentTimeMillis();
+        List<SyncHistory.Sample> samples = SyncHistory.getSamples(this, now - RANGE,
+                Long.MAX_VALUE);
+        if (samples.isEmpty()) {
+            mText.setText(R.string.sync_history_none);
+            return;
+        }
+
+        DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+        StringBuilder sb = new StringBuilder();
+        for (int i = samples.size() - 1; i >= 0; i--) {
+            SyncHistory.Sample sample = samples.get(i);
+            String time = format.format(new Date(sample.getTime()));
+            if (sample.isCorrection()) {
+                sb.append(getString(R.string.sync_history_correction, time, sample.getOffset()));
+                if (sample.getOutcome() != NtpSyncService.RETURN_OKAY) {
+                    sb.append(", ").append(getOutcome(sample.getOutcome()));
+                }
+            } else if (sample.isMeasured()) {
+                sb.append(getString(R.string.sync_history_sync, time, sample.getOffset(),
+                        sample.getDelay(), sample.getStratum(), sample.getAddress()));
+            } else {
+                sb.append(getString(R.string.sync_history_failed, time,
+                        getOutcome(sample.getOutcome())));
+            }
+            sb.append('\n');
+        }
+
+        mText.setText(sb.toString());
+    }
+
+    private String getOutcome(int outcome) {
+        switch (outcome) {
+        case NtpSyncService.RETURN_SERVER_TIMEOUT:
+            return getString(R.string.return_timeout);
+        case NtpSyncService.RETURN_NO_ROOT:
+            return getString(R.string.return_no_root);
+        default:
+            return getString(R.string.return_generic_error);
+        }
+    }
+}
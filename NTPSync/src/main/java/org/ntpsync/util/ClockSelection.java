@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.net.ntp.NtpV3Packet;
+
+/**
+ * Selection, clustering and combining of samples from several NTP servers as described in RFC
+ * 5905, section 11.2. Falsetickers are removed by intersecting the correctness intervals, outliers
+ * are removed by clustering and the survivors are averaged weighted by their root distance.
+ */
+public class ClockSelection {
+
+    /**
+     * Minimum number of survivors the clustering keeps (NMIN)
+     */
+    public static final int MIN_SURVIVORS = 3;
+
+    /**
+     * Samples with a larger root distance are not usable (MAXDIST)
+     */
+    public static final double MAX_DISTANCE = 1500;
+
+    /**
+     * Servers with this stratum or higher are unsynchronized (MAXSTRAT)
+     */
+    public static final int MAX_STRATUM = 16;
+
+    private static final int TYPE_LOW = -1;
+    private static final int TYPE_MID = 0;
+    private static final int TYPE_HIGH = 1;
+
+    private static class Endpoint {
+        final double value;
+        final int type;
+
+        Endpoint(double value, int type) {
+            this.value = value;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Checks if a sample is usable at all, see fit() in RFC 5905
+     *
+     * @param sample
+     * @return true if usable
+     */
+    public static boolean isFit(NtpSample sample) {
+        if (sample.getLeapIndicator() == NtpV3Packet.LI_ALARM_CONDITION) {
+            return false;
+        }
+        if (sample.getStratum() <= 0 || sample.getStratum() >= MAX_STRATUM) {
+            return false;
+        }
+        if (sample.getRootDistance() > MAX_DISTANCE) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Selects truechimers, clusters and combines them
+     *
+     * @param samples
+     * @return combined result or null if there is no majority of servers agreeing on the time
+     */
+    public static NtpSyncResult select(List<NtpSample> samples) {
+        ArrayList<NtpSample> candidates = new ArrayList<NtpSample>();
+        for (NtpSample sample : samples) {
+            if (isFit(sample)) {
+                candidates.add(sample);
+            } else {
+                Log.d(Constants.TAG, "Sample is not fit: " + sample);
+            }
+        }
+        int n = candidates.size();
+        if (n == 0) {
+            return null;
+        }
+
+        /* intersection algorithm: find the smallest interval containing points from the largest
+         * number of correctness intervals */
+        ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>(3 * n);
+        for (NtpSample sample : candidates) {
+            double distance = sample.getRootDistance();
+            endpoints.add(new Endpoint(sample.getOffset() - distance, TYPE_LOW));
+            endpoints.add(new Endpoint(sample.getOffset(), TYPE_MID));
+            endpoints.add(new Endpoint(sample.getOffset() + distance, TYPE_HIGH));
+        }
+        Collections.sort(endpoints, new Comparator<Endpoint>() {
+            @Override
+            public int compare(Endpoint lhs, Endpoint rhs) {
+                int result = Double.compare(lhs.value, rhs.value);
+                return (result != 0) ? result : lhs.type - rhs.type;
+            }
+        });
+
+        double low = 0;
+        double high = 0;
+        int allow;
+        for (allow = 0; 2 * allow < n; allow++) {
+            int found = 0;
+            int chime = 0;
+            low = Double.MAX_VALUE;
+            high = -Double.MAX_VALUE;
+
+            for (int i = 0; i < endpoints.size(); i++) {
+                Endpoint e = endpoints.get(i);
+                chime -= e.type;
+                if (chime >= n - allow) {
+                    low = e.value;
+                    break;
+                }
+                if (e.type == TYPE_MID) {
+                    found++;
+                }
+            }
+
+            chime = 0;
+            for (int i = endpoints.size() - 1; i >= 0; i--) {
+                Endpoint e = endpoints.get(i);
+                chime += e.type;
+                if (chime >= n - allow) {
+                    high = e.value;
+                    break;
+                }
+                if (e.type == TYPE_MID) {
+                    found++;
+                }
+            }
+
+            // more midpoints outside than allowed falsetickers, allow one more
+            if (found > allow) {
+                continue;
+            }
+            if (high >= low) {
+                break;
+            }
+        }
+        if (2 * allow >= n || high < low) {
+            Log.d(Constants.TAG, "No majority clique found among " + n + " candidates!");
+            return null;
+        }
+
+        // truechimers are all candidates whose correctness interval overlaps the intersection
+        ArrayList<NtpSample> survivors = new ArrayList<NtpSample>();
+        for (NtpSample sample : candidates) {
+            double distance = sample.getRootDistance();
+            if (sample.getOffset() + distance >= low && sample.getOffset() - distance <= high) {
+                survivors.add(sample);
+            } else {
+                Log.d(Constants.TAG, "Falseticker: " + sample);
+            }
+        }
+
+        // best first, stratum is weighted higher than root distance like in RFC 5905
+        Collections.sort(survivors, new Comparator<NtpSample>() {
+            @Override
+            public int compare(NtpSample lhs, NtpSample rhs) {
+                return Double.compare(lhs.getStratum() * MAX_DISTANCE + lhs.getRootDistance(),
+                        rhs.getStratum() * MAX_DISTANCE + rhs.getRootDistance());
+            }
+        });
+
+        /* clustering algorithm: remove the survivor with the largest selection jitter until it
+         * is smaller than the smallest peer jitter or only MIN_SURVIVORS are left */
+        while (survivors.size() > MIN_SURVIVORS) {
+            int size = survivors.size();
+            int worst = -1;
+            double maxSelectionJitter = -1;
+            double minPeerJitter = Double.MAX_VALUE;
+
+            for (int i = 0; i < size; i++) {
+                NtpSample sample = survivors.get(i);
+                double sum = 0;
+                for (int j = 0; j < size; j++) {
+                    double diff = sample.getOffset() - survivors.get(j).getOffset();
+                    sum += diff * diff;
+                }
+                double selectionJitter = Math.sqrt(sum / (size - 1));
+                if (selectionJitter > maxSelectionJitter) {
+                    maxSelectionJitter = selectionJitter;
+                    worst = i;
+                }
+                minPeerJitter = Math.min(minPeerJitter, sample.getJitter());
+            }
+
+            if (maxSelectionJitter <= minPeerJitter) {
+                break;
+            }
+            Log.d(Constants.TAG, "Outlier: " + survivors.get(worst));
+            survivors.remove(worst);
+        }
+
+        // combining algorithm: average weighted by reciprocal root distance
+        NtpSample systemPeer = survivors.get(0);
+        double x = 0;
+        double y = 0;
+        double z = 0;
+        for (NtpSample sample : survivors) {
+            double weight = 1 / Math.max(sample.getRootDistance(), Double.MIN_VALUE);
+            double diff = sample.getOffset() - systemPeer.getOffset();
+            x += weight;
+            y += weight * sample.getOffset();
+            z += weight * diff * diff;
+        }
+        double offset = y / x;
+        double jitter = Math.sqrt(systemPeer.getJitter() * systemPeer.getJitter() + z / x);
+
+        Log.d(Constants.TAG, "Combined offset " + offset + " +/- " + jitter + " from "
+                + survivors.size() + " of " + samples.size() + " samples");
+
+        return new NtpSyncResult(offset, jitter, systemPeer, survivors, samples);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.ShellPool;
+import org.sufficientlysecure.rootcommands.Toolbox;
+import org.sufficientlysecure.rootcommands.command.ExecutableCommand;
+import org.sufficientlysecure.rootcommands.command.SimpleExecutableCommand;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Backend used to correct the system clock. Which backends work and how fast they are depends
+ * on the device, see ClockSetters for the selection.
+ */
+public abstract class ClockSetter {
+
+    /**
+     * @return name of the backend, stored to remember the selection
+     */
+    public abstract String getName();
+
+    /**
+     * Cheap check if the backend can work on this device at all, it may still fail when used
+     * 
+     * @param context
+     * @return false if the backend must not be used
+     */
+    public abstract boolean isAvailable(Context context);
+
+    /**
+     * @return true if the backend asks for root access
+     */
+    public abstract boolean needsRoot();
+
+    /**
+     * Goes through the same processes as adjust() without changing the clock, used to measure
+     * the backend
+     * 
+     * @param context
+     * @throws IOException
+     *             also RootAccessDeniedException if root is needed and was denied
+     * @throws TimeoutException
+     */
+    public abstract void probe(Context context) throws IOException, TimeoutException;
+
+    /**
+     * Steps the clock by offset
+     * 
+     * @param context
+     * @param offset
+     * @throws IOException
+     *             also RootAccessDeniedException if root is needed and was denied
+     * @throws TimeoutException
+     */
+    public abstract void adjust(Context context, long offset) throws IOException,
+            TimeoutException;
+
+    /**
+     * Applies offset in steps of at most maxStep every interval milliseconds, so the clock runs
+     * only slightly slower or faster instead of jumping by the whole offset. For negative offsets
+     * every step still sets it back by up to maxStep. If the thread is interrupted the rest is
+     * applied at once.
+     * 
+     * @param context
+     * @param offset
+     * @param maxStep
+     * @param interval
+     * @throws IOException
+     * @throws TimeoutException
+     */
+    public void slew(Context context, long offset, long maxStep, long interval)
+            throws IOException, TimeoutException {
+        long remaining = offset;
+        boolean interrupted = false;
+        while (remaining != 0) {
+            long step = interrupted ? remaining : Math.max(-maxStep, Math.min(maxStep, remaining));
+            adjust(context, step);
+            remaining -= step;
+
+            if (remaining != 0) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sets the clock via SystemClock.setCurrentTimeMillis() while /dev/alarm is made writable
+     * for us by a root shell
+     */
+    public static class DevAlarm extends ClockSetter {
+        public static final String NAME = "dev_alarm";
+        private static final String DEV_ALARM = "/dev/alarm";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            return true;
+        }
+
+        @Override
+        public boolean needsRoot() {
+            return true;
+        }
+
+        @Override
+        public void probe(Context context) throws IOException, TimeoutException {
+            Shell rootShell = ShellPool.acquireRootShell();
+            try {
+                // the shell commands of adjust() without the chmod
+                if (new Toolbox(rootShell).getFilePermissions(DEV_ALARM) == null) {
+                    throw new IOException(DEV_ALARM + " does not exist");
+                }
+            } finally {
+                ShellPool.releaseRootShell(rootShell);
+            }
+        }
+
+        @Override
+        public void adjust(Context context, long offset) throws IOException, TimeoutException {
+            Shell rootShell = ShellPool.acquireRootShell();
+            try {
+                new Toolbox(rootShell).adjustSystemClock(offset);
+            } finally {
+                ShellPool.releaseRootShell(rootShell);
+            }
+        }
+
+        @Override
+        public void slew(Context context, long offset, long maxStep, long interval)
+                throws IOException, TimeoutException {
+            // keep /dev/alarm writable for all steps instead of changing permissions per step
+            Shell rootShell = ShellPool.acquireRootShell();
+            try {
+                new Toolbox(rootShell).slewSystemClock(offset, maxStep, interval);
+            } finally {
+                ShellPool.releaseRootShell(rootShell);
+            }
+        }
+    }
+
+    /**
+     * Runs the executable libsettime_exec.so as root, which adds the offset to CLOCK_REALTIME
+     * with clock_settime() in one process, so the latency of the shell and of chmod do not add
+     * to the error. Slewing is done by the executable as well. It is built by ndk-build from
+     * src/main/jni and only available if it is packaged for the architecture of the device. It
+     * is position independent, which Android runs since 4.1.
+     */
+    public static class Executable extends ClockSetter {
+        public static final String NAME = "executable";
+        public static final String EXECUTABLE_NAME = "settime";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            return Build.VERSION.SDK_INT >= 16
+                    && ExecutableCommand.getExecutable(context, EXECUTABLE_NAME).exists();
+        }
+
+        @Override
+        public boolean needsRoot() {
+            return true;
+        }
+
+        @Override
+        public void probe(Context context) throws IOException, TimeoutException {
+            // without arguments it only checks that it runs as root
+            run(context, "");
+        }
+
+        @Override
+        public void adjust(Context context, long offset) throws IOException, TimeoutException {
+            run(context, Long.toString(offset));
+        }
+
+        /**
+         * The executable applies all steps, the rest is not applied at once if the thread is
+         * interrupted
+         */
+        @Override
+        public void slew(Context context, long offset, long maxStep, long interval)
+                throws IOException, TimeoutException {
+            run(context, offset + " " + maxStep + " " + interval);
+        }
+
+        private void run(Context context, String parameters) throws IOException,
+                TimeoutException {
+            SimpleExecutableCommand command = new SimpleExecutableCommand(context,
+                    EXECUTABLE_NAME, parameters);
+
+            Shell rootShell = ShellPool.acquireRootShell();
+            try {
+                rootShell.add(command).waitForFinish();
+            } finally {
+                ShellPool.releaseRootShell(rootShell);
+            }
+
+            if (command.getExitCode() != 0) {
+                throw new IOException(EXECUTABLE_NAME + " failed with exit code "
+                        + command.getExitCode() + ": " + command.getOutput());
+            }
+        }
+    }
+
+    /**
+     * Sets the clock using AlarmManager.setTime(), which needs no root but the SET_TIME
+     * permission only granted to system apps. Available on Android 2.2 and newer if NTPSync is
+     * installed as system app.
+     */
+    public static class AlarmManagerSetter extends ClockSetter {
+        public static final String NAME = "alarm_manager";
+        private static final String PERMISSION_SET_TIME = "android.permission.SET_TIME";
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public boolean isAvailable(Context context) {
+            // check our own permission, this may run on a binder thread of a remote caller
+            return Build.VERSION.SDK_INT >= 8
+                    && context.checkPermission(PERMISSION_SET_TIME, Process.myPid(),
+                            Process.myUid()) == PackageManager.PERMISSION_GRANTED;
+        }
+
+        @Override
+        public boolean needsRoot() {
+            return false;
+        }
+
+        @Override
+        public void probe(Context context) {
+            // a call of the alarm manager service, nothing to measure without setting the time
+        }
+
+        @SuppressLint("NewApi")
+        @Override
+        public void adjust(Context context, long offset) throws IOException {
+            AlarmManager alarmManager = (AlarmManager) context
+                    .getSystemService(Context.ALARM_SERVICE);
+            try {
+                alarmManager.setTime(System.currentTimeMillis() + offset);
+            } catch (SecurityException e) {
+                throw new IOException("Setting time was not permitted: " + e.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import org.apache.commons.net.ntp.HighResolutionClock;
+import org.ntpsync.service.NtpSyncService;
+import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Selects the ClockSetter used to correct the clock. Every available backend is measured once
+ * with a round trip that does not change the clock, the fastest one that works is used from then
+ * on. The selection is
+ * stored together with the build fingerprint, so it is measured again after a system update. If
+ * the selected backend fails, the others are tried and the selection is measured again on the
+ * next correction.
+ * <p>
+ * Denied root access is remembered for ROOT_RETRY_INTERVAL, so that automatic corrections do not
+ * ask for root again every time. An explicit request of the user retries at once, see
+ * retryRoot().
+ */
+public class ClockSetters {
+    private static final String PREFS_NAME = "clock_setter";
+    private static final String PREF_SELECTED = "selected";
+    private static final String PREF_FINGERPRINT = "fingerprint";
+    private static final String PREF_ROOT_DENIED = "root_denied";
+
+    private static final long ROOT_RETRY_INTERVAL = AlarmManager.INTERVAL_DAY;
+
+    // the first shell command starts su, measure twice so the root backends are compared warm
+    private static final int MEASUREMENTS = 2;
+
+    // used in this order if no selection is possible
+    private static final ClockSetter[] BACKENDS = { new ClockSetter.AlarmManagerSetter(),
+            new ClockSetter.Executable(), new ClockSetter.DevAlarm() };
+
+    private static ClockSetter sSelected;
+
+    /**
+     * Corrects the clock by offset using the selected backend
+     * 
+     * @param context
+     * @param offset
+     * @param slew
+     *            apply offset gradually in steps of at most maxStep every interval milliseconds
+     * @param maxStep
+     * @param interval
+     * @return one of the RETURN_ codes of NtpSyncService
+     */
+    public static synchronized int adjust(Context context, long offset, boolean slew,
+            long maxStep, long interval) {
+        ClockSetter selected = getSelected(context);
+        int returnMessage = NtpSyncService.RETURN_GENERIC_ERROR;
+
+        if (selected != null && isUsable(context, selected)) {
+            returnMessage = adjust(context, selected, offset, slew, maxStep, interval);
+            if (returnMessage == NtpSyncService.RETURN_OKAY) {
+                return returnMessage;
+            }
+            if (returnMessage == NtpSyncService.RETURN_NO_ROOT) {
+                // the backend works, it only needs root again
+                setRootDenied(context);
+            } else {
+                // measure again on next correction
+                forget(context);
+            }
+        } else if (isRootDenied(context)) {
+            returnMessage = NtpSyncService.RETURN_NO_ROOT;
+        }
+
+        for (ClockSetter setter : BACKENDS) {
+            if (setter == selected || !isUsable(context, setter)) {
+                continue;
+            }
+            int result = adjust(context, setter, offset, slew, maxStep, interval);
+            if (result == NtpSyncService.RETURN_OKAY) {
+                return result;
+            }
+            if (result == NtpSyncService.RETURN_NO_ROOT) {
+                setRootDenied(context);
+            }
+            // keep denied root access, it is the most helpful error for the user
+            if (returnMessage != NtpSyncService.RETURN_NO_ROOT) {
+                returnMessage = result;
+            }
+        }
+
+        return returnMessage;
+    }
+
+    /**
+     * @param context
+     * @return the selected backend, measured if not selected on this build yet, null if none
+     *         works
+     */
+    public static synchronized ClockSetter getSelected(Context context) {
+        if (sSelected != null) {
+            return sSelected;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        if (Build.FINGERPRINT.equals(prefs.getString(PREF_FINGERPRINT, null))) {
+            String name = prefs.getString(PREF_SELECTED, null);
+            for (ClockSetter setter : BACKENDS) {
+                if (setter.getName().equals(name) && isUsable(context, setter)) {
+                    sSelected = setter;
+                    return sSelected;
+                }
+            }
+        }
+
+        sSelected = measure(context);
+        if (sSelected != null) {
+            SharedPreferences.Editor editor = prefs.edit();
+            editor.putString(PREF_SELECTED, sSelected.getName());
+            editor.putString(PREF_FINGERPRINT, Build.FINGERPRINT);
+            editor.commit();
+        }
+        return sSelected;
+    }
+
+    /**
+     * Forgets the selected backend, it is measured again on next use
+     * 
+     * @param context
+     */
+    public static synchronized void forget(Context context) {
+        sSelected = null;
+        getPrefs(context).edit().remove(PREF_SELECTED).remove(PREF_FINGERPRINT).commit();
+    }
+
+    /**
+     * Asks for root access on the next correction even if it has been denied recently, called
+     * when the user explicitly wants to set the time
+     * 
+     * @param context
+     */
+    public static void retryRoot(Context context) {
+        // not synchronized, a running slew must not block the caller
+        getPrefs(context).edit().remove(PREF_ROOT_DENIED).commit();
+    }
+
+    private static boolean isRootDenied(Context context) {
+        long denied = getPrefs(context).getLong(PREF_ROOT_DENIED, 0);
+        long age = System.currentTimeMillis() - denied;
+        return denied != 0 && age >= 0 && age < ROOT_RETRY_INTERVAL;
+    }
+
+    private static void setRootDenied(Context context) {
+        getPrefs(context).edit().putLong(PREF_ROOT_DENIED, System.currentTimeMillis()).commit();
+    }
+
+    /**
+     * @return false if the backend is not available or needs root, which has been denied
+     *         recently
+     */
+    private static boolean isUsable(Context context, ClockSetter setter) {
+        return setter.isAvailable(context) && !(setter.needsRoot() && isRootDenied(context));
+    }
+
+    private static ClockSetter measure(Context context) {
+        ClockSetter fastest = null;
+        long fastestDuration = Long.MAX_VALUE;
+
+        for (ClockSetter setter : BACKENDS) {
+            if (!isUsable(context, setter)) {
+                continue;
+            }
+            try {
+                long duration = Long.MAX_VALUE;
+                for (int i = 0; i < MEASUREMENTS; i++) {
+                    long start = System.nanoTime();
+                    // even a zero offset would lose the time between reading and setting
+                    setter.probe(context);
+                    duration = Math.min(duration, System.nanoTime() - start);
+                }
+                Log.d(Constants.TAG, "Clock setter " + setter.getName() + " took "
+                        + (duration / 1000) + " us");
+
+                if (duration < fastestDuration) {
+                    fastest = setter;
+                    fastestDuration = duration;
+                }
+            } catch (RootAccessDeniedException e) {
+                Log.d(Constants.TAG, "Clock setter " + setter.getName() + " was denied root");
+                setRootDenied(context);
+            } catch (IOException e) {
+                Log.d(Constants.TAG, "Clock setter " + setter.getName() + " failed: " + e);
+            } catch (TimeoutException e) {
+                Log.d(Constants.TAG, "Clock setter " + setter.getName() + " timed out");
+            }
+        }
+
+        if (fastest != null) {
+            Log.d(Constants.TAG, "Selected clock setter " + fastest.getName());
+        }
+        return fastest;
+    }
+
+    private static int adjust(Context context, ClockSetter setter, long offset, boolean slew,
+            long maxStep, long interval) {
+        // cached offsets are wrong while the clock changes
+        OffsetCache.onClockAdjusting();
+        boolean adjusted = false;
+        try {
+            if (slew) {
+                setter.slew(context, offset, maxStep, interval);
+            } else {
+                setter.adjust(context, offset);
+            }
+            // wall clock changed, timestamps must not be derived from the old anchor
+            HighResolutionClock.reset();
+            adjusted = true;
+            OffsetCache.onClockAdjusted(offset);
+
+            Log.d(Constants.TAG, "Date was " + (slew ? "slewed" : "set") + " using "
+                    + setter.getName() + "!");
+
+            return NtpSyncService.RETURN_OKAY;
+        } catch (RootAccessDeniedException e) {
+            Log.e(Constants.TAG, "Android is not rooted or root access was denied!", e);
+            return NtpSyncService.RETURN_NO_ROOT;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException using " + setter.getName() + "!", e);
+            return NtpSyncService.RETURN_GENERIC_ERROR;
+        } catch (TimeoutException e) {
+            Log.e(Constants.TAG, "Timeout using " + setter.getName() + "!", e);
+            return NtpSyncService.RETURN_GENERIC_ERROR;
+        } finally {
+            if (!adjusted) {
+                OffsetCache.onClockAdjustFailed();
+            }
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+}
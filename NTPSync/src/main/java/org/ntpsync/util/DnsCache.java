@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Caches the addresses of NTP servers, so that queries do not have to wait for DNS.
+ * <p>
+ * Resolved addresses are fresh for TTL. After that they are still returned, up to MAX_STALE,
+ * while they are resolved again in the background. Addresses are persisted, thus the first
+ * sync after a restart of the app uses them without waiting for DNS, too. Failed resolutions
+ * are cached for NEGATIVE_TTL. The record TTLs are not available from InetAddress, thus fixed
+ * ones are used.
+ * <p>
+ * All times are based on SystemClock.elapsedRealtime(), because the wall clock is what this app
+ * changes.
+ * <p>
+ * Lookups run on their own small executor. Queries wait for them only until their deadline,
+ * a lookup that takes longer goes on and caches the addresses for the next query.
+ */
+public class DnsCache {
+    private static final long TTL = 30 * 60 * 1000;
+    private static final long MAX_STALE = 7 * 24 * 60 * 60 * 1000L;
+    private static final long NEGATIVE_TTL = 60 * 1000;
+
+    // reverse lookups of reference ids, they are only used for display
+    private static final int MAX_HOST_NAMES = 32;
+
+    private static final String PREFS_NAME = "dns_cache";
+
+    private static class Entry {
+        final InetAddress[] mAddresses;
+        final long mResolved;
+        int mNext;
+
+        Entry(InetAddress[] addresses, long resolved) {
+            mAddresses = addresses;
+            mResolved = resolved;
+        }
+    }
+
+    private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private static final HashMap<String, Long> failures = new HashMap<String, Long>();
+    private static final HashSet<String> refreshing = new HashSet<String>();
+    private static final HashMap<String, String> hostNames = new HashMap<String, String>();
+    private static final HashMap<String, Long> hostNamesResolved = new HashMap<String, Long>();
+
+    private static SharedPreferences prefs;
+
+    private static final int LOOKUP_THREADS = 2;
+    private static final int LOOKUP_QUEUE_SIZE = 16;
+    private static final ThreadPoolExecutor lookupExecutor = new ThreadPoolExecutor(
+            LOOKUP_THREADS, LOOKUP_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(LOOKUP_QUEUE_SIZE), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DnsLookup #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Loads persisted addresses, they are treated as stale and resolved again on first use
+     * 
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        long stale = SystemClock.elapsedRealtime() - TTL;
+        for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+            String hostname = pref.getKey();
+            String value = String.valueOf(pref.getValue());
+
+            // format is resolution wall clock time;address,address,...
+            int separator = value.indexOf(';');
+            try {
+                long age = System.currentTimeMillis()
+                        - Long.parseLong(value.substring(0, separator));
+                if (age < 0 || age > MAX_STALE) {
+                    continue;
+                }
+
+                String[] literals = value.substring(separator + 1).split(",");
+                InetAddress[] addresses = new InetAddress[literals.length];
+                for (int i = 0; i < literals.length; i++) {
+                    // literals are parsed without DNS lookup
+                    addresses[i] = InetAddress.getByAddress(hostname,
+                            InetAddress.getByName(literals[i]).getAddress());
+                }
+                entries.put(hostname, new Entry(addresses, stale));
+            } catch (Exception e) {
+                Log.d(Constants.TAG, "Dropping invalid cached address of " + hostname, e);
+            }
+        }
+    }
+
+    /**
+     * Returns all A and AAAA records of the hostname, from cache if possible
+     * 
+     * @param hostname
+     * @param deadline
+     *            System.currentTimeMillis() based time after which a lookup is not waited for
+     * @return addresses
+     * @throws UnknownHostException
+     *             if the hostname could not be resolved before the deadline, also within
+     *             NEGATIVE_TTL after a failed resolution
+     */
+    public static InetAddress[] resolve(String hostname, long deadline)
+            throws UnknownHostException {
+        return lookup(hostname, deadline).mAddresses;
+    }
+
+    /**
+     * Returns one address of the hostname, consecutive calls rotate through all of them to
+     * spread the load on pool servers and to not stick to one that stopped answering
+     * 
+     * @param hostname
+     * @param deadline
+     *            System.currentTimeMillis() based time after which a lookup is not waited for
+     * @return address
+     * @throws UnknownHostException
+     */
+    public static InetAddress resolveNext(String hostname, long deadline)
+            throws UnknownHostException {
+        Entry entry = lookup(hostname, deadline);
+        synchronized (DnsCache.class) {
+            return entry.mAddresses[entry.mNext++ % entry.mAddresses.length];
+        }
+    }
+
+    /**
+     * Resolves hostnames in the background that are not cached or stale, e.g. after the
+     * hostnames changed or when syncs are scheduled
+     * 
+     * @param hostnames
+     */
+    public static void prefetch(String[] hostnames) {
+        long now = SystemClock.elapsedRealtime();
+        for (String hostname : hostnames) {
+            Entry entry;
+            synchronized (DnsCache.class) {
+                entry = entries.get(hostname);
+            }
+            if (entry == null || now - entry.mResolved >= TTL) {
+                refresh(hostname);
+            }
+        }
+    }
+
+    /**
+     * Reverse lookup of an address, cached because it is only used for display
+     * 
+     * @param address
+     *            literal IP address
+     * @return hostname, the address itself if it has none or null if it is no valid address
+     */
+    public static String getHostName(String address) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (DnsCache.class) {
+            Long resolved = hostNamesResolved.get(address);
+            if (resolved != null && now - resolved.longValue() < TTL) {
+                return hostNames.get(address);
+            }
+        }
+
+        String name;
+        try {
+            name = InetAddress.getByName(address).getHostName();
+        } catch (UnknownHostException e) {
+            name = null;
+        }
+
+        synchronized (DnsCache.class) {
+            if (hostNames.size() >= MAX_HOST_NAMES) {
+                hostNames.clear();
+                hostNamesResolved.clear();
+            }
+            hostNames.put(address, name);
+            hostNamesResolved.put(address, Long.valueOf(now));
+        }
+        return name;
+    }
+
+    private static Entry lookup(String hostname, long deadline) throws UnknownHostException {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (DnsCache.class) {
+            Entry entry = entries.get(hostname);
+            if (entry != null) {
+                long age = now - entry.mResolved;
+                if (age < TTL) {
+                    return entry;
+                } else if (age < MAX_STALE) {
+                    refresh(hostname);
+                    return entry;
+                }
+            }
+
+            Long failed = failures.get(hostname);
+            if (failed != null && now - failed.longValue() < NEGATIVE_TTL) {
+                throw new UnknownHostException(hostname + " could not be resolved recently");
+            }
+        }
+
+        return resolveNow(hostname, deadline);
+    }
+
+    /**
+     * Resolves the hostname on the lookup executor and waits for it until the deadline
+     */
+    private static Entry resolveNow(final String hostname, long deadline)
+            throws UnknownHostException {
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws UnknownHostException {
+                return resolveNow(hostname);
+            }
+        });
+        try {
+            lookupExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new UnknownHostException("Too many lookups pending to resolve " + hostname);
+        }
+
+        try {
+            return task.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw new UnknownHostException(hostname + " could not be resolved: " + e.getCause());
+        } catch (TimeoutException e) {
+            // the lookup goes on and caches the addresses for the next query
+            throw new UnknownHostException(hostname + " could not be resolved before the deadline");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while resolving " + hostname);
+        }
+    }
+
+    private static Entry resolveNow(String hostname) throws UnknownHostException {
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(hostname);
+        } catch (UnknownHostException e) {
+            synchronized (DnsCache.class) {
+                // keep stale addresses, they are still better than nothing
+                Entry entry = entries.get(hostname);
+                if (entry != null
+                        && SystemClock.elapsedRealtime() - entry.mResolved < MAX_STALE) {
+                    return entry;
+                }
+                entries.remove(hostname);
+                failures.put(hostname, Long.valueOf(SystemClock.elapsedRealtime()));
+            }
+            throw e;
+        }
+
+        Entry entry = new Entry(addresses, SystemClock.elapsedRealtime());
+        synchronized (DnsCache.class) {
+            entries.put(hostname, entry);
+            failures.remove(hostname);
+        }
+        persist(hostname, addresses);
+        return entry;
+    }
+
+    private static void refresh(final String hostname) {
+        synchronized (DnsCache.class) {
+            if (!refreshing.add(hostname)) {
+                return;
+            }
+        }
+
+        try {
+            // own executor, a slow lookup must not delay queries waiting for the query executor
+            lookupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolveNow(hostname);
+                        Log.d(Constants.TAG, "Refreshed addresses of " + hostname);
+                    } catch (UnknownHostException e) {
+                        Log.d(Constants.TAG, "Could not refresh addresses of " + hostname, e);
+                    } finally {
+                        synchronized (DnsCache.class) {
+                            refreshing.remove(hostname);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (DnsCache.class) {
+                refreshing.remove(hostname);
+            }
+        }
+    }
+
+    private static void persist(String hostname, InetAddress[] addresses) {
+        SharedPreferences sharedPrefs;
+        synchronized (DnsCache.class) {
+            sharedPrefs = prefs;
+        }
+        if (sharedPrefs == null) {
+            return;
+        }
+
+        StringBuilder value = new StringBuilder();
+        value.append(System.currentTimeMillis()).append(';');
+        for (int i = 0; i < addresses.length; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(addresses[i].getHostAddress());
+        }
+        sharedPrefs.edit().putString(hostname, value.toString()).commit();
+    }
+}
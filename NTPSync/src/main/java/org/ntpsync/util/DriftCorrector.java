@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import org.ntpsync.service.DriftCorrectionService;
+import org.ntpsync.service.NtpSyncService;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Applies small predictive corrections for the estimated drift between syncs, so that the error
+ * of the clock stays bounded without querying NTP servers more often.
+ * <p>
+ * Corrections are applied from an inexact, non-waking alarm whose interval is chosen so that
+ * each correction is about MIN_CORRECTION. The time since the last correction is measured with
+ * SystemClock.elapsedRealtime(), which is not affected by setting the clock. elapsedRealtime()
+ * restarts at boot, so the wall clock time of the boot is stored alongside to detect reboots.
+ */
+public class DriftCorrector {
+    // smaller corrections are not worth starting a root shell
+    public static final long MIN_CORRECTION = 10;
+
+    private static final String PREFS_NAME = "drift_corrector";
+    private static final String PREF_LAST_CORRECTION = "last_correction";
+    private static final String PREF_CORRECTIONS = "corrections";
+    private static final String PREF_BOOT_TIME = "boot_time";
+
+    // the boot time moves with every change of the clock, a reboot moves it at least by the
+    // uptime before the reboot plus the time to boot again
+    private static final long BOOT_TIME_TOLERANCE = 10 * 1000;
+
+    // intervals that can be batched by AlarmManager.setInexactRepeating
+    private static final long[] INTERVALS = { AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+            AlarmManager.INTERVAL_HALF_HOUR, AlarmManager.INTERVAL_HOUR,
+            AlarmManager.INTERVAL_HALF_DAY, AlarmManager.INTERVAL_DAY };
+
+    /**
+     * Called after each sync, the phase of the clock is reset if the offset has been applied
+     * 
+     * @param context
+     * @param applied
+     * @return sum of the corrections applied since the previous sync
+     */
+    public static synchronized long onSync(Context context, boolean applied) {
+        SharedPreferences prefs = getPrefs(context);
+        long corrections = prefs.getLong(PREF_CORRECTIONS, 0);
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(PREF_CORRECTIONS, 0);
+        if (applied) {
+            editor.putLong(PREF_LAST_CORRECTION, SystemClock.elapsedRealtime());
+            editor.putLong(PREF_BOOT_TIME, getBootTime());
+        }
+        editor.commit();
+
+        return corrections;
+    }
+
+    /**
+     * Applies the drift accumulated since the last correction if it is at least MIN_CORRECTION
+     * 
+     * @param context
+     * @return one of the RETURN_ codes of NtpSyncService
+     */
+    public static synchronized int correct(Context context) {
+        double drift = DriftEstimator.estimate(SyncHistory.getSamples(context));
+        if (Double.isNaN(drift)) {
+            return NtpSyncService.RETURN_OKAY;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        long now = SystemClock.elapsedRealtime();
+        long lastCorrection = prefs.getLong(PREF_LAST_CORRECTION, now);
+        long bootTime = prefs.getLong(PREF_BOOT_TIME, 0);
+        if (lastCorrection > now || !prefs.contains(PREF_BOOT_TIME)
+                || Math.abs(getBootTime() - bootTime) > BOOT_TIME_TOLERANCE) {
+            // rebooted in the meantime or the clock has been set by someone else, the drift
+            // since then is unknown
+            lastCorrection = now;
+        }
+
+        long correction = Math.round(drift * (now - lastCorrection) / 1e6);
+        if (Math.abs(correction) < MIN_CORRECTION) {
+            // keep accumulating
+            prefs.edit().putLong(PREF_LAST_CORRECTION, lastCorrection)
+                    .putLong(PREF_BOOT_TIME, getBootTime()).commit();
+            return NtpSyncService.RETURN_OKAY;
+        }
+
+        Log.d(Constants.TAG, "Correcting drift of " + drift + " ppm by " + correction + " ms");
+        int returnMessage = Utils.setTime(context, correction);
+        if (returnMessage == NtpSyncService.RETURN_OKAY) {
+            prefs.edit().putLong(PREF_LAST_CORRECTION, now)
+                    .putLong(PREF_BOOT_TIME, getBootTime())
+                    .putLong(PREF_CORRECTIONS, prefs.getLong(PREF_CORRECTIONS, 0) + correction)
+                    .commit();
+        }
+        return returnMessage;
+    }
+
+    /**
+     * Schedules the alarm for corrections based on the current drift estimate, or cancels it if
+     * the drift is unknown, too small to need corrections between syncs or corrections are
+     * disabled
+     * 
+     * @param context
+     */
+    public static void schedule(Context context) {
+        long interval = 0;
+        if (PreferenceHelper.getSyncDaily(context) && PreferenceHelper.getDriftCorrection(context)) {
+            double drift = DriftEstimator.estimate(SyncHistory.getSamples(context));
+            if (!Double.isNaN(drift) && drift != 0) {
+                interval = getInterval(MIN_CORRECTION / (Math.abs(drift) / 1e6));
+            }
+        }
+
+        if (interval > 0) {
+            Log.d(Constants.TAG, "Schedule drift correction every " + interval + " ms");
+            AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            mgr.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis() + interval,
+                    interval, getPendingIntent(context));
+        } else {
+            cancel(context);
+        }
+    }
+
+    /**
+     * Cancels the alarm for corrections
+     * 
+     * @param context
+     */
+    public static void cancel(Context context) {
+        AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mgr.cancel(getPendingIntent(context));
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        return PendingIntent.getService(context, 0, new Intent(context,
+                DriftCorrectionService.class), 0);
+    }
+
+    /**
+     * @param period
+     *            time in which the drift reaches MIN_CORRECTION
+     * @return smallest batchable interval not shorter than the period, 0 if the drift does not
+     *         reach MIN_CORRECTION within a day
+     */
+    private static long getInterval(double period) {
+        for (long interval : INTERVALS) {
+            if (interval >= period) {
+                return interval;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return wall clock time of the boot, as far as the current clock can tell
+     */
+    private static long getBootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
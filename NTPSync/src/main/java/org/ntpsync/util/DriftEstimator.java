@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.List;
+
+/**
+ * Estimates the frequency error (drift) of the local clock from the sync history.
+ * <p>
+ * The offsets of the syncs are summed up into the phase error the clock would have if it had
+ * never been set, adding back the offsets that have been applied and the predictive corrections.
+ * The drift is the slope of a least squares line through this phase error over time.
+ */
+public class DriftEstimator {
+    // minimum number of samples and time they have to span for a usable estimate
+    public static final int MIN_SAMPLES = 3;
+    public static final long MIN_SPAN = 6 * 60 * 60 * 1000;
+
+    // larger drift is not plausible for a clock crystal, as in ntpd (MAXFREQ)
+    public static final double MAX_DRIFT = 500;
+
+    /**
+     * @param samples
+     *            sync history, oldest first
+     * @return drift in ppm, positive if the local clock is slow, NaN if there is no usable
+     *         estimate
+     */
+    public static double estimate(List<SyncHistory.Sample> samples) {
+        // only use samples after the last time the clock has been set backwards by someone else
+        int first = 0;
+        for (int i = 1; i < samples.size(); i++) {
+            if (samples.get(i).getTime() <= samples.get(i - 1).getTime()) {
+                first = i;
+            }
+        }
+
+        int n = samples.size() - first;
+        if (n < MIN_SAMPLES
+                || samples.get(samples.size() - 1).getTime() - samples.get(first).getTime() < MIN_SPAN) {
+            return Double.NaN;
+        }
+
+        long t0 = samples.get(first).getTime();
+        double phase = 0;
+        double sumT = 0, sumP = 0, sumTT = 0, sumTP = 0;
+        for (int i = first; i < samples.size(); i++) {
+            SyncHistory.Sample current = samples.get(i);
+            if (i > first) {
+                SyncHistory.Sample previous = samples.get(i - 1);
+
+                // phase error accumulated since the previous sync
+                phase += current.getOffset() - (previous.isApplied() ? 0 : previous.getOffset())
+                        + current.getCorrection();
+            }
+
+            double t = current.getTime() - t0;
+            sumT += t;
+            sumP += phase;
+            sumTT += t * t;
+            sumTP += t * phase;
+        }
+
+        double denominator = n * sumTT - sumT * sumT;
+        if (denominator <= 0) {
+            return Double.NaN;
+        }
+        double drift = (n * sumTP - sumT * sumP) / denominator * 1e6;
+
+        if (Math.abs(drift) > MAX_DRIFT) {
+            Log.d(Constants.TAG, "Implausible drift of " + drift + " ppm, ignoring it!");
+            return Double.NaN;
+        }
+        return drift;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+
+/**
+ * File in the app's files directory holding a ring buffer of capacity fixed size binary records,
+ * memory-mapped once and kept mapped for the lifetime of the process. Used by SyncHistory and
+ * SyncCostLog, which define the layout of their records.
+ * <p>
+ * Header: magic, version, record size, capacity (ints), number of records ever appended (long).
+ * The file is reinitialized if any of them does not match.
+ */
+class MappedRingBuffer {
+    static final int HEADER_SIZE = 64;
+    static final int COUNT_INDEX = 16;
+
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 4;
+    private static final int RECORD_SIZE_INDEX = 8;
+    private static final int CAPACITY_INDEX = 12;
+
+    private final String mFileName;
+    private final int mMagic;
+    private final int mVersion;
+    private final int mRecordSize;
+    private final int mCapacity;
+
+    private MappedByteBuffer mBuffer;
+
+    MappedRingBuffer(String fileName, int magic, int version, int recordSize, int capacity) {
+        mFileName = fileName;
+        mMagic = magic;
+        mVersion = version;
+        mRecordSize = recordSize;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Maps the file on first use
+     * 
+     * @return buffer or null if the file could not be mapped
+     */
+    synchronized MappedByteBuffer getBuffer(Context context) {
+        if (mBuffer != null) {
+            return mBuffer;
+        }
+
+        File file = new File(context.getFilesDir(), mFileName);
+        int size = HEADER_SIZE + mCapacity * mRecordSize;
+        MappedByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                // the mapping stays valid after closing the file
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not map " + mFileName + "!", e);
+            return null;
+        }
+
+        if (buffer.getInt(MAGIC_INDEX) != mMagic || buffer.getInt(VERSION_INDEX) != mVersion
+                || buffer.getInt(RECORD_SIZE_INDEX) != mRecordSize
+                || buffer.getInt(CAPACITY_INDEX) != mCapacity) {
+            Log.d(Constants.TAG, "Initializing " + mFileName);
+            for (int i = 0; i < size; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(VERSION_INDEX, mVersion);
+            buffer.putInt(RECORD_SIZE_INDEX, mRecordSize);
+            buffer.putInt(CAPACITY_INDEX, mCapacity);
+            buffer.putLong(COUNT_INDEX, 0);
+            // magic last, an interrupted initialization is repeated
+            buffer.putInt(MAGIC_INDEX, mMagic);
+        }
+        mBuffer = buffer;
+        return mBuffer;
+    }
+
+    /**
+     * @param number
+     *            number of the record since the file was initialized
+     * @return position of the record in the buffer
+     */
+    int getRecordIndex(long number) {
+        return HEADER_SIZE + (int) (number % mCapacity) * mRecordSize;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ntp.NTPUDPClient;
+
+/**
+ * Future of an NTP query running on the executor of NtpSyncUtils. Cancelling closes the socket
+ * of the query, so a worker blocked in receive returns immediately instead of waiting for the
+ * timeout. The time the socket was open and its traffic are accounted to the SyncCost of the
+ * callback.
+ */
+public class NtpQueryFuture<V> extends FutureTask<V> {
+
+    /**
+     * Receives the result of an asynchronous query. Called on the worker thread of the
+     * executor, never for cancelled queries.
+     */
+    public interface Callback<V> {
+        public void onResult(V result);
+
+        public void onError(Exception e);
+
+        /**
+         * @return cost the query is accounted to, null if it is not accounted
+         */
+        public SyncCost getCost();
+    }
+
+    /**
+     * Blocking query run by the future, gets the future to register its client
+     */
+    interface Query<V> {
+        public V run(NtpQueryFuture<V> future) throws Exception;
+    }
+
+    private static class QueryCallable<V> implements Callable<V> {
+        private final Query<V> mQuery;
+        private NtpQueryFuture<V> mFuture;
+
+        QueryCallable(Query<V> query) {
+            mQuery = query;
+        }
+
+        @Override
+        public V call() throws Exception {
+            return mQuery.run(mFuture);
+        }
+    }
+
+    private final Callback<V> mCallback;
+    private NTPUDPClient mClient;
+    private long mClientOpened;
+    // counted down after the callback returned
+    private final CountDownLatch mCallbackDone = new CountDownLatch(1);
+
+    NtpQueryFuture(Query<V> query, Callback<V> callback) {
+        this(new QueryCallable<V>(query), callback);
+    }
+
+    private NtpQueryFuture(QueryCallable<V> callable, Callback<V> callback) {
+        super(callable);
+        callable.mFuture = this;
+        mCallback = callback;
+    }
+
+    /**
+     * Fails the query without running it, used if it could not be submitted
+     * 
+     * @param e
+     */
+    void fail(Exception e) {
+        setException(e);
+    }
+
+    /**
+     * Registers the opened client of the running query, closes it right away if the query has
+     * been cancelled in the meantime
+     * 
+     * @param client
+     * @throws InterruptedIOException
+     *             if the query has been cancelled
+     */
+    synchronized void setClient(NTPUDPClient client) throws InterruptedIOException {
+        if (isCancelled()) {
+            client.close();
+            throw new InterruptedIOException("Query has been cancelled!");
+        }
+        mClient = client;
+        mClientOpened = System.nanoTime();
+    }
+
+    /**
+     * Closes the client of the running query. All closing goes through here, because the
+     * client itself is not thread-safe.
+     */
+    synchronized void closeClient() {
+        if (mClient != null) {
+            SyncCost cost = getCost();
+            if (cost != null) {
+                cost.addSocketTime(System.nanoTime() - mClientOpened);
+                cost.addTraffic(mClient.getPacketsSent() + mClient.getPacketsReceived(),
+                        mClient.getBytesTransferred());
+            }
+            mClient.close();
+            mClient = null;
+        }
+    }
+
+    /**
+     * @return cost the query is accounted to, null if it is not accounted
+     */
+    SyncCost getCost() {
+        return (mCallback != null) ? mCallback.getCost() : null;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            closeClient();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Waits until the query is done and its callback has returned. get() returns as soon as the
+     * result is set, before the callback has run.
+     * 
+     * @param timeout
+     *            milliseconds
+     * @return true if the callback returned within the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitCallback(long timeout) throws InterruptedException {
+        return mCallbackDone.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void done() {
+        try {
+            runCallback();
+        } finally {
+            mCallbackDone.countDown();
+        }
+    }
+
+    private void runCallback() {
+        if (mCallback == null || isCancelled()) {
+            return;
+        }
+
+        try {
+            mCallback.onResult(get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                mCallback.onError((Exception) cause);
+            } else {
+                mCallback.onError(e);
+            }
+        } catch (CancellationException e) {
+            // cancelled after the check above, nothing to report
+        } catch (InterruptedException e) {
+            // not possible, get() does not block when done
+        }
+    }
+}
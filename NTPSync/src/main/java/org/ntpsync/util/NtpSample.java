@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.net.InetAddress;
+
+import org.apache.commons.net.ntp.NtpPacketCodec;
+import org.apache.commons.net.ntp.NtpV3Packet;
+import org.apache.commons.net.ntp.TimeInfo;
+import org.apache.commons.net.ntp.TimeStamp;
+
+/**
+ * One measurement of one NTP server, all times in milliseconds
+ */
+public class NtpSample {
+    private final String mHostname;
+    private final String mAddress;
+    private final long mTime;
+    private final long mOffset;
+    private final long mDelay;
+    private final double mJitter;
+    private final int mStratum;
+    private final int mLeapIndicator;
+    private final int mPrecision;
+    private final double mRootDelay;
+    private final double mRootDispersion;
+
+    /**
+     * Builds sample from a TimeInfo whose offset and delay could be computed
+     *
+     * @param hostname
+     *            hostname the server was queried by
+     * @param address
+     *            address the reply came from
+     * @param info
+     * @param jitter
+     *            jitter of this server, 0 if only one round trip was done
+     */
+    public NtpSample(String hostname, InetAddress address, TimeInfo info, double jitter) {
+        info.computeDetails();
+        NtpV3Packet message = info.getMessage();
+
+        mHostname = hostname;
+        mAddress = address.getHostAddress();
+        mTime = info.getReturnTime();
+        mOffset = info.getOffset();
+        mDelay = info.getDelay();
+        mJitter = jitter;
+        mStratum = message.getStratum();
+        mLeapIndicator = message.getLeapIndicator();
+        mPrecision = message.getPrecision();
+        mRootDelay = message.getRootDelayInMillisDouble();
+        mRootDispersion = message.getRootDispersionInMillisDouble();
+    }
+
+    /**
+     * Builds sample from a valid reply held by a codec
+     *
+     * @param hostname
+     *            hostname the server was queried by
+     * @param address
+     *            address the reply came from
+     * @param codec
+     */
+    public NtpSample(String hostname, InetAddress address, NtpPacketCodec codec) {
+        mHostname = hostname;
+        mAddress = address.getHostAddress();
+        mTime = TimeStamp.getTime(codec.getDestinationTime());
+        // round once, the timestamps may have sub-millisecond resolution
+        mOffset = Math.round(codec.getOffsetInNanos() / 1e6);
+        mDelay = Math.round(codec.getDelayInNanos() / 1e6);
+        mJitter = 0;
+        mStratum = codec.getStratum();
+        mLeapIndicator = codec.getLeapIndicator();
+        mPrecision = codec.getPrecision();
+        // NTP short format, 16.16 seconds
+        mRootDelay = codec.getRootDelay() / 65.536;
+        mRootDispersion = codec.getRootDispersion() / 65.536;
+    }
+
+    public String getHostname() {
+        return mHostname;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return local time when the reply was received
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public long getDelay() {
+        return mDelay;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public int getStratum() {
+        return mStratum;
+    }
+
+    public int getLeapIndicator() {
+        return mLeapIndicator;
+    }
+
+    public double getRootDelay() {
+        return mRootDelay;
+    }
+
+    public double getRootDispersion() {
+        return mRootDispersion;
+    }
+
+    /**
+     * Dispersion of this sample itself, which is the precision of the server clock
+     *
+     * @return dispersion
+     */
+    public double getDispersion() {
+        return 1000 * Math.pow(2, mPrecision);
+    }
+
+    /**
+     * Root distance as defined in RFC 5905: half the total round trip delay to the primary
+     * reference plus the total dispersion and jitter. The true time is within offset +/- root
+     * distance.
+     *
+     * @return root distance
+     */
+    public double getRootDistance() {
+        return (mRootDelay + mDelay) / 2 + mRootDispersion + getDispersion() + mJitter;
+    }
+
+    @Override
+    public String toString() {
+        return mHostname + "/" + mAddress + ": offset " + mOffset + ", delay " + mDelay
+                + ", stratum " + mStratum + ", root distance " + getRootDistance();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.List;
+
+/**
+ * Offset combined from the samples of several NTP servers, all times in milliseconds
+ */
+public class NtpSyncResult {
+    private final double mOffset;
+    private final double mJitter;
+    private final NtpSample mSystemPeer;
+    private final List<NtpSample> mSurvivors;
+    private final List<NtpSample> mSamples;
+
+    public NtpSyncResult(double offset, double jitter, NtpSample systemPeer,
+            List<NtpSample> survivors, List<NtpSample> samples) {
+        mOffset = offset;
+        mJitter = jitter;
+        mSystemPeer = systemPeer;
+        mSurvivors = survivors;
+        mSamples = samples;
+    }
+
+    /**
+     * @return combined offset, rounded to milliseconds
+     */
+    public long getOffset() {
+        return Math.round(mOffset);
+    }
+
+    public double getOffsetDouble() {
+        return mOffset;
+    }
+
+    /**
+     * @return system jitter of the combined offset
+     */
+    public double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Maximum error of the combined offset, which is the root distance of the best server plus
+     * the system jitter
+     *
+     * @return error bound
+     */
+    public double getErrorBound() {
+        return mSystemPeer.getRootDistance() + mJitter;
+    }
+
+    /**
+     * @return sample of the server with the smallest root distance among the survivors
+     */
+    public NtpSample getSystemPeer() {
+        return mSystemPeer;
+    }
+
+    /**
+     * @return samples that survived selection and clustering, best first
+     */
+    public List<NtpSample> getSurvivors() {
+        return mSurvivors;
+    }
+
+    /**
+     * @return all samples that were received
+     */
+    public List<NtpSample> getSamples() {
+        return mSamples;
+    }
+}
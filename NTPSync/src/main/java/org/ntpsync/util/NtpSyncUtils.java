@@ -18,12 +18,24 @@
 package org.ntpsync.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.net.ntp.ClockFilter;
 import org.apache.commons.net.ntp.NTPUDPClient;
+import org.apache.commons.net.ntp.NtpPacketCodec;
 import org.apache.commons.net.ntp.NtpUtils;
 import org.apache.commons.net.ntp.NtpV3Packet;
 import org.apache.commons.net.ntp.TimeInfo;
@@ -46,6 +58,7 @@ import android.content.Context;
  ***/
 public class NtpSyncUtils {
     private static final NumberFormat numberFormat = new java.text.DecimalFormat("0.00");
+    private static final NumberFormat millisFormat = new java.text.DecimalFormat("0.000");
 
     /**
      * Process <code>TimeInfo</code> object and print its details.
@@ -101,18 +114,16 @@ public class NtpSyncUtils {
                 // defined in the form 127.127.clock-type.unit-num (e.g. 127.127.8.0 mode 5
                 // for GENERIC DCF77 AM; see refclock.htm from the NTP software distribution.
                 if (!refAddr.startsWith("127.127")) {
-                    try {
-                        InetAddress addr = InetAddress.getByName(refAddr);
-                        String name = addr.getHostName();
-                        if (name != null && !name.equals(refAddr)) {
-                            refName = name;
-                        }
-                    } catch (UnknownHostException e) {
+                    // reverse lookup is cached, the reference of a server rarely changes
+                    String name = DnsCache.getHostName(refAddr);
+                    if (name == null) {
                         // some stratum-2 servers sync to ref clock device but fudge stratum level
                         // higher... (e.g. 2)
                         // ref not valid host maybe it's a reference clock name?
                         // otherwise just show the ref IP address.
                         refName = NtpUtils.getReferenceClock(message);
+                    } else if (!name.equals(refAddr)) {
+                        refName = name;
                     }
                 }
             } else if (version >= 3 && (stratum == 0 || stratum == 1)) {
@@ -157,6 +168,11 @@ public class NtpSyncUtils {
         Long delayValue = info.getDelay();
         String delay = (delayValue == null) ? "N/A" : delayValue.toString();
         String offset = (offsetValue == null) ? "N/A" : offsetValue.toString();
+        if (info.getDelayNanos() != null && info.getOffsetNanos() != null) {
+            // microsecond precision
+            delay = millisFormat.format(info.getDelayNanos() / 1e6);
+            offset = millisFormat.format(info.getOffsetNanos() / 1e6);
+        }
 
         // offset in ms
         output += "<p><b>" + context.getString(R.string.detailed_query_computed_offset)
@@ -167,6 +183,113 @@ public class NtpSyncUtils {
         return output;
     }
 
+    /**
+     * Overall timeout of a query in milliseconds, including the resolution of the hostname
+     */
+    public static final int QUERY_TIMEOUT = 10000;
+
+    /**
+     * Milliseconds to wait for an asynchronous query beyond its timeout, a query finishing right
+     * at its deadline still needs to compute and deliver its result
+     */
+    public static final int QUERY_TIMEOUT_MARGIN = 1000;
+
+    /**
+     * Small bounded executor shared by all asynchronous queries. The queue is bounded, thus
+     * queries submitted while it is full fail with a RejectedExecutionException instead of
+     * piling up.
+     */
+    private static final int EXECUTOR_THREADS = 2;
+    private static final int EXECUTOR_QUEUE_SIZE = 16;
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(EXECUTOR_THREADS,
+            EXECUTOR_THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                    EXECUTOR_QUEUE_SIZE), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NtpQuery #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Opens a client for a query. The remaining time until the deadline is used as timeout and
+     * the client is registered with the future so that cancelling closes it.
+     * 
+     * @param deadline
+     *            System.currentTimeMillis() based deadline of the query
+     * @param future
+     *            future of the query, null for blocking queries
+     * @return opened client
+     * @throws IOException
+     *             if the deadline has already passed or the query has been cancelled
+     */
+    private static NTPUDPClient openClient(long deadline, NtpQueryFuture<?> future)
+            throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Deadline passed before sending the request!");
+        }
+
+        NTPUDPClient client = new NTPUDPClient();
+        client.setDefaultTimeout((int) remaining);
+        // sub-millisecond timestamps, offsets to LAN servers are often below 1 ms
+        client.setHighResolution(true);
+        client.open();
+        if (future != null) {
+            future.setClient(client);
+        }
+        return client;
+    }
+
+    private static void closeClient(NTPUDPClient client, NtpQueryFuture<?> future) {
+        if (future != null) {
+            future.closeClient();
+        } else {
+            client.close();
+        }
+    }
+
+    /**
+     * Resolves the next address of the hostname, waiting at most until the deadline, the time
+     * is accounted to the future
+     */
+    private static InetAddress resolveNext(String hostname, long deadline,
+            NtpQueryFuture<?> future) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            return DnsCache.resolveNext(hostname, deadline);
+        } finally {
+            addDnsTime(future, System.nanoTime() - start);
+        }
+    }
+
+    private static void addDnsTime(NtpQueryFuture<?> future, long nanos) {
+        SyncCost cost = (future != null) ? future.getCost() : null;
+        if (cost != null) {
+            cost.addDnsTime(nanos);
+        }
+    }
+
+    /**
+     * Submits a query to the shared executor
+     * 
+     * @return future of the query, cancelling it aborts the query
+     */
+    private static <V> NtpQueryFuture<V> submit(NtpQueryFuture.Query<V> query,
+            NtpQueryFuture.Callback<V> callback) {
+        NtpQueryFuture<V> future = new NtpQueryFuture<V>(query, callback);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            Log.e(Constants.TAG, "Too many queries pending!", e);
+            future.fail(e);
+        }
+        return future;
+    }
+
     /**
      * Queries NTP server to get details
      * 
@@ -174,22 +297,41 @@ public class NtpSyncUtils {
      */
     public static TimeInfo detailedQuery(String ntpServerHostname) throws IOException,
             SocketException {
-        NTPUDPClient client = new NTPUDPClient();
-        // We want to timeout if a response takes longer than 10 seconds
-        client.setDefaultTimeout(10000);
+        return detailedQuery(ntpServerHostname, System.currentTimeMillis() + QUERY_TIMEOUT, null);
+    }
 
-        TimeInfo info = null;
-        try {
-            client.open();
+    private static TimeInfo detailedQuery(String ntpServerHostname, long deadline,
+            NtpQueryFuture<?> future) throws IOException {
+        InetAddress hostAddr = resolveNext(ntpServerHostname, deadline, future);
+        Log.d(Constants.TAG, "> " + ntpServerHostname + "/" + hostAddr.getHostAddress());
 
-            InetAddress hostAddr = InetAddress.getByName(ntpServerHostname);
-            Log.d(Constants.TAG, "> " + hostAddr.getHostName() + "/" + hostAddr.getHostAddress());
-            info = client.getTime(hostAddr);
+        NTPUDPClient client = openClient(deadline, future);
+        try {
+            return client.getTime(hostAddr);
         } finally {
-            client.close();
+            closeClient(client, future);
         }
+    }
 
-        return info;
+    /**
+     * Asynchronous version of detailedQuery(String)
+     * 
+     * @param ntpServerHostname
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query
+     */
+    public static NtpQueryFuture<TimeInfo> detailedQueryAsync(final String ntpServerHostname,
+            int timeout, NtpQueryFuture.Callback<TimeInfo> callback) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        return submit(new NtpQueryFuture.Query<TimeInfo>() {
+            @Override
+            public TimeInfo run(NtpQueryFuture<TimeInfo> future) throws Exception {
+                return detailedQuery(ntpServerHostname, deadline, future);
+            }
+        }, callback);
     }
 
     /**
@@ -201,26 +343,373 @@ public class NtpSyncUtils {
      *             , SocketException
      */
     public static long query(String ntpServerHostname) throws IOException, SocketException {
-        NTPUDPClient client = new NTPUDPClient();
-        // We want to timeout if a response takes longer than 10 seconds
-        client.setDefaultTimeout(10000);
+        return query(ntpServerHostname, System.currentTimeMillis() + QUERY_TIMEOUT, null)
+                .getOffset();
+    }
+
+    private static NtpSample query(String ntpServerHostname, long deadline,
+            NtpQueryFuture<?> future) throws IOException {
+        InetAddress hostAddr = resolveNext(ntpServerHostname, deadline, future);
+        Log.d(Constants.TAG, "Trying to get time from " + ntpServerHostname + "/"
+                + hostAddr.getHostAddress());
+
+        // use the codec instead of building a TimeInfo, the sample is built from its fields
+        NtpPacketCodec codec = new NtpPacketCodec();
+        boolean valid;
+        NTPUDPClient client = openClient(deadline, future);
+        try {
+            valid = client.getTime(hostAddr, NtpV3Packet.NTP_PORT, codec);
+        } finally {
+            closeClient(client, future);
+        }
+
+        if (!valid) {
+            throw new IOException("Invalid reply from " + ntpServerHostname);
+        }
+
+        return new NtpSample(ntpServerHostname, hostAddr, codec);
+    }
+
+    /**
+     * Asynchronous version of query(String)
+     * 
+     * @param ntpServerHostname
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query, the result holds the offset and the details of the reply
+     */
+    public static NtpQueryFuture<NtpSample> queryAsync(final String ntpServerHostname,
+            int timeout, NtpQueryFuture.Callback<NtpSample> callback) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        return submit(new NtpQueryFuture.Query<NtpSample>() {
+            @Override
+            public NtpSample run(NtpQueryFuture<NtpSample> future) throws Exception {
+                return query(ntpServerHostname, deadline, future);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queries NTP server using a burst of requests and returns the sample with the lowest
+     * round-trip delay, see NTPUDPClient.getTime(InetAddress, int, int, int)
+     * 
+     * @param ntpServerHostname
+     * @param count
+     *            number of requests
+     * @param interval
+     *            milliseconds between two requests, 0 sends them back-to-back
+     * @return filtered sample including the jitter of the burst
+     * @throws IOException
+     *             , SocketException
+     */
+    public static NtpSample burstQuery(String ntpServerHostname, int count, int interval)
+            throws IOException, SocketException {
+        return burstQuery(ntpServerHostname, count, interval, System.currentTimeMillis()
+                + QUERY_TIMEOUT, null);
+    }
+
+    private static NtpSample burstQuery(String ntpServerHostname, int count, int interval,
+            long deadline, NtpQueryFuture<?> future) throws IOException {
+        InetAddress hostAddr = resolveNext(ntpServerHostname, deadline, future);
+        Log.d(Constants.TAG, "Trying to get time from " + ntpServerHostname + "/"
+                + hostAddr.getHostAddress() + " using a burst of " + count);
 
         TimeInfo info = null;
+        NTPUDPClient client = openClient(deadline, future);
         try {
-            client.open();
+            info = client.getTime(hostAddr, NtpV3Packet.NTP_PORT, count, interval);
+        } finally {
+            closeClient(client, future);
+        }
+
+        return new NtpSample(ntpServerHostname, hostAddr, info, info.getJitter());
+    }
+
+    /**
+     * Asynchronous version of burstQuery(String, int, int)
+     * 
+     * @param ntpServerHostname
+     * @param count
+     * @param interval
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query
+     */
+    public static NtpQueryFuture<NtpSample> burstQueryAsync(final String ntpServerHostname,
+            final int count, final int interval, int timeout,
+            NtpQueryFuture.Callback<NtpSample> callback) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        return submit(new NtpQueryFuture.Query<NtpSample>() {
+            @Override
+            public NtpSample run(NtpQueryFuture<NtpSample> future) throws Exception {
+                return burstQuery(ntpServerHostname, count, interval, deadline, future);
+            }
+        }, callback);
+    }
+
+    /**
+     * Timeout of one server during failover, after it the next server is tried
+     */
+    public static final int SERVER_TIMEOUT = 2000;
+
+    // a single hostname is tried more than once, pools resolve to another address each time
+    private static final int MIN_FAILOVER_ATTEMPTS = 3;
+
+    /**
+     * Queries the NTP servers one after another, best scoring first according to the
+     * ServerRegistry, until one answers. Each server gets SERVER_TIMEOUT, bursts additionally the
+     * time between their requests. Replies and timeouts are recorded in the ServerRegistry.
+     * 
+     * @param ntpServerHostnames
+     * @param count
+     *            number of requests per server, 1 for a single request
+     * @param interval
+     *            milliseconds between two requests of a burst
+     * @return sample of the first answering server
+     * @throws IOException
+     *             of the last attempt if no server answered
+     */
+    public static NtpSample failoverQuery(String[] ntpServerHostnames, int count, int interval)
+            throws IOException {
+        return failoverQuery(ntpServerHostnames, count, interval, System.currentTimeMillis()
+                + QUERY_TIMEOUT, null);
+    }
+
+    private static NtpSample failoverQuery(String[] ntpServerHostnames, int count, int interval,
+            long deadline, NtpQueryFuture<?> future) throws IOException {
+        String[] ranked = ServerRegistry.rank(ntpServerHostnames);
+        int attempts = Math.max(ranked.length, MIN_FAILOVER_ATTEMPTS);
+        long serverTimeout = SERVER_TIMEOUT + (long) Math.max(0, count - 1) * interval;
+
+        IOException lastException = null;
+        for (int i = 0; i < attempts && System.currentTimeMillis() < deadline; i++) {
+            String hostname = ranked[i % ranked.length];
+            long serverDeadline = Math.min(deadline, System.currentTimeMillis() + serverTimeout);
+            try {
+                NtpSample sample = (count > 1) ? burstQuery(hostname, count, interval,
+                        serverDeadline, future) : query(hostname, serverDeadline, future);
+                ServerRegistry.onReply(sample);
+                return sample;
+            } catch (UnknownHostException e) {
+                // not the fault of the server, DNS is retried by the DnsCache
+                lastException = e;
+            } catch (IOException e) {
+                if (future != null && future.isCancelled()) {
+                    throw e;
+                }
+                Log.d(Constants.TAG, "No reply from " + hostname + ", failing over", e);
+                ServerRegistry.onTimeout(hostname);
+                lastException = e;
+            }
+        }
+
+        if (lastException == null) {
+            lastException = new SocketTimeoutException("Deadline passed before any request!");
+        }
+        throw lastException;
+    }
+
+    /**
+     * Asynchronous version of failoverQuery(String[], int, int)
+     * 
+     * @param ntpServerHostnames
+     * @param count
+     * @param interval
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query
+     */
+    public static NtpQueryFuture<NtpSample> failoverQueryAsync(final String[] ntpServerHostnames,
+            final int count, final int interval, int timeout,
+            NtpQueryFuture.Callback<NtpSample> callback) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        return submit(new NtpQueryFuture.Query<NtpSample>() {
+            @Override
+            public NtpSample run(NtpQueryFuture<NtpSample> future) throws Exception {
+                return failoverQuery(ntpServerHostnames, count, interval, deadline, future);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queries several NTP servers at once using one shared UDP socket and combines their answers
+     * using the selection, clustering and combining algorithms of RFC 5905. Returns as soon as a
+     * quorum of servers answered.
+     * 
+     * @param ntpServerHostnames
+     *            a hostname resolving to several addresses (e.g. a pool) contributes all of them
+     * @return combined result
+     * @throws IOException
+     *             if no server answered or the answering servers do not agree on the time
+     */
+    public static NtpSyncResult multiQuery(String[] ntpServerHostnames) throws IOException {
+        return multiQuery(ntpServerHostnames, 1, 0);
+    }
+
+    /**
+     * Like multiQuery(String[]), but sends count rounds of requests on the shared socket. The
+     * replies of each server pass a clock filter, its sample is the one with the lowest delay.
+     * Each round waits at most for its share of the remaining time, so a server that does not
+     * answer cannot use up the time of the following rounds.
+     * 
+     * @param ntpServerHostnames
+     * @param count
+     *            number of rounds, at most ClockFilter.NTP_SHIFT
+     * @param interval
+     *            milliseconds between two rounds
+     * @return combined result
+     * @throws IOException
+     *             if no server answered or the answering servers do not agree on the time
+     */
+    public static NtpSyncResult multiQuery(String[] ntpServerHostnames, int count, int interval)
+            throws IOException {
+        return multiQuery(ntpServerHostnames, count, interval, System.currentTimeMillis()
+                + QUERY_TIMEOUT, null);
+    }
+
+    private static NtpSyncResult multiQuery(String[] ntpServerHostnames, int count,
+            int interval, long deadline, NtpQueryFuture<?> future) throws IOException {
+        ArrayList<String> hostnames = new ArrayList<String>();
+        ArrayList<InetAddress> hostAddrs = new ArrayList<InetAddress>();
+        long dnsStart = System.nanoTime();
+        for (String hostname : ntpServerHostnames) {
+            try {
+                for (InetAddress hostAddr : DnsCache.resolve(hostname, deadline)) {
+                    if (hostAddrs.size() < NtpV3Packet.NTP_MAXCLOCK
+                            && !hostAddrs.contains(hostAddr)) {
+                        hostnames.add(hostname);
+                        hostAddrs.add(hostAddr);
+                    }
+                }
+            } catch (UnknownHostException e) {
+                Log.d(Constants.TAG, "Could not resolve " + hostname, e);
+            }
+        }
+        addDnsTime(future, System.nanoTime() - dnsStart);
+        if (hostAddrs.isEmpty()) {
+            throw new UnknownHostException("None of the NTP servers could be resolved!");
+        }
 
-            InetAddress hostAddr = InetAddress.getByName(ntpServerHostname);
-            Log.d(Constants.TAG, "Trying to get time from " + hostAddr.getHostName() + "/"
-                    + hostAddr.getHostAddress());
+        // stop waiting when a majority, but at least MIN_SURVIVORS servers, answered
+        int quorum = Math.min(hostAddrs.size(),
+                Math.max(ClockSelection.MIN_SURVIVORS, hostAddrs.size() / 2 + 1));
 
-            info = client.getTime(hostAddr);
+        count = Math.max(1, Math.min(count, ClockFilter.NTP_SHIFT));
+        InetAddress[] addresses = hostAddrs.toArray(new InetAddress[hostAddrs.size()]);
+        ClockFilter[] filters = new ClockFilter[addresses.length];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = new ClockFilter();
+        }
+
+        NTPUDPClient client = openClient(deadline, future);
+        try {
+            Log.d(Constants.TAG, "Trying to get time from " + addresses.length
+                    + " servers in " + count + " rounds, quorum is " + quorum);
+            for (int round = 0; round < count; round++) {
+                if (round > 0) {
+                    long wait = Math.min(interval, deadline - System.currentTimeMillis());
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("Interrupted between rounds!");
+                        }
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                // the quorum may be all servers, one silent server makes a round wait for its
+                // whole share, rounds ending early leave more time to the following ones
+                client.setSoTimeout((int) Math.max(1, remaining / (count - round)));
+
+                TimeInfo[] infos = client.getTimes(addresses, NtpV3Packet.NTP_PORT, quorum);
+                for (int i = 0; i < infos.length; i++) {
+                    if (infos[i] != null) {
+                        filters[i].add(infos[i]);
+                    }
+                }
+            }
         } finally {
-            client.close();
+            closeClient(client, future);
         }
 
-        // compute offset/delay if not already done
-        info.computeDetails();
+        // one poll per hostname in the registry, answered if any of its addresses answered in
+        // any round
+        HashSet<String> answered = new HashSet<String>();
+        ArrayList<NtpSample> samples = new ArrayList<NtpSample>();
+        for (int i = 0; i < filters.length; i++) {
+            TimeInfo best = filters[i].getBest();
+            if (best != null) {
+                NtpSample sample = new NtpSample(hostnames.get(i), hostAddrs.get(i), best,
+                        best.getJitter());
+                if (answered.add(hostnames.get(i))) {
+                    ServerRegistry.onReply(sample);
+                }
+                samples.add(sample);
+            }
+        }
+        for (String hostname : new HashSet<String>(hostnames)) {
+            if (!answered.contains(hostname)) {
+                ServerRegistry.onTimeout(hostname);
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new SocketTimeoutException("None of the NTP servers answered!");
+        }
 
-        return info.getOffset();
+        NtpSyncResult result = ClockSelection.select(samples);
+        if (result == null) {
+            throw new IOException("The answering NTP servers do not agree on the time!");
+        }
+
+        return result;
+    }
+
+    /**
+     * Asynchronous version of multiQuery(String[])
+     * 
+     * @param ntpServerHostnames
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query
+     */
+    public static NtpQueryFuture<NtpSyncResult> multiQueryAsync(
+            final String[] ntpServerHostnames, int timeout,
+            NtpQueryFuture.Callback<NtpSyncResult> callback) {
+        return multiQueryAsync(ntpServerHostnames, 1, 0, timeout, callback);
+    }
+
+    /**
+     * Asynchronous version of multiQuery(String[], int, int)
+     * 
+     * @param ntpServerHostnames
+     * @param count
+     * @param interval
+     * @param timeout
+     *            overall timeout in milliseconds
+     * @param callback
+     *            notified on the worker thread, may be null
+     * @return future of the query
+     */
+    public static NtpQueryFuture<NtpSyncResult> multiQueryAsync(
+            final String[] ntpServerHostnames, final int count, final int interval,
+            int timeout, NtpQueryFuture.Callback<NtpSyncResult> callback) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        return submit(new NtpQueryFuture.Query<NtpSyncResult>() {
+            @Override
+            public NtpSyncResult run(NtpQueryFuture<NtpSyncResult> future) throws Exception {
+                return multiQuery(ntpServerHostnames, count, interval, deadline, future);
+            }
+        }, callback);
     }
 }
\ No newline at end of file
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * Most recent validated offset per set of NTP servers, so that clients asking for the offset
+ * repeatedly or at the same time do not all query the servers.
+ * <p>
+ * An offset younger than the maximum age given by the caller is returned from the cache.
+ * Otherwise a query is started, unless one is already running for the same servers, in which
+ * case the caller waits for that one. Ages are based on SystemClock.elapsedRealtime(), because
+ * the wall clock is what this app changes. While the clock is corrected, which takes seconds
+ * when slewing, nothing is cached and offsets measured meanwhile are not kept. Once the
+ * correction succeeded, the offsets cached before are restored reduced by the correction.
+ * <p>
+ * Listeners are told about every new offset, whether it comes from a query or a sync, and
+ * about every correction of the clock.
+ */
+public class OffsetCache {
+    // frequency tolerance of the local clock as in RFC 5905, the error bound grows by it
+    public static final double PHI = 15e-6;
+
+    private static final int MAX_ENTRIES = 8;
+
+    /**
+     * Offset measured at some time, all times in milliseconds
+     */
+    public static class Entry {
+        private final String[] mHostnames;
+        private final long mOffset;
+        private final double mRootDistance;
+        private final long mMeasured;
+
+        Entry(String[] hostnames, long offset, double rootDistance, long measured) {
+            mHostnames = hostnames;
+            mOffset = offset;
+            mRootDistance = rootDistance;
+            mMeasured = measured;
+        }
+
+        /**
+         * @return servers the offset was measured with
+         */
+        public String[] getHostnames() {
+            return mHostnames;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return time since the offset was measured
+         */
+        public long getAge() {
+            return SystemClock.elapsedRealtime() - mMeasured;
+        }
+
+        /**
+         * @return maximum error of the offset now, root distance plus what the clock may have
+         *         drifted since the measurement
+         */
+        public double getErrorBound() {
+            return mRootDistance + PHI * getAge();
+        }
+    }
+
+    /**
+     * Called with the lock of OffsetCache held, must return quickly and must not call
+     * OffsetCache
+     */
+    public interface Listener {
+        void onOffsetChanged(Entry entry);
+    }
+
+    private static final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    // running queries, at most one per key
+    private static final HashMap<String, NtpQueryFuture<NtpSample>> queries =
+            new HashMap<String, NtpQueryFuture<NtpSample>>();
+
+    // entries put aside while the clock is corrected, null if no correction is running
+    private static HashMap<String, Entry> adjusting;
+    // number of corrections started, results of queries overlapping one are not cached
+    private static int adjustments;
+
+    /**
+     * Returns the offset of the servers, from cache if it is not older than maxAge
+     * 
+     * @param hostnames
+     * @param maxAge
+     *            milliseconds, 0 to always use a query, which may have been started by another
+     *            caller right before
+     * @param timeout
+     *            milliseconds to wait for a query
+     * @return offset
+     * @throws Exception
+     *             if the query failed or timed out
+     */
+    public static Entry get(final String[] hostnames, long maxAge, long timeout)
+            throws Exception {
+        final String key = getKey(hostnames);
+        long start = SystemClock.elapsedRealtime();
+
+        NtpQueryFuture<NtpSample> future;
+        synchronized (OffsetCache.class) {
+            Entry entry = entries.get(key);
+            if (entry != null && maxAge > 0 && entry.getAge() <= maxAge) {
+                return entry;
+            }
+
+            future = queries.get(key);
+            if (future == null) {
+                future = startQuery(key, hostnames, true);
+            }
+        }
+
+        // get() returns before the result is cached, an entry from before may still be cached
+        NtpSample sample = future.get(timeout, TimeUnit.MILLISECONDS);
+        synchronized (OffsetCache.class) {
+            // includes corrections of the clock since the query
+            Entry entry = entries.get(key);
+            if (entry != null && entry.mMeasured >= start) {
+                return entry;
+            }
+        }
+        return new Entry(hostnames, sample.getOffset(), sample.getRootDistance(),
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Measures the offset of the servers with a query of its own, which is neither shared with
+     * other callers nor answered from cache. Used before correcting the clock, an offset shared
+     * with another correction would be applied twice.
+     * 
+     * @param hostnames
+     * @param timeout
+     *            milliseconds to wait for the query
+     * @return offset
+     * @throws Exception
+     *             if the query failed or timed out
+     */
+    public static Entry measure(String[] hostnames, long timeout) throws Exception {
+        NtpQueryFuture<NtpSample> future;
+        synchronized (OffsetCache.class) {
+            future = startQuery(getKey(hostnames), hostnames, false);
+        }
+
+        NtpSample sample = future.get(timeout, TimeUnit.MILLISECONDS);
+        return new Entry(hostnames, sample.getOffset(), sample.getRootDistance(),
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param hostnames
+     * @return cached offset of the servers regardless of its age, null if there is none
+     */
+    public static synchronized Entry peek(String[] hostnames) {
+        return entries.get(getKey(hostnames));
+    }
+
+    /**
+     * Caches an offset measured by a sync
+     * 
+     * @param hostnames
+     * @param offset
+     * @param rootDistance
+     */
+    public static synchronized void put(String[] hostnames, long offset, double rootDistance) {
+        if (adjusting != null) {
+            return;
+        }
+        putEntry(getKey(hostnames), new Entry(hostnames, offset, rootDistance,
+                SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Called before the clock is corrected, the cached offsets are put aside until the
+     * correction is done
+     */
+    public static synchronized void onClockAdjusting() {
+        if (adjusting == null) {
+            adjusting = new HashMap<String, Entry>(entries);
+            entries.clear();
+        }
+        adjustments++;
+    }
+
+    /**
+     * Called after the clock has been corrected, the offsets put aside are restored reduced by
+     * the correction
+     * 
+     * @param correction
+     */
+    public static synchronized void onClockAdjusted(long correction) {
+        if (adjusting == null) {
+            return;
+        }
+        for (Map.Entry<String, Entry> pair : adjusting.entrySet()) {
+            Entry entry = pair.getValue();
+            Entry corrected = new Entry(entry.mHostnames, entry.mOffset - correction,
+                    entry.mRootDistance, entry.mMeasured);
+            entries.put(pair.getKey(), corrected);
+            notifyListeners(corrected);
+        }
+        adjusting = null;
+    }
+
+    /**
+     * Called if correcting the clock failed, it may have been corrected partially, so the
+     * offsets put aside are dropped
+     */
+    public static synchronized void onClockAdjustFailed() {
+        adjusting = null;
+    }
+
+    public static synchronized void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a query whose result is cached unless the clock is corrected meanwhile
+     * 
+     * @param shared
+     *            other callers of get() wait for this query instead of starting their own
+     */
+    private static NtpQueryFuture<NtpSample> startQuery(final String key,
+            final String[] hostnames, final boolean shared) {
+        final int adjustment = adjustments;
+        NtpQueryFuture<NtpSample> future = NtpSyncUtils.failoverQueryAsync(hostnames, 1, 0,
+                NtpSyncUtils.QUERY_TIMEOUT, new NtpQueryFuture.Callback<NtpSample>() {
+                    @Override
+                    public void onResult(NtpSample result) {
+                        synchronized (OffsetCache.class) {
+                            if (shared) {
+                                queries.remove(key);
+                            }
+                            if (adjusting == null && adjustment == adjustments) {
+                                putEntry(key, new Entry(hostnames, result.getOffset(), result
+                                        .getRootDistance(), SystemClock.elapsedRealtime()));
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        if (shared) {
+                            synchronized (OffsetCache.class) {
+                                queries.remove(key);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public SyncCost getCost() {
+                        return null;
+                    }
+                });
+        // a query that could not be submitted is already done
+        if (shared && !future.isDone()) {
+            queries.put(key, future);
+        }
+        return future;
+    }
+
+    private static void putEntry(String key, Entry entry) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(key)) {
+            entries.clear();
+        }
+        entries.put(key, entry);
+        notifyListeners(entry);
+    }
+
+    private static void notifyListeners(Entry entry) {
+        for (Listener listener : listeners) {
+            listener.onOffsetChanged(entry);
+        }
+    }
+
+    /**
+     * The same servers in a different order, e.g. ranked, are the same key
+     */
+    private static String getKey(String[] hostnames) {
+        String[] sorted = hostnames.clone();
+        Arrays.sort(sorted);
+        return Arrays.toString(sorted);
+    }
+}
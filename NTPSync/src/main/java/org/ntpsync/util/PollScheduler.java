@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.List;
+
+/**
+ * Computes the interval between automatic syncs similar to the poll exponent of ntpd. The
+ * interval is 2^poll seconds, poll is between MINPOLL and MAXPOLL.
+ * <p>
+ * The drift between two syncs is the offset that accumulated since the previous sync. If the
+ * drift plus jitter would exceed ACCURACY within the current interval, the interval is halved
+ * until it does not. If it stays below ACCURACY even for the doubled interval for HYSTERESIS
+ * consecutive syncs, the interval is doubled. The poll exponent is not stored, it is replayed
+ * from the sync history.
+ */
+public class PollScheduler {
+    // 2^10 s, about 17 minutes
+    public static final int MINPOLL = 10;
+    // 2^17 s, about 36 hours
+    public static final int MAXPOLL = 17;
+    // 2^16 s, about 18 hours, close to the daily sync used before
+    public static final int DEFAULT_POLL = 16;
+
+    // maximum error in milliseconds the clock should have before it is synced again
+    public static final double ACCURACY = 100;
+
+    private static final int HYSTERESIS = 3;
+
+    /**
+     * @param samples
+     *            sync history, oldest first
+     * @return poll exponent for the next interval
+     */
+    public static int getPollExponent(List<SyncHistory.Sample> samples) {
+        int poll = DEFAULT_POLL;
+        int count = 0;
+
+        for (int i = 1; i < samples.size(); i++) {
+            SyncHistory.Sample previous = samples.get(i - 1);
+            SyncHistory.Sample current = samples.get(i);
+
+            long interval = current.getTime() - previous.getTime();
+            if (interval <= 0) {
+                // clock has been set backwards by someone else, no usable drift
+                continue;
+            }
+
+            // offset accumulated since the previous sync
+            long drift = current.getOffset() - (previous.isApplied() ? 0 : previous.getOffset());
+            double rate = Math.abs((double) drift / interval);
+            double jitter = current.getJitter();
+
+            if (getExpectedError(rate, jitter, poll) > ACCURACY) {
+                while (poll > MINPOLL && getExpectedError(rate, jitter, poll) > ACCURACY) {
+                    poll--;
+                }
+                count = 0;
+            } else if (getExpectedError(rate, jitter, poll + 1) <= ACCURACY) {
+                count++;
+                if (count >= HYSTERESIS) {
+                    poll = Math.min(MAXPOLL, poll + 1);
+                    count = 0;
+                }
+            } else {
+                count = 0;
+            }
+        }
+
+        return poll;
+    }
+
+    /**
+     * @param samples
+     *            sync history, oldest first
+     * @param now
+     * @return time of the next sync, now if no sync happened so far
+     */
+    public static long getNextSyncTime(List<SyncHistory.Sample> samples, long now) {
+        if (samples.isEmpty()) {
+            return now;
+        }
+
+        long last = samples.get(samples.size() - 1).getTime();
+        return Math.max(now, last + getInterval(getPollExponent(samples)));
+    }
+
+    /**
+     * @param poll
+     * @return interval in milliseconds
+     */
+    public static long getInterval(int poll) {
+        return (1L << poll) * 1000;
+    }
+
+    /**
+     * Error the clock accumulates in one interval
+     */
+    private static double getExpectedError(double rate, double jitter, int poll) {
+        return rate * getInterval(poll) + jitter;
+    }
+}
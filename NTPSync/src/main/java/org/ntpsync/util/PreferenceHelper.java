@@ -54,6 +54,31 @@ public class PreferenceHelper {
                 Boolean.parseBoolean(context.getString(R.string.pref_sync_only_on_wifi_def)));
     }
 
+    public static boolean getSlewClock(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_slew_clock_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_slew_clock_def)));
+    }
+
+    /**
+     * @return offsets below this threshold in milliseconds are slewed, at most
+     *         Utils.MAX_SLEW_THRESHOLD
+     */
+    public static long getSlewThreshold(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        String threshold = prefs.getString(context.getString(R.string.pref_slew_threshold_key),
+                context.getString(R.string.pref_slew_threshold_def));
+        long value;
+        try {
+            value = Long.parseLong(threshold.trim());
+        } catch (NumberFormatException e) {
+            value = Long.parseLong(context.getString(R.string.pref_slew_threshold_def));
+        }
+        return Math.min(value, Utils.MAX_SLEW_THRESHOLD);
+    }
+
     public static boolean getShowSyncToast(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
                 Context.MODE_PRIVATE);
@@ -61,4 +86,39 @@ public class PreferenceHelper {
                 Boolean.parseBoolean(context.getString(R.string.pref_show_sync_toast_def)));
     }
 
-}
\ No newline at end of file
+    /**
+     * NTP server preference split into its hostnames, several servers can be separated by commas
+     * or spaces
+     * 
+     * @param context
+     * @return hostnames
+     */
+    public static String[] getNtpServers(Context context) {
+        return splitNtpServers(getNtpServer(context));
+    }
+
+    /**
+     * Splits a value of the NTP server preference into its hostnames
+     * 
+     * @param ntpServer
+     * @return hostnames
+     */
+    public static String[] splitNtpServers(String ntpServer) {
+        return ntpServer.trim().split("[,\\s]+");
+    }
+
+    public static boolean getQueryMultipleServers(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_query_multiple_servers_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_query_multiple_servers_def)));
+    }
+
+    public static boolean getDriftCorrection(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(Constants.PREFS_NAME,
+                Context.MODE_PRIVATE);
+        return prefs.getBoolean(context.getString(R.string.pref_drift_correction_key),
+                Boolean.parseBoolean(context.getString(R.string.pref_drift_correction_def)));
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.Random;
+
+import org.ntpsync.service.ConnectivityReceiver;
+import org.ntpsync.service.RetryReceiver;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+/**
+ * Retries failed automatic syncs with jittered exponential backoff instead of waiting for the
+ * next regular sync, and debounces connectivity changes.
+ * <p>
+ * After the n-th consecutive failure the next attempt is scheduled after a random delay between
+ * half and all of MIN_BACKOFF * 2^(n-1), capped at MAX_BACKOFF. The random part spreads the
+ * retries of many devices that lost the same server. At most MAX_ATTEMPTS_PER_DAY retries are
+ * done per day, after that the regular sync alarm takes over again. The state is persisted, thus
+ * a retry is scheduled again after the process was killed or the device rebooted.
+ * <p>
+ * Connectivity changes only set a short alarm, which every further change pushes back, thus a
+ * flapping network starts one sync once it settled. ConnectivityReceiver stays enabled until that
+ * alarm fires.
+ * <p>
+ * Every alarm carries the origin of the sync, ORIGIN_DAILY or ORIGIN_BOOT, so it is only dropped
+ * if the preference that started the sync has been disabled in the meantime.
+ */
+public class RetryScheduler {
+    public static final long DEBOUNCE = 15 * 1000;
+    public static final long MIN_BACKOFF = 60 * 1000;
+    public static final long MAX_BACKOFF = 60 * 60 * 1000;
+    public static final int MAX_ATTEMPTS_PER_DAY = 10;
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    public static final String ACTION_DEBOUNCED = "org.ntpsync.action.DEBOUNCED";
+    public static final String ACTION_RETRY = "org.ntpsync.action.RETRY";
+
+    public static final String EXTRA_ORIGIN = "origin";
+    public static final String ORIGIN_DAILY = "daily";
+    public static final String ORIGIN_BOOT = "boot";
+
+    private static final String PREFS_NAME = "retry_scheduler";
+    private static final String PREF_FAILURES = "failures";
+    private static final String PREF_ATTEMPTS = "attempts";
+    private static final String PREF_BUDGET_START = "budget_start";
+    private static final String PREF_NEXT_RETRY = "next_retry";
+    private static final String PREF_RETRY_ORIGIN = "retry_origin";
+    private static final String PREF_WAITING_ORIGIN = "waiting_origin";
+
+    private static final Random random = new Random();
+
+    /**
+     * @param context
+     * @param origin
+     *            ORIGIN_DAILY or ORIGIN_BOOT
+     * @return true if the preference that starts syncs of this origin is still enabled
+     */
+    public static boolean isEnabled(Context context, String origin) {
+        if (ORIGIN_BOOT.equals(origin)) {
+            return PreferenceHelper.getSetOnBoot(context);
+        }
+        return PreferenceHelper.getSyncDaily(context);
+    }
+
+    /**
+     * Enables ConnectivityReceiver, which starts the sync of the given origin once there is
+     * connectivity
+     * 
+     * @param context
+     * @param origin
+     */
+    public static void waitForConnectivity(Context context, String origin) {
+        getPrefs(context).edit().putString(PREF_WAITING_ORIGIN, origin).commit();
+        ConnectivityReceiver.enableReceiver(context);
+    }
+
+    /**
+     * @param context
+     * @return origin of the sync waiting for connectivity, ORIGIN_DAILY if none has been stored,
+     *         like for receivers enabled by older versions
+     */
+    public static String getWaitingOrigin(Context context) {
+        return getPrefs(context).getString(PREF_WAITING_ORIGIN, ORIGIN_DAILY);
+    }
+
+    /**
+     * Starts a sync DEBOUNCE after the last call, ConnectivityReceiver stays enabled until then
+     * 
+     * @param context
+     * @param origin
+     */
+    public static void debounce(Context context, String origin) {
+        Log.d(Constants.TAG, "Sync in " + DEBOUNCE + " ms if connectivity does not change again");
+
+        AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // setting the same PendingIntent again replaces the pending alarm
+        mgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + DEBOUNCE,
+                getPendingIntent(context, ACTION_DEBOUNCED, origin));
+    }
+
+    /**
+     * Called when the debounced alarm fires, disables ConnectivityReceiver. Starting the sync
+     * enables it again if connectivity is gone by then.
+     * 
+     * @param context
+     */
+    public static void onDebounced(Context context) {
+        getPrefs(context).edit().remove(PREF_WAITING_ORIGIN).commit();
+        ConnectivityReceiver.disableReceiver(context);
+    }
+
+    /**
+     * Called after an automatic sync failed, schedules the next retry if the budget of the day
+     * allows it
+     * 
+     * @param context
+     * @param origin
+     *            ORIGIN_DAILY or ORIGIN_BOOT, null for ORIGIN_DAILY
+     */
+    public static synchronized void onSyncFailed(Context context, String origin) {
+        if (origin == null) {
+            origin = ORIGIN_DAILY;
+        }
+
+        SharedPreferences prefs = getPrefs(context);
+        long now = System.currentTimeMillis();
+
+        long budgetStart = prefs.getLong(PREF_BUDGET_START, 0);
+        int attempts = prefs.getInt(PREF_ATTEMPTS, 0);
+        if (now - budgetStart >= DAY || now < budgetStart) {
+            budgetStart = now;
+            attempts = 0;
+        }
+        int failures = prefs.getInt(PREF_FAILURES, 0) + 1;
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt(PREF_FAILURES, failures);
+        editor.putLong(PREF_BUDGET_START, budgetStart);
+
+        if (attempts >= MAX_ATTEMPTS_PER_DAY) {
+            Log.d(Constants.TAG, "No retries left today, waiting for the next regular sync");
+            editor.putLong(PREF_NEXT_RETRY, 0);
+            editor.putInt(PREF_ATTEMPTS, attempts);
+            editor.commit();
+            return;
+        }
+
+        long nextRetry = now + getBackoff(failures);
+        editor.putInt(PREF_ATTEMPTS, attempts + 1);
+        editor.putLong(PREF_NEXT_RETRY, nextRetry);
+        editor.putString(PREF_RETRY_ORIGIN, origin);
+        editor.commit();
+
+        Log.d(Constants.TAG, "Sync failed " + failures + " times, retry " + (attempts + 1) + "/"
+                + MAX_ATTEMPTS_PER_DAY + " in " + (nextRetry - now) + " ms");
+        setRetryAlarm(context, nextRetry, origin);
+    }
+
+    /**
+     * Called after an automatic sync succeeded, resets the backoff and cancels a pending retry
+     * 
+     * @param context
+     */
+    public static synchronized void onSyncSucceeded(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        if (prefs.getInt(PREF_FAILURES, 0) == 0 && prefs.getLong(PREF_NEXT_RETRY, 0) == 0) {
+            return;
+        }
+
+        prefs.edit().putInt(PREF_FAILURES, 0).putLong(PREF_NEXT_RETRY, 0).commit();
+        cancel(context);
+    }
+
+    /**
+     * Schedules the persisted retry again, alarms do not survive a reboot
+     * 
+     * @param context
+     */
+    public static synchronized void restore(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        long nextRetry = prefs.getLong(PREF_NEXT_RETRY, 0);
+        if (nextRetry != 0) {
+            setRetryAlarm(context, Math.max(nextRetry, System.currentTimeMillis()),
+                    prefs.getString(PREF_RETRY_ORIGIN, ORIGIN_DAILY));
+        }
+    }
+
+    /**
+     * Cancels a pending retry
+     * 
+     * @param context
+     */
+    public static void cancel(Context context) {
+        AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mgr.cancel(getPendingIntent(context, ACTION_RETRY, null));
+    }
+
+    /**
+     * @param failures
+     *            number of consecutive failures, at least 1
+     * @return jittered delay until the next retry
+     */
+    static long getBackoff(int failures) {
+        long backoff = MAX_BACKOFF;
+        // shifting by 31 or more would overflow
+        if (failures <= 31) {
+            backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << (failures - 1));
+        }
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    private static void setRetryAlarm(Context context, long time, String origin) {
+        AlarmManager mgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        mgr.set(AlarmManager.RTC_WAKEUP, time, getPendingIntent(context, ACTION_RETRY, origin));
+    }
+
+    private static PendingIntent getPendingIntent(Context context, String action, String origin) {
+        Intent intent = new Intent(context, RetryReceiver.class);
+        intent.setAction(action);
+        // extras do not take part in matching, FLAG_UPDATE_CURRENT replaces them
+        intent.putExtra(EXTRA_ORIGIN, origin);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
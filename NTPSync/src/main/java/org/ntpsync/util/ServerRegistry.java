@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Keeps a rolling health record of every NTP server that has been queried and ranks servers by
+ * it, so queries go to the best servers first.
+ * <p>
+ * Like ntpd, the reachability of a server is an 8-bit shift register: every query shifts it left
+ * and a reply sets the lowest bit. In addition the delays of the last HISTORY replies and the
+ * last stratum are kept. The score of a server is an estimate of its error in milliseconds, half
+ * the median delay plus the jitter of the delays, plus a penalty per stratum and a large penalty
+ * per missed reply. Offsets are not used for the jitter, because they include the drift and the
+ * corrections of the local clock between syncs.
+ * <p>
+ * Servers are persisted by hostname, the addresses of pools change anyway. Hostnames also come
+ * from remote clients, so only the MAX_SERVERS most recently queried servers are kept.
+ */
+public class ServerRegistry {
+    // number of delays kept per server
+    private static final int HISTORY = 8;
+    private static final int REACH_BITS = 8;
+    private static final int REACH_MASK = (1 << REACH_BITS) - 1;
+
+    private static final int MAX_SERVERS = 32;
+
+    private static final double MISSED_REPLY_PENALTY = 1000;
+    private static final double STRATUM_PENALTY = 10;
+    // servers that never replied rank behind good, but before unreliable servers
+    private static final int STRATUM_UNKNOWN = 16;
+
+    private static final String PREFS_NAME = "server_registry";
+
+    private static class Server {
+        int mReach;
+        // number of queries in the reach register, at most 8
+        int mPolls;
+        int mStratum = STRATUM_UNKNOWN;
+        final long[] mDelays = new long[HISTORY];
+        int mDelayCount;
+        int mNextDelay;
+        // wall clock time of the last query, to evict the least recently queried server
+        long mLastQueried;
+
+        void onReply(long delay, int stratum) {
+            shift(true);
+            mStratum = (stratum > 0 && stratum < STRATUM_UNKNOWN) ? stratum : STRATUM_UNKNOWN;
+            mDelays[mNextDelay] = Math.max(0, delay);
+            mNextDelay = (mNextDelay + 1) % HISTORY;
+            mDelayCount = Math.min(mDelayCount + 1, HISTORY);
+        }
+
+        void shift(boolean replied) {
+            mReach = ((mReach << 1) | (replied ? 1 : 0)) & REACH_MASK;
+            mPolls = Math.min(mPolls + 1, REACH_BITS);
+            mLastQueried = System.currentTimeMillis();
+        }
+
+        double getMedianDelay() {
+            if (mDelayCount == 0) {
+                return 0;
+            }
+            long[] sorted = new long[mDelayCount];
+            System.arraycopy(mDelays, 0, sorted, 0, mDelayCount);
+            Arrays.sort(sorted);
+            int middle = mDelayCount / 2;
+            return (mDelayCount % 2 == 1) ? sorted[middle]
+                    : (sorted[middle - 1] + sorted[middle]) / 2.0;
+        }
+
+        /**
+         * RMS of the difference of the delays to the minimum delay, halved like the delay
+         * itself, because asymmetric path delays are what makes the offset wrong
+         */
+        double getJitter() {
+            if (mDelayCount < 2) {
+                return 0;
+            }
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < mDelayCount; i++) {
+                min = Math.min(min, mDelays[i]);
+            }
+            double sum = 0;
+            for (int i = 0; i < mDelayCount; i++) {
+                double diff = (mDelays[i] - min) / 2.0;
+                sum += diff * diff;
+            }
+            return Math.sqrt(sum / (mDelayCount - 1));
+        }
+
+        double getScore() {
+            int missed = mPolls - Integer.bitCount(mReach);
+            return getMedianDelay() / 2 + getJitter() + mStratum * STRATUM_PENALTY + missed
+                    * MISSED_REPLY_PENALTY;
+        }
+
+        /**
+         * format is reach;polls;stratum;delay,delay,...;last queried with the oldest delay first
+         */
+        String serialize() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mReach).append(';').append(mPolls).append(';').append(mStratum).append(';');
+            for (int i = 0; i < mDelayCount; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(mDelays[(mNextDelay - mDelayCount + i + HISTORY) % HISTORY]);
+            }
+            sb.append(';').append(mLastQueried);
+            return sb.toString();
+        }
+
+        static Server deserialize(String value) {
+            String[] fields = value.split(";", -1);
+            Server server = new Server();
+            server.mReach = Integer.parseInt(fields[0]) & REACH_MASK;
+            server.mPolls = Math.min(Integer.parseInt(fields[1]), REACH_BITS);
+            server.mStratum = Integer.parseInt(fields[2]);
+            if (fields[3].length() > 0) {
+                for (String delay : fields[3].split(",")) {
+                    server.mDelays[server.mNextDelay] = Long.parseLong(delay);
+                    server.mNextDelay = (server.mNextDelay + 1) % HISTORY;
+                    server.mDelayCount = Math.min(server.mDelayCount + 1, HISTORY);
+                }
+            }
+            // missing in records written before servers were evicted
+            if (fields.length > 4) {
+                server.mLastQueried = Long.parseLong(fields[4]);
+            }
+            return server;
+        }
+    }
+
+    private static final HashMap<String, Server> servers = new HashMap<String, Server>();
+
+    // used for servers without record, so ranking unknown hostnames does not add records
+    private static final Server UNKNOWN = new Server();
+
+    private static SharedPreferences prefs;
+
+    /**
+     * Loads the persisted records
+     * 
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+            try {
+                servers.put(pref.getKey(), Server.deserialize(String.valueOf(pref.getValue())));
+            } catch (Exception e) {
+                Log.d(Constants.TAG, "Dropping invalid record of " + pref.getKey(), e);
+            }
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        while (servers.size() > MAX_SERVERS) {
+            editor.remove(evict());
+        }
+        apply(editor);
+    }
+
+    /**
+     * Records a reply
+     * 
+     * @param sample
+     */
+    public static synchronized void onReply(NtpSample sample) {
+        Server server = addServer(sample.getHostname());
+        server.onReply(sample.getDelay(), sample.getStratum());
+        save(sample.getHostname(), server);
+    }
+
+    /**
+     * Records a query that was not answered in time
+     * 
+     * @param hostname
+     */
+    public static synchronized void onTimeout(String hostname) {
+        Server server = addServer(hostname);
+        server.shift(false);
+        save(hostname, server);
+    }
+
+    /**
+     * @param hostname
+     * @return estimated error in milliseconds including penalties, lower is better
+     */
+    public static synchronized double getScore(String hostname) {
+        return getServer(hostname).getScore();
+    }
+
+    /**
+     * @param hostname
+     * @return 8-bit reach register, the lowest bit is the last query
+     */
+    public static synchronized int getReach(String hostname) {
+        return getServer(hostname).mReach;
+    }
+
+    /**
+     * Sorts hostnames by their score, the best first. Hostnames with equal scores, e.g. ones
+     * that were never queried, keep their order.
+     * 
+     * @param hostnames
+     * @return new sorted array
+     */
+    public static synchronized String[] rank(String[] hostnames) {
+        final HashMap<String, Double> scores = new HashMap<String, Double>();
+        for (String hostname : hostnames) {
+            scores.put(hostname, Double.valueOf(getServer(hostname).getScore()));
+        }
+
+        String[] ranked = hostnames.clone();
+        // merge sort, stable
+        Arrays.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return scores.get(lhs).compareTo(scores.get(rhs));
+            }
+        });
+        return ranked;
+    }
+
+    private static Server getServer(String hostname) {
+        Server server = servers.get(hostname);
+        return (server != null) ? server : UNKNOWN;
+    }
+
+    /**
+     * @return record of the server, a new one if there is none, evicting the least recently
+     *         queried server if there are MAX_SERVERS
+     */
+    private static Server addServer(String hostname) {
+        Server server = servers.get(hostname);
+        if (server == null) {
+            if (servers.size() >= MAX_SERVERS) {
+                String evicted = evict();
+                if (prefs != null) {
+                    apply(prefs.edit().remove(evicted));
+                }
+            }
+            server = new Server();
+            servers.put(hostname, server);
+        }
+        return server;
+    }
+
+    /**
+     * Removes the least recently queried server
+     * 
+     * @return its hostname
+     */
+    private static String evict() {
+        String oldest = null;
+        long oldestQueried = Long.MAX_VALUE;
+        for (Map.Entry<String, Server> entry : servers.entrySet()) {
+            if (entry.getValue().mLastQueried < oldestQueried) {
+                oldest = entry.getKey();
+                oldestQueried = entry.getValue().mLastQueried;
+            }
+        }
+        servers.remove(oldest);
+        return oldest;
+    }
+
+    private static void save(String hostname, Server server) {
+        if (prefs != null) {
+            apply(prefs.edit().putString(hostname, server.serialize()));
+        }
+    }
+
+    /**
+     * Writes asynchronously where possible, records are saved after every reply
+     */
+    @SuppressLint("NewApi")
+    private static void apply(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= 9) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+}
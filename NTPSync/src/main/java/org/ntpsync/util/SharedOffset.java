@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+/**
+ * Corrected time for client apps without any IPC per read. The current offset, drift, an anchor
+ * and the error bound are published in a small memory-mapped file, which clients get as a read
+ * only file descriptor from NtpSyncRemoteService, map once and read with a few loads.
+ * <p>
+ * The region is guarded by a seqlock: the writer makes the sequence odd, writes the fields and
+ * makes it even again, readers retry while the sequence is odd or changed during their read.
+ * The corrected time is computed from SystemClock, not from the wall clock, thus it stays right
+ * when the wall clock is set.
+ * <p>
+ * Layout (big endian): magic, version, sequence (ints), padding, anchor elapsed realtime in
+ * nanoseconds, corrected time at the anchor in milliseconds, offset of the wall clock at the
+ * anchor in milliseconds (longs), drift in ppm, error bound at the anchor in milliseconds, growth
+ * of the error bound per millisecond (doubles)
+ */
+public class SharedOffset {
+    public static final int SIZE = 64;
+
+    private static final String FILE_NAME = "shared_offset.bin";
+
+    private static final int MAGIC = 0x4e545053; // "NTPS"
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 4;
+    private static final int SEQUENCE_INDEX = 8;
+    private static final int ANCHOR_ELAPSED_INDEX = 16;
+    private static final int ANCHOR_TIME_INDEX = 24;
+    private static final int OFFSET_INDEX = 32;
+    private static final int DRIFT_INDEX = 40;
+    private static final int ERROR_BOUND_INDEX = 48;
+    private static final int ERROR_RATE_INDEX = 56;
+
+    // reads give up after this number of concurrent writes
+    private static final int MAX_RETRIES = 100;
+
+    /*
+     * Java 6 has no explicit fences, a volatile write followed by a volatile read orders the
+     * accesses to the mapping before it against those after it on Dalvik and ART
+     */
+    private static volatile int fence;
+
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) {
+            throw new AssertionError();
+        }
+    }
+
+    private static MappedByteBuffer buffer;
+    private static Handler handler;
+    private static Context appContext;
+
+    /**
+     * Published values, times in milliseconds
+     */
+    public static class Snapshot {
+        private final int mSequence;
+        private final long mAnchorElapsed;
+        private final long mAnchorTime;
+        private final long mOffset;
+        private final double mDrift;
+        private final double mErrorBound;
+        private final double mErrorRate;
+
+        Snapshot(int sequence, long anchorElapsed, long anchorTime, long offset, double drift,
+                double errorBound, double errorRate) {
+            mSequence = sequence;
+            mAnchorElapsed = anchorElapsed;
+            mAnchorTime = anchorTime;
+            mOffset = offset;
+            mDrift = drift;
+            mErrorBound = errorBound;
+            mErrorRate = errorRate;
+        }
+
+        /**
+         * @return corrected time in milliseconds since the epoch
+         */
+        public long currentTimeMillis() {
+            return mAnchorTime + Math.round(getElapsedSinceAnchor() * (1 + mDrift * 1e-6) / 1e6);
+        }
+
+        /**
+         * @return corrected time in nanoseconds since the epoch, as precise as the anchor
+         */
+        public long currentTimeNanos() {
+            return mAnchorTime * 1000000L
+                    + Math.round(getElapsedSinceAnchor() * (1 + mDrift * 1e-6));
+        }
+
+        /**
+         * @return offset of the wall clock when the snapshot was published
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return drift in ppm, positive if the local clock is slow
+         */
+        public double getDrift() {
+            return mDrift;
+        }
+
+        /**
+         * @return maximum error of the corrected time now
+         */
+        public double getErrorBound() {
+            return mErrorBound + mErrorRate * getElapsedSinceAnchor() / 1e6;
+        }
+
+        private long getElapsedSinceAnchor() {
+            return elapsedRealtimeNanos() - mAnchorElapsed;
+        }
+    }
+
+    /**
+     * Reads snapshots from a mapping, for the app the file descriptor was handed to
+     */
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private Snapshot mSnapshot;
+
+        /**
+         * @param descriptor
+         *            from NtpSyncRemoteService.getSharedOffset, can be closed afterwards
+         * @throws IOException
+         */
+        public Reader(ParcelFileDescriptor descriptor) throws IOException {
+            FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                mBuffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Lock free, returns the previous snapshot without reading the fields if nothing was
+         * published in the meantime
+         * 
+         * @return snapshot or null if nothing has been published since boot or the writer was
+         *         busy for too long
+         */
+        public Snapshot read() {
+            Snapshot snapshot = mSnapshot;
+            for (int i = 0; i < MAX_RETRIES; i++) {
+                int sequence = mBuffer.getInt(SEQUENCE_INDEX);
+                if (snapshot != null && snapshot.mSequence == sequence) {
+                    return snapshot;
+                }
+                if (sequence == 0 || mBuffer.getInt(MAGIC_INDEX) != MAGIC
+                        || mBuffer.getInt(VERSION_INDEX) != VERSION) {
+                    return null;
+                }
+                if ((sequence & 1) != 0) {
+                    // write in progress
+                    continue;
+                }
+
+                fence();
+                Snapshot read = new Snapshot(sequence, mBuffer.getLong(ANCHOR_ELAPSED_INDEX),
+                        mBuffer.getLong(ANCHOR_TIME_INDEX), mBuffer.getLong(OFFSET_INDEX),
+                        mBuffer.getDouble(DRIFT_INDEX), mBuffer.getDouble(ERROR_BOUND_INDEX),
+                        mBuffer.getDouble(ERROR_RATE_INDEX));
+                fence();
+
+                if (mBuffer.getInt(SEQUENCE_INDEX) == sequence) {
+                    // cleared, or published before a reboot if the anchor is in the future
+                    if (read.mAnchorElapsed == 0 || read.mAnchorElapsed > elapsedRealtimeNanos()) {
+                        return null;
+                    }
+                    mSnapshot = read;
+                    return read;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Publishes every new offset of the OffsetCache. Offsets published before the process
+     * started, e.g. before a reboot, are discarded.
+     * 
+     * @param context
+     */
+    public static synchronized void init(Context context) {
+        if (handler != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        // drift is estimated from the history, not while OffsetCache is locked
+        handler = new Handler();
+
+        OffsetCache.addListener(new OffsetCache.Listener() {
+            @Override
+            public void onOffsetChanged(final OffsetCache.Entry entry) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        publish(appContext, entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Publishes the offset, with the drift estimated from the sync history
+     * 
+     * @param context
+     * @param entry
+     */
+    public static synchronized void publish(Context context, OffsetCache.Entry entry) {
+        MappedByteBuffer buffer = getBuffer(context);
+        if (buffer == null) {
+            return;
+        }
+
+        double drift = DriftEstimator.estimate(SyncHistory.getSamples(context));
+        if (Double.isNaN(drift)) {
+            drift = 0;
+        }
+
+        long age = entry.getAge();
+        long anchorElapsed = elapsedRealtimeNanos();
+        long offset = entry.getOffset() + Math.round(drift * 1e-6 * age);
+
+        write(buffer, anchorElapsed, System.currentTimeMillis() + offset, offset, drift,
+                entry.getErrorBound(), OffsetCache.PHI);
+
+        Log.d(Constants.TAG, "Published offset " + offset + " with drift " + drift + " ppm");
+    }
+
+    private static void write(MappedByteBuffer buffer, long anchorElapsed, long anchorTime,
+            long offset, double drift, double errorBound, double errorRate) {
+        int sequence = buffer.getInt(SEQUENCE_INDEX);
+        buffer.putInt(SEQUENCE_INDEX, sequence + 1);
+        fence();
+        buffer.putLong(ANCHOR_ELAPSED_INDEX, anchorElapsed);
+        buffer.putLong(ANCHOR_TIME_INDEX, anchorTime);
+        buffer.putLong(OFFSET_INDEX, offset);
+        buffer.putDouble(DRIFT_INDEX, drift);
+        buffer.putDouble(ERROR_BOUND_INDEX, errorBound);
+        buffer.putDouble(ERROR_RATE_INDEX, errorRate);
+        fence();
+        buffer.putInt(SEQUENCE_INDEX, sequence + 2);
+    }
+
+    /**
+     * @param context
+     * @return read only descriptor of the region, for clients
+     * @throws FileNotFoundException
+     */
+    public static ParcelFileDescriptor open(Context context) throws FileNotFoundException {
+        if (getBuffer(context) == null) {
+            throw new FileNotFoundException("Shared offset could not be mapped");
+        }
+        return ParcelFileDescriptor.open(new File(context.getFilesDir(), FILE_NAME),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * The clock of the anchor, the same for NTPSync and clients on the same device
+     * 
+     * @return nanoseconds since boot
+     */
+    @SuppressLint("NewApi")
+    public static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= 17) {
+            return SystemClock.elapsedRealtimeNanos();
+        } else {
+            return SystemClock.elapsedRealtime() * 1000000L;
+        }
+    }
+
+    /**
+     * Maps the file once and clears the values, it stays mapped for the lifetime of the process
+     * 
+     * @return buffer or null if the file could not be mapped
+     */
+    private static synchronized MappedByteBuffer getBuffer(Context context) {
+        if (buffer != null) {
+            return buffer;
+        }
+
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        MappedByteBuffer mapped;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(SIZE);
+                // the mapping stays valid after closing the file
+                mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not map shared offset!", e);
+            return null;
+        }
+
+        if (mapped.getInt(MAGIC_INDEX) != MAGIC || mapped.getInt(VERSION_INDEX) != VERSION) {
+            // sequence 0 tells readers that nothing has been published yet
+            for (int i = 0; i < SIZE; i++) {
+                mapped.put(i, (byte) 0);
+            }
+            mapped.putInt(VERSION_INDEX, VERSION);
+            mapped.putInt(MAGIC_INDEX, MAGIC);
+        } else {
+            // may be from before a reboot, the sequence goes on so readers notice the change
+            write(mapped, 0, 0, 0, 0, 0, 0);
+        }
+        buffer = mapped;
+        return buffer;
+    }
+}
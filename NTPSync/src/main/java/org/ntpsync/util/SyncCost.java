@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+/**
+ * Resources used by one sync, accumulated while the sync runs on different threads. All times
+ * are in milliseconds.
+ */
+public class SyncCost {
+    private final long mTime;
+    private double mWakeLockTime;
+    private double mDnsTime;
+    private double mSocketTime;
+    private double mRootShellTime;
+    private double mSlewTime;
+    private int mPackets;
+    private long mBytes;
+
+    public SyncCost() {
+        this(System.currentTimeMillis());
+    }
+
+    SyncCost(long time, double wakeLockTime, double dnsTime, double socketTime,
+            double rootShellTime, double slewTime, int packets, long bytes) {
+        this(time);
+        mWakeLockTime = wakeLockTime;
+        mDnsTime = dnsTime;
+        mSocketTime = socketTime;
+        mRootShellTime = rootShellTime;
+        mSlewTime = slewTime;
+        mPackets = packets;
+        mBytes = bytes;
+    }
+
+    private SyncCost(long time) {
+        mTime = time;
+    }
+
+    /**
+     * @param nanos
+     *            time the wake lock was held
+     */
+    public synchronized void addWakeLockTime(long nanos) {
+        mWakeLockTime += nanos / 1e6;
+    }
+
+    /**
+     * @param nanos
+     *            time spent resolving hostnames
+     */
+    public synchronized void addDnsTime(long nanos) {
+        mDnsTime += nanos / 1e6;
+    }
+
+    /**
+     * @param nanos
+     *            time a socket was open
+     */
+    public synchronized void addSocketTime(long nanos) {
+        mSocketTime += nanos / 1e6;
+    }
+
+    /**
+     * @param nanos
+     *            time spent setting the clock, including waiting for the root shell, without
+     *            the slew time
+     */
+    public synchronized void addRootShellTime(long nanos) {
+        mRootShellTime += nanos / 1e6;
+    }
+
+    /**
+     * @param nanos
+     *            time spent waiting between the steps of a slewed correction
+     */
+    public synchronized void addSlewTime(long nanos) {
+        mSlewTime += nanos / 1e6;
+    }
+
+    /**
+     * @param packets
+     *            packets sent and received
+     * @param bytes
+     *            UDP payload bytes sent and received
+     */
+    public synchronized void addTraffic(int packets, long bytes) {
+        mPackets += packets;
+        mBytes += bytes;
+    }
+
+    /**
+     * @return time the sync started
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public synchronized double getWakeLockTime() {
+        return mWakeLockTime;
+    }
+
+    public synchronized double getDnsTime() {
+        return mDnsTime;
+    }
+
+    public synchronized double getSocketTime() {
+        return mSocketTime;
+    }
+
+    public synchronized double getRootShellTime() {
+        return mRootShellTime;
+    }
+
+    public synchronized double getSlewTime() {
+        return mSlewTime;
+    }
+
+    public synchronized int getPackets() {
+        return mPackets;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "wake lock " + mWakeLockTime + ", DNS " + mDnsTime + ", socket " + mSocketTime
+                + ", root shell " + mRootShellTime + ", slew " + mSlewTime + ", " + mPackets
+                + " packets, " + mBytes + " bytes";
+    }
+}
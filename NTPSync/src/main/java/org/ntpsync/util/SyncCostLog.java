@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Persisted cost of the most recent syncs and percentiles over them, used to tune the schedule
+ * against the energy syncs really take.
+ * <p>
+ * Stored like the SyncHistory in a MappedRingBuffer of fixed size binary records.
+ * <p>
+ * Record: time (long), wake lock, DNS, socket, root shell time (floats), packets, bytes (ints),
+ * slew time (float), padding
+ */
+public class SyncCostLog {
+    public static final int CAPACITY = 256;
+
+    // keys of the summary, each holds a double array with the values at PERCENTILES
+    public static final String SUMMARY_COUNT = "count";
+    public static final String SUMMARY_WAKE_LOCK_TIME = "wake_lock_time";
+    public static final String SUMMARY_DNS_TIME = "dns_time";
+    public static final String SUMMARY_SOCKET_TIME = "socket_time";
+    public static final String SUMMARY_ROOT_SHELL_TIME = "root_shell_time";
+    public static final String SUMMARY_SLEW_TIME = "slew_time";
+    public static final String SUMMARY_PACKETS = "packets";
+    public static final String SUMMARY_BYTES = "bytes";
+
+    public static final double[] PERCENTILES = { 50, 90, 99, 100 };
+
+    private static final String FILE_NAME = "sync_cost.bin";
+
+    private static final int MAGIC = 0x4e545043; // "NTPC"
+    private static final int VERSION = 2;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int TIME_INDEX = 0;
+    private static final int WAKE_LOCK_TIME_INDEX = 8;
+    private static final int DNS_TIME_INDEX = 12;
+    private static final int SOCKET_TIME_INDEX = 16;
+    private static final int ROOT_SHELL_TIME_INDEX = 20;
+    private static final int PACKETS_INDEX = 24;
+    private static final int BYTES_INDEX = 28;
+    private static final int SLEW_TIME_INDEX = 32;
+
+    private static final MappedRingBuffer FILE = new MappedRingBuffer(FILE_NAME, MAGIC, VERSION,
+            RECORD_SIZE, CAPACITY);
+
+    /**
+     * Appends the cost of a finished sync, the oldest one is overwritten if there are more than
+     * CAPACITY
+     * 
+     * @param context
+     * @param cost
+     */
+    public static synchronized void add(Context context, SyncCost cost) {
+        MappedByteBuffer log = FILE.getBuffer(context);
+        if (log == null) {
+            return;
+        }
+
+        long count = log.getLong(MappedRingBuffer.COUNT_INDEX);
+        int index = FILE.getRecordIndex(count);
+
+        log.putLong(index + TIME_INDEX, cost.getTime());
+        log.putFloat(index + WAKE_LOCK_TIME_INDEX, (float) cost.getWakeLockTime());
+        log.putFloat(index + DNS_TIME_INDEX, (float) cost.getDnsTime());
+        log.putFloat(index + SOCKET_TIME_INDEX, (float) cost.getSocketTime());
+        log.putFloat(index + ROOT_SHELL_TIME_INDEX, (float) cost.getRootShellTime());
+        log.putInt(index + PACKETS_INDEX, cost.getPackets());
+        log.putInt(index + BYTES_INDEX, (int) Math.min(Integer.MAX_VALUE, cost.getBytes()));
+        log.putFloat(index + SLEW_TIME_INDEX, (float) cost.getSlewTime());
+
+        // record is complete, publish it
+        log.putLong(MappedRingBuffer.COUNT_INDEX, count + 1);
+    }
+
+    /**
+     * @param context
+     * @return costs of up to CAPACITY most recent syncs, oldest first
+     */
+    public static synchronized List<SyncCost> getCosts(Context context) {
+        ArrayList<SyncCost> costs = new ArrayList<SyncCost>();
+        MappedByteBuffer log = FILE.getBuffer(context);
+        if (log == null) {
+            return costs;
+        }
+
+        long count = log.getLong(MappedRingBuffer.COUNT_INDEX);
+        for (long i = Math.max(0, count - CAPACITY); i < count; i++) {
+            int index = FILE.getRecordIndex(i);
+            costs.add(new SyncCost(log.getLong(index + TIME_INDEX), log.getFloat(index
+                    + WAKE_LOCK_TIME_INDEX), log.getFloat(index + DNS_TIME_INDEX),
+                    log.getFloat(index + SOCKET_TIME_INDEX), log.getFloat(index
+                            + ROOT_SHELL_TIME_INDEX), log.getFloat(index + SLEW_TIME_INDEX),
+                    log.getInt(index + PACKETS_INDEX), log.getInt(index + BYTES_INDEX)));
+        }
+        return costs;
+    }
+
+    /**
+     * Percentiles of the recorded costs
+     * 
+     * @param context
+     * @return bundle with SUMMARY_COUNT and for each cost a double array with the values at
+     *         PERCENTILES, empty arrays if no sync has been recorded
+     */
+    public static Bundle getSummary(Context context) {
+        List<SyncCost> costs = getCosts(context);
+        int size = costs.size();
+        double[] wakeLockTimes = new double[size];
+        double[] dnsTimes = new double[size];
+        double[] socketTimes = new double[size];
+        double[] rootShellTimes = new double[size];
+        double[] slewTimes = new double[size];
+        double[] packets = new double[size];
+        double[] bytes = new double[size];
+        for (int i = 0; i < size; i++) {
+            SyncCost cost = costs.get(i);
+            wakeLockTimes[i] = cost.getWakeLockTime();
+            dnsTimes[i] = cost.getDnsTime();
+            socketTimes[i] = cost.getSocketTime();
+            rootShellTimes[i] = cost.getRootShellTime();
+            slewTimes[i] = cost.getSlewTime();
+            packets[i] = cost.getPackets();
+            bytes[i] = cost.getBytes();
+        }
+
+        Bundle summary = new Bundle();
+        summary.putInt(SUMMARY_COUNT, size);
+        summary.putDoubleArray(SUMMARY_WAKE_LOCK_TIME, getPercentiles(wakeLockTimes));
+        summary.putDoubleArray(SUMMARY_DNS_TIME, getPercentiles(dnsTimes));
+        summary.putDoubleArray(SUMMARY_SOCKET_TIME, getPercentiles(socketTimes));
+        summary.putDoubleArray(SUMMARY_ROOT_SHELL_TIME, getPercentiles(rootShellTimes));
+        summary.putDoubleArray(SUMMARY_SLEW_TIME, getPercentiles(slewTimes));
+        summary.putDoubleArray(SUMMARY_PACKETS, getPercentiles(packets));
+        summary.putDoubleArray(SUMMARY_BYTES, getPercentiles(bytes));
+        return summary;
+    }
+
+    /**
+     * Nearest-rank percentiles
+     * 
+     * @param values
+     *            sorted in place
+     * @return values at PERCENTILES, empty if there are no values
+     */
+    static double[] getPercentiles(double[] values) {
+        if (values.length == 0) {
+            return new double[0];
+        }
+
+        Arrays.sort(values);
+        double[] percentiles = new double[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            int rank = (int) Math.ceil(PERCENTILES[i] / 100 * values.length);
+            percentiles[i] = values[Math.max(0, rank - 1)];
+        }
+        return percentiles;
+    }
+}
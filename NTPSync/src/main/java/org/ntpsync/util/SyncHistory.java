@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ntpsync.service.NtpSyncService;
+
+import android.content.Context;
+import android.os.Bundle;
+
+/**
+ * Persisted history of all syncs and corrections of the clock, used to adapt the sync interval,
+ * to estimate the drift of the clock and to verify how well corrections converged.
+ * <p>
+ * Samples are stored in a MappedRingBuffer of CAPACITY fixed size binary records, the oldest
+ * record is overwritten when it is full. Appending writes one record and the counter in the
+ * header, reading does not parse anything.
+ * <p>
+ * Record: time, offset (longs), delay, jitter, dispersion, root distance (floats), correction
+ * (int), outcome, stratum, flags, address length (bytes), address (16 bytes), duration (int),
+ * padding
+ */
+public class SyncHistory {
+    public static final int CAPACITY = 1024;
+
+    // number of recent samples used by getSamples(Context)
+    public static final int MAX_SAMPLES = 32;
+
+    // keys of the bundle returned by getHistory
+    public static final String HISTORY_TIME = "time";
+    public static final String HISTORY_SERVER = "server";
+    public static final String HISTORY_OFFSET = "offset";
+    public static final String HISTORY_DELAY = "delay";
+    public static final String HISTORY_STRATUM = "stratum";
+    public static final String HISTORY_OUTCOME = "outcome";
+    public static final String HISTORY_APPLIED = "applied";
+    public static final String HISTORY_CORRECTION = "correction";
+
+    private static final String FILE_NAME = "sync_history.bin";
+
+    private static final int MAGIC = 0x4e545048; // "NTPH"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_SIZE = 64;
+    private static final int TIME_INDEX = 0;
+    private static final int OFFSET_INDEX = 8;
+    private static final int DELAY_INDEX = 16;
+    private static final int JITTER_INDEX = 20;
+    private static final int DISPERSION_INDEX = 24;
+    private static final int ROOT_DISTANCE_INDEX = 28;
+    private static final int CORRECTION_INDEX = 32;
+    private static final int OUTCOME_INDEX = 36;
+    private static final int STRATUM_INDEX = 37;
+    private static final int FLAGS_INDEX = 38;
+    private static final int ADDRESS_LENGTH_INDEX = 39;
+    private static final int ADDRESS_INDEX = 40;
+    private static final int DURATION_INDEX = 56;
+
+    private static final int FLAG_MEASURED = 1;
+    private static final int FLAG_APPLIED = 2;
+    private static final int FLAG_CORRECTION = 4;
+    private static final int FLAG_SLEWED = 8;
+
+    private static final MappedRingBuffer FILE = new MappedRingBuffer(FILE_NAME, MAGIC, VERSION,
+            RECORD_SIZE, CAPACITY);
+
+    /**
+     * One sync or correction, all times in milliseconds
+     */
+    public static class Sample {
+        private final long mTime;
+        private final String mAddress;
+        private final long mOffset;
+        private final double mDelay;
+        private final double mJitter;
+        private final int mStratum;
+        private final double mDispersion;
+        private final double mRootDistance;
+        private final int mOutcome;
+        private final boolean mMeasured;
+        private final boolean mApplied;
+        private final long mCorrection;
+        private final boolean mIsCorrection;
+        private final boolean mSlewed;
+        private final long mDuration;
+
+        private Sample(long time, String address, long offset, double delay, double jitter,
+                int stratum, double dispersion, double rootDistance, int outcome,
+                boolean measured, boolean applied, long correction, boolean isCorrection,
+                boolean slewed, long duration) {
+            mTime = time;
+            mAddress = address;
+            mOffset = offset;
+            mDelay = delay;
+            mJitter = jitter;
+            mStratum = stratum;
+            mDispersion = dispersion;
+            mRootDistance = rootDistance;
+            mOutcome = outcome;
+            mMeasured = measured;
+            mApplied = applied;
+            mCorrection = correction;
+            mIsCorrection = isCorrection;
+            mSlewed = slewed;
+            mDuration = duration;
+        }
+
+        /**
+         * Sample of a successful query
+         * 
+         * @param peer
+         *            sample of the server used, its time is the time of the sync
+         * @param offset
+         *            offset of the sync, may be combined from several servers
+         * @param jitter
+         *            0 if unknown
+         * @param rootDistance
+         *            maximum error of the offset
+         * @param outcome
+         *            one of the RETURN_ codes of NtpSyncService, the offset may not have been
+         *            applied successfully
+         * @param applied
+         *            true if the offset has been applied to the clock
+         * @param correction
+         *            sum of the predictive drift corrections applied to the clock since the
+         *            previous sync
+         */
+        public Sample(NtpSample peer, long offset, double jitter, double rootDistance,
+                int outcome, boolean applied, long correction) {
+            this(peer.getTime(), peer.getAddress(), offset, peer.getDelay(), jitter, peer
+                    .getStratum(), peer.getRootDispersion(), rootDistance, outcome, true,
+                    applied, correction, false, false, 0);
+        }
+
+        /**
+         * Sample of a failed query
+         * 
+         * @param time
+         * @param outcome
+         *            one of the RETURN_ codes of NtpSyncService
+         */
+        public Sample(long time, int outcome) {
+            this(time, null, 0, 0, 0, 0, 0, 0, outcome, false, false, 0, false, false, 0);
+        }
+
+        /**
+         * Correction of the clock, either of the offset of a sync or of the drift between syncs
+         * 
+         * @param time
+         *            local time when the correction started
+         * @param offset
+         *            offset to correct
+         * @param outcome
+         *            one of the RETURN_ codes of NtpSyncService
+         * @param slewed
+         *            true if the offset has been applied gradually, false if stepped
+         * @param duration
+         *            time it took to apply the offset
+         */
+        public Sample(long time, long offset, int outcome, boolean slewed, long duration) {
+            this(time, null, offset, 0, 0, 0, 0, 0, outcome, false,
+                    outcome == NtpSyncService.RETURN_OKAY, 0, true, slewed, duration);
+        }
+
+        /**
+         * @return local time of the sync, before applying the offset
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return address of the server, null if the query failed
+         */
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public double getDelay() {
+            return mDelay;
+        }
+
+        public double getJitter() {
+            return mJitter;
+        }
+
+        public int getStratum() {
+            return mStratum;
+        }
+
+        public double getDispersion() {
+            return mDispersion;
+        }
+
+        public double getRootDistance() {
+            return mRootDistance;
+        }
+
+        public int getOutcome() {
+            return mOutcome;
+        }
+
+        /**
+         * @return true if an offset has been measured, false if the query failed
+         */
+        public boolean isMeasured() {
+            return mMeasured;
+        }
+
+        public boolean isApplied() {
+            return mApplied;
+        }
+
+        public long getCorrection() {
+            return mCorrection;
+        }
+
+        /**
+         * @return true if this is a correction of the clock, false if a sync
+         */
+        public boolean isCorrection() {
+            return mIsCorrection;
+        }
+
+        /**
+         * @return true if the correction has been applied gradually
+         */
+        public boolean isSlewed() {
+            return mSlewed;
+        }
+
+        /**
+         * @return time it took to apply the correction
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+    }
+
+    /**
+     * Appends a sample, the oldest one is overwritten if there are more than CAPACITY
+     * 
+     * @param context
+     * @param sample
+     */
+    public static synchronized void add(Context context, Sample sample) {
+        MappedByteBuffer history = FILE.getBuffer(context);
+        if (history == null) {
+            return;
+        }
+
+        long count = history.getLong(MappedRingBuffer.COUNT_INDEX);
+        int index = FILE.getRecordIndex(count);
+
+        history.putLong(index + TIME_INDEX, sample.mTime);
+        history.putLong(index + OFFSET_INDEX, sample.mOffset);
+        history.putFloat(index + DELAY_INDEX, (float) sample.mDelay);
+        history.putFloat(index + JITTER_INDEX, (float) sample.mJitter);
+        history.putFloat(index + DISPERSION_INDEX, (float) sample.mDispersion);
+        history.putFloat(index + ROOT_DISTANCE_INDEX, (float) sample.mRootDistance);
+        history.putInt(index + CORRECTION_INDEX, (int) sample.mCorrection);
+        history.put(index + OUTCOME_INDEX, (byte) sample.mOutcome);
+        history.put(index + STRATUM_INDEX, (byte) sample.mStratum);
+        history.put(index + FLAGS_INDEX, (byte) ((sample.mMeasured ? FLAG_MEASURED : 0)
+                | (sample.mApplied ? FLAG_APPLIED : 0)
+                | (sample.mIsCorrection ? FLAG_CORRECTION : 0)
+                | (sample.mSlewed ? FLAG_SLEWED : 0)));
+
+        byte[] address = null;
+        if (sample.mAddress != null) {
+            try {
+                // address is a literal, no DNS lookup
+                address = InetAddress.getByName(sample.mAddress).getAddress();
+            } catch (UnknownHostException e) {
+                Log.e(Constants.TAG, "Invalid address " + sample.mAddress, e);
+            }
+        }
+        history.put(index + ADDRESS_LENGTH_INDEX, (byte) (address == null ? 0 : address.length));
+        for (int i = 0; i < 16; i++) {
+            history.put(index + ADDRESS_INDEX + i,
+                    (address != null && i < address.length) ? address[i] : 0);
+        }
+        history.putInt(index + DURATION_INDEX, (int) sample.mDuration);
+
+        // record is complete, publish it
+        history.putLong(MappedRingBuffer.COUNT_INDEX, count + 1);
+    }
+
+    /**
+     * Returns the most recent samples with a measured offset
+     * 
+     * @param context
+     * @return up to MAX_SAMPLES samples, oldest first
+     */
+    public static synchronized List<Sample> getSamples(Context context) {
+        ArrayList<Sample> samples = new ArrayList<Sample>();
+        MappedByteBuffer history = FILE.getBuffer(context);
+        if (history == null) {
+            return samples;
+        }
+
+        long count = history.getLong(MappedRingBuffer.COUNT_INDEX);
+        long first = Math.max(0, count - CAPACITY);
+        for (long i = count - 1; i >= first && samples.size() < MAX_SAMPLES; i--) {
+            int index = FILE.getRecordIndex(i);
+            if ((history.get(index + FLAGS_INDEX) & FLAG_MEASURED) != 0) {
+                samples.add(0, readSample(history, index));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Returns all samples, also of failed queries, whose time is within the given range
+     * 
+     * @param context
+     * @param from
+     *            inclusive
+     * @param to
+     *            exclusive
+     * @return samples in the order they have been added
+     */
+    public static synchronized List<Sample> getSamples(Context context, long from, long to) {
+        ArrayList<Sample> samples = new ArrayList<Sample>();
+        MappedByteBuffer history = FILE.getBuffer(context);
+        if (history == null) {
+            return samples;
+        }
+
+        long count = history.getLong(MappedRingBuffer.COUNT_INDEX);
+        for (long i = Math.max(0, count - CAPACITY); i < count; i++) {
+            int index = FILE.getRecordIndex(i);
+            long time = history.getLong(index + TIME_INDEX);
+            if (time >= from && time < to) {
+                samples.add(readSample(history, index));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the samples within the given range as parallel arrays, for the remote API
+     * 
+     * @param context
+     * @param from
+     *            inclusive
+     * @param to
+     *            exclusive
+     * @return bundle with an array for each of the HISTORY_ keys, in the order the samples have
+     *         been added
+     */
+    public static Bundle getHistory(Context context, long from, long to) {
+        List<Sample> samples = getSamples(context, from, to);
+        int size = samples.size();
+        long[] time = new long[size];
+        String[] server = new String[size];
+        long[] offset = new long[size];
+        double[] delay = new double[size];
+        int[] stratum = new int[size];
+        int[] outcome = new int[size];
+        boolean[] applied = new boolean[size];
+        boolean[] correction = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Sample sample = samples.get(i);
+            time[i] = sample.getTime();
+            server[i] = sample.getAddress();
+            offset[i] = sample.getOffset();
+            delay[i] = sample.getDelay();
+            stratum[i] = sample.getStratum();
+            outcome[i] = sample.getOutcome();
+            applied[i] = sample.isApplied();
+            correction[i] = sample.isCorrection();
+        }
+
+        Bundle history = new Bundle();
+        history.putLongArray(HISTORY_TIME, time);
+        history.putStringArray(HISTORY_SERVER, server);
+        history.putLongArray(HISTORY_OFFSET, offset);
+        history.putDoubleArray(HISTORY_DELAY, delay);
+        history.putIntArray(HISTORY_STRATUM, stratum);
+        history.putIntArray(HISTORY_OUTCOME, outcome);
+        history.putBooleanArray(HISTORY_APPLIED, applied);
+        history.putBooleanArray(HISTORY_CORRECTION, correction);
+        return history;
+    }
+
+    private static Sample readSample(MappedByteBuffer history, int index) {
+        String address = null;
+        int addressLength = history.get(index + ADDRESS_LENGTH_INDEX);
+        if (addressLength > 0) {
+            byte[] bytes = new byte[addressLength];
+            for (int i = 0; i < addressLength; i++) {
+                bytes[i] = history.get(index + ADDRESS_INDEX + i);
+            }
+            try {
+                address = InetAddress.getByAddress(bytes).getHostAddress();
+            } catch (UnknownHostException e) {
+                // not possible, length is 4 or 16
+            }
+        }
+
+        int flags = history.get(index + FLAGS_INDEX);
+        return new Sample(history.getLong(index + TIME_INDEX), address,
+                history.getLong(index + OFFSET_INDEX), history.getFloat(index + DELAY_INDEX),
+                history.getFloat(index + JITTER_INDEX), history.get(index + STRATUM_INDEX) & 0xff,
+                history.getFloat(index + DISPERSION_INDEX),
+                history.getFloat(index + ROOT_DISTANCE_INDEX), history.get(index
+                        + OUTCOME_INDEX), (flags & FLAG_MEASURED) != 0,
+                (flags & FLAG_APPLIED) != 0, history.getInt(index + CORRECTION_INDEX),
+                (flags & FLAG_CORRECTION) != 0, (flags & FLAG_SLEWED) != 0, history.getInt(index
+                        + DURATION_INDEX));
+    }
+}
@@ -22,19 +22,12 @@ package org.ntpsync.util;
 
 import org.ntpsync.R;
 import org.ntpsync.service.NtpSyncService;
-import org.sufficientlysecure.rootcommands.Shell;
-import org.sufficientlysecure.rootcommands.Toolbox;
-import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.TimeoutException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 
@@ -68,35 +61,66 @@ public class Utils {
         alert.show();
     }
 
+    // slewed offsets are applied in steps of at most SLEW_STEP every SLEW_INTERVAL, so the clock
+    // runs at most 5% slower or faster. Each step is still a jump, for negative offsets the
+    // clock goes back by SLEW_STEP every time.
+    public static final long SLEW_STEP = 5;
+    public static final long SLEW_INTERVAL = 100;
+
+    // /dev/alarm stays writable and a root shell is held while slewing, so the slew threshold
+    // is capped such that a slew never takes longer than MAX_SLEW_DURATION
+    public static final long MAX_SLEW_DURATION = 5000;
+    public static final long MAX_SLEW_THRESHOLD = MAX_SLEW_DURATION / SLEW_INTERVAL * SLEW_STEP;
+
+    /**
+     * Corrects the time by offset. If enabled in the preferences, offsets below the configured
+     * threshold are slewed, larger ones are stepped. The correction is recorded in the
+     * SyncHistory. The clock is corrected using the ClockSetter selected for this device.
+     * 
+     * @param context
+     * @param offset
+     * @return one of the RETURN_ codes of NtpSyncService
+     */
+    public static int setTime(Context context, long offset) {
+        return setTime(context, offset, null);
+    }
+
     /**
-     * Sets time in Android using RootCommands library
+     * Like setTime(Context, long), additionally accounts the time it took to cost. The waiting
+     * between the steps of a slew is accounted as slew time, the rest as root shell time.
      * 
+     * @param context
      * @param offset
-     * @return true if it succeeded
+     * @param cost
+     *            cost of the current sync or null
+     * @return one of the RETURN_ codes of NtpSyncService
      */
-    public static int setTime(long offset) {
-        try {
-            Shell rootShell = Shell.startRootShell();
-            Toolbox tb = new Toolbox(rootShell);
-
-            tb.adjustSystemClock(offset);
-
-            rootShell.close();
-
-            Log.d(Constants.TAG, "Date was set using RootCommands library!");
-
-            // it works, thus return true
-            return NtpSyncService.RETURN_OKAY;
-        } catch (RootAccessDeniedException e) {
-            Log.e(Constants.TAG, "Android is not rooted or root access was denied!", e);
-            return NtpSyncService.RETURN_NO_ROOT;
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "IOException!", e);
-            return NtpSyncService.RETURN_GENERIC_ERROR;
-        } catch (TimeoutException e) {
-            Log.e(Constants.TAG, "Timeout of root command!", e);
-            return NtpSyncService.RETURN_GENERIC_ERROR;
+    public static int setTime(Context context, long offset, SyncCost cost) {
+        boolean slew = PreferenceHelper.getSlewClock(context)
+                && Math.abs(offset) < PreferenceHelper.getSlewThreshold(context);
+
+        long time = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        long startNanos = System.nanoTime();
+        int returnMessage = ClockSetters.adjust(context, offset, slew, SLEW_STEP,
+                SLEW_INTERVAL);
+        long nanos = System.nanoTime() - startNanos;
+        long duration = SystemClock.elapsedRealtime() - start;
+
+        if (cost != null) {
+            long slewNanos = 0;
+            if (slew && returnMessage == NtpSyncService.RETURN_OKAY) {
+                // the steps are SLEW_INTERVAL apart, only the time in between is spent waiting
+                long steps = (Math.abs(offset) + SLEW_STEP - 1) / SLEW_STEP;
+                slewNanos = Math.min(nanos, Math.max(0, steps - 1) * SLEW_INTERVAL * 1000000);
+            }
+            cost.addSlewTime(slewNanos);
+            cost.addRootShellTime(nanos - slewNanos);
         }
+
+        SyncHistory.add(context, new SyncHistory.Sample(time, offset, returnMessage, slew,
+                duration));
+        return returnMessage;
     }
 
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.ntpsync.util;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+
+/**
+ * Keeps the CPU awake while at least one lease is held. All leases share one wake lock, which is
+ * acquired by the first lease and released by the last one.
+ * <p>
+ * Every lease has a timeout, the wake lock is released after the latest timeout of all leases
+ * even if they are not released, so a lost lease cannot drain the battery. Leases outstanding at
+ * that point are dropped, releasing them later has no effect on newer leases. The counting is done
+ * here and the wake lock itself is not reference counted, because Android's own reference
+ * counting does not work together with timeouts.
+ */
+public class WakeLockManager {
+    private static final String TAG = "NtpSyncWakeLock";
+
+    private static WakeLock wakeLock;
+    private static int leases;
+    // incremented whenever outstanding leases are dropped because the wake lock timed out
+    private static int generation;
+    // SystemClock.elapsedRealtime() based, the wake lock is released at the latest then
+    private static long deadline;
+
+    /**
+     * A held part of the wake lock, release it as soon as the CPU is not needed anymore
+     */
+    public static class Lease {
+        private final long mAcquired = System.nanoTime();
+        private final int mGeneration = generation;
+        private long mReleased;
+
+        private Lease() {
+        }
+
+        /**
+         * Releases this lease, the wake lock is released if it was the last one. Can be called
+         * more than once.
+         * 
+         * @return true if the lease was released by this call
+         */
+        public boolean release() {
+            synchronized (WakeLockManager.class) {
+                if (mReleased != 0) {
+                    return false;
+                }
+                mReleased = System.nanoTime();
+
+                // a lease dropped by expireLeases() is not counted anymore
+                if (mGeneration == generation) {
+                    leases--;
+                    if (leases == 0 && wakeLock.isHeld()) {
+                        wakeLock.release();
+                    }
+                }
+                return true;
+            }
+        }
+
+        /**
+         * @return nanoseconds the lease has been held, until now if not released yet
+         */
+        public long getHeldTime() {
+            synchronized (WakeLockManager.class) {
+                return ((mReleased != 0) ? mReleased : System.nanoTime()) - mAcquired;
+            }
+        }
+    }
+
+    /**
+     * Acquires a lease
+     * 
+     * @param context
+     * @param timeout
+     *            milliseconds after which the wake lock is released even if the lease is not
+     * @return lease to release
+     */
+    public static synchronized Lease acquire(Context context, long timeout) {
+        if (wakeLock == null) {
+            wakeLock = ((PowerManager) context.getApplicationContext().getSystemService(
+                    Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            wakeLock.setReferenceCounted(false);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        expireLeases(now);
+        if (leases == 0) {
+            deadline = now;
+        }
+        // acquiring again replaces the timeout of the held wake lock
+        deadline = Math.max(deadline, now + timeout);
+        wakeLock.acquire(deadline - now);
+
+        leases++;
+        return new Lease();
+    }
+
+    /**
+     * @return number of leases not released yet
+     */
+    public static synchronized int getLeaseCount() {
+        expireLeases(SystemClock.elapsedRealtime());
+        return leases;
+    }
+
+    /**
+     * Drops all outstanding leases if the wake lock has been released by its timeout, otherwise
+     * the count would never drop to 0 again and every later lease would keep the CPU awake until
+     * its timeout.
+     */
+    private static void expireLeases(long now) {
+        if (leases > 0 && (now >= deadline || wakeLock == null || !wakeLock.isHeld())) {
+            Log.w(Constants.TAG, leases + " wake lock leases timed out without being released");
+            leases = 0;
+            generation++;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := settime
+LOCAL_SRC_FILES := settime.c
+# Android 5.0 and newer only run position independent executables
+LOCAL_CFLAGS := -Wall -fPIE
+LOCAL_LDFLAGS := -fPIE -pie
+
+include $(BUILD_EXECUTABLE)
@@ -0,0 +1,3 @@
+APP_ABI := all
+# first version supporting position independent executables
+APP_PLATFORM := android-16
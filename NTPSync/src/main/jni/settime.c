@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This file is part of NTPSync.
+ * 
+ * NTPSync is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NTPSync is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NTPSync.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/*
+ * Corrects the system clock in one process, started as root by ClockSetter.Executable. Reading
+ * and setting the clock happen right after each other, no shell or Java code in between.
+ *
+ * settime
+ *     checks that the clock may be set, does not change it
+ * settime <offset>
+ *     steps the clock by offset milliseconds
+ * settime <offset> <max step> <interval>
+ *     slews the clock by offset milliseconds in steps of at most max step every interval
+ *     milliseconds
+ *
+ * Exits with 0 on success, otherwise the error is printed.
+ */
+
+#include <errno.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+#include <time.h>
+#include <unistd.h>
+
+#define NANOS_PER_SECOND 1000000000LL
+#define NANOS_PER_MILLI 1000000LL
+
+static int parse(const char *arg, long long *value) {
+    char *end;
+
+    errno = 0;
+    *value = strtoll(arg, &end, 10);
+    if (errno != 0 || end == arg || *end != '\0') {
+        printf("Invalid number: %s\n", arg);
+        return -1;
+    }
+    return 0;
+}
+
+/*
+ * Steps the clock by offset milliseconds using clock_settime(), falls back to settimeofday()
+ */
+static int adjust(long long offset) {
+    struct timespec now;
+    struct timeval tv;
+    long long nanos;
+
+    if (clock_gettime(CLOCK_REALTIME, &now) == 0) {
+        nanos = now.tv_sec * NANOS_PER_SECOND + now.tv_nsec + offset * NANOS_PER_MILLI;
+        now.tv_sec = (time_t) (nanos / NANOS_PER_SECOND);
+        now.tv_nsec = (long) (nanos % NANOS_PER_SECOND);
+        if (clock_settime(CLOCK_REALTIME, &now) == 0) {
+            return 0;
+        }
+        printf("clock_settime failed: %s\n", strerror(errno));
+    }
+
+    if (gettimeofday(&tv, NULL) != 0) {
+        printf("gettimeofday failed: %s\n", strerror(errno));
+        return -1;
+    }
+    nanos = tv.tv_sec * NANOS_PER_SECOND + tv.tv_usec * 1000LL + offset * NANOS_PER_MILLI;
+    tv.tv_sec = (time_t) (nanos / NANOS_PER_SECOND);
+    tv.tv_usec = (suseconds_t) (nanos % NANOS_PER_SECOND / 1000);
+    if (settimeofday(&tv, NULL) != 0) {
+        printf("settimeofday failed: %s\n", strerror(errno));
+        return -1;
+    }
+    return 0;
+}
+
+static void sleep_millis(long long millis) {
+    struct timespec pause;
+
+    pause.tv_sec = (time_t) (millis / 1000);
+    pause.tv_nsec = (long) (millis % 1000 * NANOS_PER_MILLI);
+    while (nanosleep(&pause, &pause) != 0 && errno == EINTR) {
+    }
+}
+
+int main(int argc, char *argv[]) {
+    long long offset, max_step, interval, remaining, step;
+
+    if (argc == 1) {
+        // setting the clock needs CAP_SYS_TIME, which root has
+        if (geteuid() != 0) {
+            printf("Not running as root\n");
+            return 1;
+        }
+        return 0;
+    }
+
+    if (argc == 2) {
+        if (parse(argv[1], &offset) != 0) {
+            return 2;
+        }
+        return (adjust(offset) == 0) ? 0 : 1;
+    }
+
+    if (argc != 4 || parse(argv[1], &offset) != 0 || parse(argv[2], &max_step) != 0
+            || parse(argv[3], &interval) != 0 || max_step <= 0 || interval < 0) {
+        printf("Usage: %s [<offset> [<max step> <interval>]]\n", argv[0]);
+        return 2;
+    }
+
+    remaining = offset;
+    while (remaining != 0) {
+        step = remaining;
+        if (step > max_step) {
+            step = max_step;
+        } else if (step < -max_step) {
+            step = -max_step;
+        }
+
+        if (adjust(step) != 0) {
+            printf("%lld of %lld ms have been applied\n", offset - remaining, offset);
+            return 1;
+        }
+        remaining -= step;
+
+        if (remaining != 0) {
+            sleep_millis(interval);
+        }
+    }
+    return 0;
+}
@@ -0,0 +1,187 @@
+package org.apache.commons.net.ntp;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/***
+ * Measures the bytes allocated per query in steady state, for the codec
+ * alone and for complete queries through
+ * {@link NTPUDPClient#getTime(InetAddress, int, NtpPacketCodec)} against a
+ * responder on the loopback interface. Runs on a desktop JVM that supports
+ * com.sun.management.ThreadMXBean, e.g.
+ * <pre>
+ * java -cp build/intermediates/classes/fdroid/debug:build/intermediates/classes/test/fdroid/debug \
+ *     org.apache.commons.net.ntp.NtpPacketCodecBenchmark
+ * </pre>
+ * Only the allocations of the querying thread are counted, not those of the
+ * responder.
+ ***/
+public final class NtpPacketCodecBenchmark
+{
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static Object threadBean;
+    private static Method allocatedBytes;
+
+    public static void main(String[] args) throws Exception
+    {
+        threadBean = ManagementFactory.getThreadMXBean();
+        allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+            "getThreadAllocatedBytes", long.class);
+
+        System.out.println("codec:    " + benchmarkCodec() + " bytes per query");
+        System.out.println("loopback: " + benchmarkLoopback() + " bytes per query");
+    }
+
+    /***
+     * Request, reply and offset/delay computation on one codec, without any
+     * socket.
+     ***/
+    private static double benchmarkCodec() throws Exception
+    {
+        NtpPacketCodec codec = new NtpPacketCodec();
+        long sum = 0;
+        for (int i = 0; i < WARMUP; i++)
+        {
+            sum += codecQuery(codec, i);
+        }
+
+        long start = getAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            sum += codecQuery(codec, i);
+        }
+        long allocated = getAllocatedBytes() - start;
+
+        // use the result, so the loop is not optimized away
+        if (sum == 42)
+        {
+            System.out.println();
+        }
+        return (double) allocated / ITERATIONS;
+    }
+
+    private static long codecQuery(NtpPacketCodec codec, long time)
+    {
+        codec.writeRequest(NtpV3Packet.VERSION_3, time);
+        answer(codec.getBuffer().array(), time + 1);
+        codec.setDestinationTime(time + 2);
+        codec.setReceivedLength(NtpPacketCodec.PACKET_SIZE);
+        if (!codec.isValidReply())
+        {
+            throw new IllegalStateException("reply not accepted");
+        }
+        return codec.getOffset() + codec.getDelay();
+    }
+
+    /***
+     * Complete queries with one client and one codec against a local
+     * responder.
+     ***/
+    private static double benchmarkLoopback() throws Exception
+    {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Thread responder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                byte[] data = new byte[NtpPacketCodec.PACKET_SIZE];
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                try
+                {
+                    while (true)
+                    {
+                        packet.setLength(data.length);
+                        server.receive(packet);
+                        answer(data, NtpPacketCodec.toNtpTime(System.currentTimeMillis()));
+                        server.send(packet);
+                    }
+                } catch (Exception e)
+                {
+                    // socket closed
+                }
+            }
+        };
+        responder.setDaemon(true);
+        responder.start();
+
+        NTPUDPClient client = new NTPUDPClient();
+        client.setDefaultTimeout(1000);
+        client.open();
+        NtpPacketCodec codec = new NtpPacketCodec();
+        InetAddress host = server.getLocalAddress();
+        int port = server.getLocalPort();
+        try
+        {
+            for (int i = 0; i < WARMUP; i++)
+            {
+                query(client, host, port, codec);
+            }
+
+            long start = getAllocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++)
+            {
+                query(client, host, port, codec);
+            }
+            return (double) (getAllocatedBytes() - start) / ITERATIONS;
+        } finally
+        {
+            client.close();
+            server.close();
+        }
+    }
+
+    private static void query(NTPUDPClient client, InetAddress host, int port,
+        NtpPacketCodec codec) throws Exception
+    {
+        if (!client.getTime(host, port, codec))
+        {
+            throw new IllegalStateException("reply not accepted");
+        }
+    }
+
+    /***
+     * Turns the request in the array into a server reply.
+     ***/
+    private static void answer(byte[] data, long time)
+    {
+        // originate timestamp is the transmit timestamp of the request
+        System.arraycopy(data, 40, data, 24, 8);
+        data[0] = (byte) (NtpV3Packet.VERSION_3 << 3 | NtpV3Packet.MODE_SERVER);
+        data[1] = 2;
+        for (int i = 0; i < 8; i++)
+        {
+            byte b = (byte) (time >>> (56 - 8 * i));
+            data[32 + i] = b;
+            data[40 + i] = b;
+        }
+    }
+
+    private static long getAllocatedBytes() throws Exception
+    {
+        return ((Long) allocatedBytes.invoke(threadBean,
+            Long.valueOf(Thread.currentThread().getId()))).longValue();
+    }
+}
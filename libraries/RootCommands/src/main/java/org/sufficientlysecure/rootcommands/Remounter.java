@@ -163,11 +163,14 @@ class Remounter {
         final String tempFile = "/data/local/RootToolsMounts";
 
         // copy /proc/mounts to tempfile. Directly reading it does not work on 4.3
-        Shell shell = Shell.startRootShell();
-        Toolbox tb = new Toolbox(shell);
-        tb.copyFile("/proc/mounts", tempFile, false, false);
-        tb.setFilePermissions(tempFile, "777");
-        shell.close();
+        Shell shell = ShellPool.acquireRootShell();
+        try {
+            Toolbox tb = new Toolbox(shell);
+            tb.copyFile("/proc/mounts", tempFile, false, false);
+            tb.setFilePermissions(tempFile, "777");
+        } finally {
+            ShellPool.releaseRootShell(shell);
+        }
 
         LineNumberReader lnr = null;
         lnr = new LineNumberReader(new FileReader(tempFile));
@@ -33,14 +33,15 @@ public class RootCommands {
         boolean rootAccess = false;
 
         try {
-            Shell rootShell = Shell.startRootShell();
-
-            Toolbox tb = new Toolbox(rootShell);
-            if (tb.isRootAccessGiven()) {
-                rootAccess = true;
+            Shell rootShell = ShellPool.acquireRootShell();
+            try {
+                Toolbox tb = new Toolbox(rootShell);
+                if (tb.isRootAccessGiven()) {
+                    rootAccess = true;
+                }
+            } finally {
+                ShellPool.releaseRootShell(rootShell);
             }
-
-            rootShell.close();
         } catch (Exception e) {
             Log.e(TAG, "Problem while checking for root access!", e);
         }
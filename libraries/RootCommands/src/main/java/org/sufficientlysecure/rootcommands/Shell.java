@@ -17,25 +17,54 @@
 
 package org.sufficientlysecure.rootcommands;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandBatch;
+import org.sufficientlysecure.rootcommands.util.LineReader;
 import org.sufficientlysecure.rootcommands.util.Log;
 import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
 import org.sufficientlysecure.rootcommands.util.Utils;
 
 public class Shell implements Closeable {
     private final Process shellProcess;
-    private final BufferedReader stdOutErr;
+    private final LineReader stdOutErr;
     private final DataOutputStream outputStream;
-    private final List<Command> commands = new ArrayList<Command>();
-    private boolean close = false;
+    private volatile boolean close = false;
+
+    /*
+     * Commands pass two lock-free queues: added by any thread to pending, taken by the input thread
+     * that writes them and moves them to running, taken from running by the output thread when
+     * finished. Finished commands are not referenced anymore, so a long-lived shell does not grow.
+     * Each unit in pending is a single command or all commands of a batch.
+     */
+    private final ConcurrentLinkedQueue<Command[]> pending = new ConcurrentLinkedQueue<Command[]>();
+    private final ConcurrentLinkedQueue<Command> running = new ConcurrentLinkedQueue<Command>();
+    // one permit per unit in pending, wakes up the input thread
+    private final Semaphore pendingUnits = new Semaphore(0);
+    // one permit per command that can still be queued, acquired on add, released when finished
+    private final Semaphore freeSlots;
+    private final int capacity;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong finishedCommands = new AtomicLong();
+
+    /**
+     * Maximum number of commands queued or running on one shell. If the shell falls behind, add()
+     * blocks until commands finished, at most for RootCommands.DEFAULT_TIMEOUT.
+     */
+    public static int MAX_QUEUED_COMMANDS = 64;
 
     private static final String LD_LIBRARY_PATH = System.getenv("LD_LIBRARY_PATH");
     private static final String token = "F*D^W@#FGF";
@@ -131,24 +160,27 @@ public class Shell implements Closeable {
             throws IOException, RootAccessDeniedException {
         Log.d(RootCommands.TAG, "Starting shell: " + shell);
 
+        capacity = MAX_QUEUED_COMMANDS;
+        freeSlots = new Semaphore(capacity);
+
         // start shell process!
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
 
         // StdErr is redirected to StdOut, defined in Command.getCommand()
-        stdOutErr = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
+        stdOutErr = new LineReader(new InputStreamReader(shellProcess.getInputStream()));
         outputStream = new DataOutputStream(shellProcess.getOutputStream());
 
         outputStream.write("echo Started\n".getBytes());
         outputStream.flush();
 
         while (true) {
-            String line = stdOutErr.readLine();
+            CharSequence line = stdOutErr.readLine();
             if (line == null)
                 throw new RootAccessDeniedException(
                         "stdout line is null! Access was denied or this executeable is not a shell!");
-            if ("".equals(line))
+            if (line.length() == 0)
                 continue;
-            if ("Started".equals(line))
+            if ("Started".contentEquals(line))
                 break;
 
             destroyShellProcess();
@@ -203,7 +235,8 @@ public class Shell implements Closeable {
 
     /**
      * Writes queued commands one after another into the opened shell. After an execution a token is
-     * written to seperate command output on read
+     * written to seperate command output on read. All commands queued at the same time, e.g. of a
+     * CommandBatch, are written at once with a single flush.
      * 
      * @throws IOException
      */
@@ -211,24 +244,34 @@ public class Shell implements Closeable {
         try {
             int commandIndex = 0;
             while (true) {
-                DataOutputStream out;
-                synchronized (commands) {
-                    while (!close && commandIndex >= commands.size()) {
-                        commands.wait();
+                pendingUnits.acquire();
+                // the loop below takes all units added until now
+                pendingUnits.drainPermits();
+
+                ByteArrayOutputStream batch = null;
+                Command[] unit;
+                while ((unit = pending.poll()) != null) {
+                    if (batch == null) {
+                        batch = new ByteArrayOutputStream();
+                    }
+                    for (Command next : unit) {
+                        // make it known to the output thread before its output can arrive
+                        running.offer(next);
+                        next.writeCommand(batch);
+                        String line = "\necho " + token + " " + commandIndex + " $?\n";
+                        batch.write(line.getBytes());
+                        commandIndex++;
                     }
-                    out = this.outputStream;
                 }
-                if (commandIndex < commands.size()) {
-                    Command next = commands.get(commandIndex);
-                    next.writeCommand(out);
-                    String line = "\necho " + token + " " + commandIndex + " $?\n";
-                    out.write(line.getBytes());
-                    out.flush();
-                    commandIndex++;
-                } else if (close) {
-                    out.write("\nexit 0\n".getBytes());
-                    out.flush();
-                    out.close();
+                if (batch != null) {
+                    batch.writeTo(outputStream);
+                    outputStream.flush();
+                }
+
+                if (close && pending.isEmpty()) {
+                    outputStream.write("\nexit 0\n".getBytes());
+                    outputStream.flush();
+                    outputStream.close();
                     Log.d(RootCommands.TAG, "Closing shell");
                     return;
                 }
@@ -239,7 +282,8 @@ public class Shell implements Closeable {
     }
 
     /**
-     * Reads output line by line, seperated by token written after every command
+     * Reads output line by line, seperated by token written after every command. Lines are views on
+     * the read buffer and token lines are parsed in place, no String is created per line.
      * 
      * @throws IOException
      * @throws InterruptedException
@@ -250,7 +294,7 @@ public class Shell implements Closeable {
         // index of current command
         int commandIndex = 0;
         while (true) {
-            String lineStdOut = stdOutErr.readLine();
+            CharSequence lineStdOut = stdOutErr.readLine();
 
             // terminate on EOF
             if (lineStdOut == null)
@@ -258,27 +302,36 @@ public class Shell implements Closeable {
 
             if (command == null) {
 
+                // get current command
+                command = running.peek();
+
                 // break on close after last command
-                if (commandIndex >= commands.size()) {
-                    if (close)
+                if (command == null) {
+                    if (close && pending.isEmpty())
                         break;
                     continue;
                 }
-
-                // get current command
-                command = commands.get(commandIndex);
             }
 
-            int pos = lineStdOut.indexOf(token);
+            int pos = LineReader.indexOf(lineStdOut, token, 0);
             if (pos > 0) {
-                command.processOutput(lineStdOut.substring(0, pos));
+                command.processOutput(lineStdOut.subSequence(0, pos));
             }
             if (pos >= 0) {
-                lineStdOut = lineStdOut.substring(pos);
-                String fields[] = lineStdOut.split(" ");
-                int id = Integer.parseInt(fields[1]);
+                lineStdOut = lineStdOut.subSequence(pos, lineStdOut.length());
+
+                // token id exitCode
+                int idStart = token.length() + 1;
+                int idEnd = idStart;
+                while (idEnd < lineStdOut.length() && lineStdOut.charAt(idEnd) != ' ') {
+                    idEnd++;
+                }
+                int id = LineReader.parseInt(lineStdOut, idStart, idEnd);
                 if (id == commandIndex) {
-                    command.setExitCode(Integer.parseInt(fields[2]));
+                    int exitCode = LineReader.parseInt(lineStdOut, idEnd + 1,
+                            lineStdOut.length());
+                    command.setExitCode(exitCode);
+                    finished();
 
                     // go to next command
                     commandIndex++;
@@ -292,14 +345,26 @@ public class Shell implements Closeable {
         shellProcess.waitFor();
         destroyShellProcess();
 
-        while (commandIndex < commands.size()) {
-            if (command == null) {
-                command = commands.get(commandIndex);
-            }
+        while ((command = running.peek()) != null) {
             command.terminated("Unexpected Termination!");
-            commandIndex++;
-            command = null;
+            finished();
         }
+        Command[] unit;
+        while ((unit = pending.poll()) != null) {
+            for (Command next : unit) {
+                next.terminated("Unexpected Termination!");
+                freeSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the current command, called by the output thread
+     */
+    private void finished() {
+        running.poll();
+        freeSlots.release();
+        finishedCommands.incrementAndGet();
     }
 
     /**
@@ -310,16 +375,52 @@ public class Shell implements Closeable {
      * @throws IOException
      */
     public Command add(Command command) throws IOException {
+        enqueue(new Command[] { command });
+
+        return command;
+    }
+
+    /**
+     * Add all commands of a batch to shell queue, they are written to the shell at once
+     * 
+     * @param batch
+     * @return
+     * @throws IOException
+     */
+    public CommandBatch add(CommandBatch batch) throws IOException {
+        enqueue(batch.getCommands());
+
+        return batch;
+    }
+
+    private void enqueue(Command[] unit) throws IOException {
+        if (unit.length > capacity)
+            throw new IllegalArgumentException("More than " + capacity + " commands at once");
         if (close)
             throw new IOException("Unable to add commands to a closed shell");
-        synchronized (commands) {
-            commands.add(command);
+
+        // backpressure: wait for running commands to finish if the queue is full
+        try {
+            if (!freeSlots.tryAcquire(unit.length, RootCommands.DEFAULT_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                throw new IOException("Shell is not keeping up, " + getQueueDepth()
+                        + " commands queued");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for shell queue");
+        }
+
+        for (Command command : unit) {
             // set shell on the command object, to know where the command is running on
-            command.addedToShell(this, (commands.size() - 1));
-            commands.notifyAll();
+            command.addedToShell(this, nextId.getAndIncrement());
         }
+        pending.offer(unit);
+        pendingUnits.release();
 
-        return command;
+        int depth = getQueueDepth();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+        }
     }
 
     /**
@@ -328,9 +429,27 @@ public class Shell implements Closeable {
      * @throws IOException
      */
     public void close() throws IOException {
-        synchronized (commands) {
-            this.close = true;
-            commands.notifyAll();
+        this.close = true;
+        // wake up input thread
+        pendingUnits.release();
+    }
+
+    /**
+     * Checks if the shell has been closed or its process died
+     * 
+     * @return true if no more commands can be executed on this shell
+     */
+    public boolean isClosed() {
+        if (close) {
+            return true;
+        }
+
+        try {
+            // throws if the process is still running, see destroyShellProcess()
+            shellProcess.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
         }
     }
 
@@ -338,9 +457,56 @@ public class Shell implements Closeable {
      * Returns number of queued commands
      * 
      * @return
+     * @see #getQueueDepth()
      */
     public int getCommandsSize() {
-        return commands.size();
+        return getQueueDepth();
+    }
+
+    /**
+     * Returns number of commands added but not finished yet, whether they have already been written
+     * to the shell or not
+     * 
+     * @return
+     */
+    public int getQueueDepth() {
+        return capacity - freeSlots.availablePermits();
+    }
+
+    /**
+     * Returns number of commands written to the shell, but not finished yet
+     * 
+     * @return
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Returns highest queue depth since the shell has been started
+     * 
+     * @return
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns number of commands finished since the shell has been started
+     * 
+     * @return
+     */
+    public long getFinishedCount() {
+        return finishedCommands.get();
+    }
+
+    /**
+     * Returns maximum number of queued commands, see MAX_QUEUED_COMMANDS
+     * 
+     * @return
+     */
+    public int getCapacity() {
+        return capacity;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+import org.sufficientlysecure.rootcommands.util.Log;
+import org.sufficientlysecure.rootcommands.util.RootAccessDeniedException;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps one root shell open and shares it, so that su is not started again for every operation.
+ * 
+ * The shell is checked before it is handed out and restarted if it died, e.g. after a command
+ * timed out. It is closed after it has not been used for IDLE_TIMEOUT.
+ * 
+ * Usage: acquire the shell, execute commands (e.g. using Toolbox) and release it afterwards.
+ * Do not close the acquired shell yourself.
+ */
+public class ShellPool {
+    public static long IDLE_TIMEOUT = 60 * 1000;
+
+    // an idle shell is pinged before handing it out
+    public static long HEALTH_CHECK_INTERVAL = 30 * 1000;
+    public static int HEALTH_CHECK_TIMEOUT = 2000;
+
+    private static Shell rootShell;
+    private static int users = 0;
+    private static long lastUsed;
+
+    private static Timer timer;
+    private static TimerTask evictionTask;
+
+    /**
+     * Returns the shared root shell, started if not running
+     * 
+     * @return root shell
+     * @throws IOException
+     * @throws RootAccessDeniedException
+     */
+    public static synchronized Shell acquireRootShell() throws IOException,
+            RootAccessDeniedException {
+        cancelEviction();
+
+        if (rootShell != null && !isHealthy(rootShell)) {
+            Log.d(RootCommands.TAG, "Pooled root shell died, restarting it!");
+            closeQuietly(rootShell);
+            rootShell = null;
+            // users of the old shell will fail anyway
+            users = 0;
+        }
+
+        if (rootShell == null) {
+            rootShell = Shell.startRootShell();
+        }
+
+        users++;
+        lastUsed = SystemClock.elapsedRealtime();
+        return rootShell;
+    }
+
+    /**
+     * Gives back a shell acquired before, the shell is closed after IDLE_TIMEOUT if it is not
+     * used again
+     * 
+     * @param shell
+     */
+    public static synchronized void releaseRootShell(Shell shell) {
+        if (shell != rootShell) {
+            // has been restarted or closed in the meantime
+            return;
+        }
+
+        users--;
+        lastUsed = SystemClock.elapsedRealtime();
+        if (users <= 0) {
+            users = 0;
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * Closes the shared root shell, even if it is still in use
+     */
+    public static synchronized void closeRootShell() {
+        cancelEviction();
+        if (rootShell != null) {
+            closeQuietly(rootShell);
+            rootShell = null;
+            users = 0;
+        }
+    }
+
+    private static boolean isHealthy(Shell shell) {
+        if (shell.isClosed()) {
+            return false;
+        }
+
+        // recently used shells are fine
+        if (users > 0
+                || SystemClock.elapsedRealtime() - lastUsed < HEALTH_CHECK_INTERVAL) {
+            return true;
+        }
+
+        SimpleCommand ping = new SimpleCommand(HEALTH_CHECK_TIMEOUT, "echo alive");
+        try {
+            shell.add(ping).waitForFinish();
+            return ping.getExitCode() == 0;
+        } catch (TimeoutException e) {
+            // timeout closed the shell
+            return false;
+        } catch (Exception e) {
+            Log.e(RootCommands.TAG, "Health check of pooled root shell failed!", e);
+            return false;
+        }
+    }
+
+    private static void scheduleEviction() {
+        if (timer == null) {
+            timer = new Timer("ShellPool", true);
+        }
+
+        evictionTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (ShellPool.class) {
+                    // only if not acquired again in the meantime
+                    if (evictionTask == this && users == 0 && rootShell != null) {
+                        Log.d(RootCommands.TAG, "Closing idle pooled root shell");
+                        closeQuietly(rootShell);
+                        rootShell = null;
+                        evictionTask = null;
+                    }
+                }
+            }
+        };
+        timer.schedule(evictionTask, IDLE_TIMEOUT);
+    }
+
+    private static void cancelEviction() {
+        if (evictionTask != null) {
+            evictionTask.cancel();
+            evictionTask = null;
+        }
+    }
+
+    private static void closeQuietly(Shell shell) {
+        try {
+            shell.close();
+        } catch (IOException e) {
+            Log.e(RootCommands.TAG, "Error closing pooled root shell!", e);
+        }
+    }
+}
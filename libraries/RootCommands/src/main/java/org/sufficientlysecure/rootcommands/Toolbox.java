@@ -27,8 +27,10 @@ import java.util.regex.Pattern;
 
 import org.sufficientlysecure.rootcommands.command.ExecutableCommand;
 import org.sufficientlysecure.rootcommands.command.Command;
+import org.sufficientlysecure.rootcommands.command.CommandBatch;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.LineReader;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 import android.os.StatFs;
@@ -121,8 +123,13 @@ public class Toolbox {
 
         @Override
         public void output(int id, String line) {
-            // general check if line contains processName
-            if (line.contains(processName)) {
+            output(id, (CharSequence) line);
+        }
+
+        @Override
+        public void output(int id, CharSequence line) {
+            // general check if line contains processName, regex works on the view
+            if (LineReader.contains(line, processName)) {
                 Matcher psMatcher = psPattern.matcher(line);
 
                 // try to match line exactly
@@ -335,8 +342,13 @@ public class Toolbox {
 
         @Override
         public void output(int id, String line) {
-            // general check if line contains file
-            if (line.contains(fileName)) {
+            output(id, (CharSequence) line);
+        }
+
+        @Override
+        public void output(int id, CharSequence line) {
+            // general check if line contains file, regex works on the view
+            if (LineReader.contains(line, fileName)) {
 
                 // try to match line exactly
                 try {
@@ -595,7 +607,12 @@ public class Toolbox {
 
         @Override
         public void output(int id, String line) {
-            if (line.trim().equals(file)) {
+            output(id, (CharSequence) line);
+        }
+
+        @Override
+        public void output(int id, CharSequence line) {
+            if (LineReader.equalsTrimmed(line, file)) {
                 fileExists = true;
             }
         }
@@ -645,16 +662,29 @@ public class Toolbox {
      */
     public void withPermission(String file, String permission, WithPermissions withPermissions)
             throws BrokenBusyboxException, TimeoutException, IOException {
-        String oldPermissions = getFilePermissions(file);
+        Log.d(RootCommands.TAG, "Set permissions of " + file + " to " + permission);
 
+        // check file, remember old permissions and set new ones in one round trip to the shell
+        FileExistsCommand fileExistsCommand = new FileExistsCommand(file);
+        LsCommand lsCommand = new LsCommand(file);
         // set permissions (If set to 666, then Dalvik VM can also write to that file!)
-        setFilePermissions(file, permission);
+        SimpleCommand chmodCommand = new SimpleCommand("chmod " + permission + " " + file);
+        shell.add(new CommandBatch(fileExistsCommand, lsCommand, chmodCommand)).waitForFinish();
 
-        // execute user defined code
-        withPermissions.whileHavingPermissions();
+        String oldPermissions = null;
+        if (fileExistsCommand.isFileExists()) {
+            oldPermissions = lsCommand.getPermissions();
+        }
 
-        // set back to old permissions
-        setFilePermissions(file, oldPermissions);
+        try {
+            // execute user defined code
+            withPermissions.whileHavingPermissions();
+        } finally {
+            // set back to old permissions
+            if (oldPermissions != null) {
+                setFilePermissions(file, oldPermissions);
+            }
+        }
     }
 
     /**
@@ -710,6 +740,64 @@ public class Toolbox {
         });
     }
 
+    /**
+     * Adjust system clock by offset using /dev/alarm, but gradually in steps of at most maxStep
+     * every interval milliseconds, so the clock runs slower or faster by maxStep / interval
+     * instead of jumping by the whole offset. Each step is still a jump, for negative offsets the
+     * clock goes back by up to maxStep every time.
+     *
+     * /dev/alarm stays writable for the whole slew, which takes offset / maxStep * interval
+     * milliseconds, callers should bound the offset.
+     *
+     * The whole offset is applied, if the thread is interrupted the rest is applied at once.
+     *
+     * @param offset
+     * @param maxStep
+     *            maximum step in milliseconds
+     * @param interval
+     *            milliseconds between two steps
+     * @throws BrokenBusyboxException
+     * @throws TimeoutException
+     * @throws IOException
+     *             also if setting the clock failed, the steps before have been applied
+     */
+    public void slewSystemClock(final long offset, final long maxStep, final long interval)
+            throws BrokenBusyboxException, TimeoutException, IOException {
+        final long[] remaining = { offset };
+        withWritePermissions("/dev/alarm", new WithPermissions() {
+
+            @Override
+            void whileHavingPermissions() {
+                boolean interrupted = false;
+                while (remaining[0] != 0) {
+                    long step = interrupted ? remaining[0] : Math.max(-maxStep,
+                            Math.min(maxStep, remaining[0]));
+                    if (!SystemClock.setCurrentTimeMillis(System.currentTimeMillis() + step)) {
+                        break;
+                    }
+                    remaining[0] -= step;
+
+                    if (remaining[0] != 0) {
+                        try {
+                            Thread.sleep(interval);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        if (remaining[0] != 0) {
+            throw new IOException("Setting system clock failed, " + (offset - remaining[0])
+                    + " of " + offset + " ms have been applied");
+        }
+    }
+
     /**
      * This will take a path, which can contain the file name as well, and attempt to remount the
      * underlying partition.
@@ -24,6 +24,7 @@ import java.util.concurrent.TimeoutException;
 import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.LineReader;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 public abstract class Command {
@@ -75,8 +76,10 @@ public abstract class Command {
         out.write(getCommand().getBytes());
     }
 
-    public void processOutput(String line) {
-        Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+    public void processOutput(CharSequence line) {
+        if (RootCommands.DEBUG) {
+            Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        }
 
         /*
          * Try to detect broken toolbox/busybox binaries (see
@@ -85,7 +88,7 @@ public abstract class Command {
          * It is giving "Value too large for defined data type" on certain file operations (e.g. ls
          * and chown) in certain directories (e.g. /data/data)
          */
-        if (line.contains("Value too large for defined data type")) {
+        if (LineReader.contains(line, "Value too large for defined data type")) {
             Log.e(RootCommands.TAG, "Busybox is broken with high probability due to line: " + line);
             brokenBusyboxDetected = true;
         }
@@ -96,6 +99,18 @@ public abstract class Command {
 
     public abstract void output(int id, String line);
 
+    /**
+     * Called for every line of output. The line is a view on the read buffer of the shell and only
+     * valid during this call. By default it is converted to a String and passed to
+     * output(int, String), override this to parse it without creating a String.
+     * 
+     * @param id
+     * @param line
+     */
+    public void output(int id, CharSequence line) {
+        output(id, line.toString());
+    }
+
     public void processAfterExecution(int exitCode) {
         Log.d(RootCommands.TAG, "ID: " + id + ", ExitCode: " + exitCode);
 
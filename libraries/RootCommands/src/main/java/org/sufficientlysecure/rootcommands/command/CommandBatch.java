@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (c) 2012 Stephen Erickson, Chris Ravenscroft, Adam Shanks, Jeremy Lakeman (RootTools)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.command;
+
+import java.util.concurrent.TimeoutException;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import android.os.SystemClock;
+
+/**
+ * Several commands that are written to the shell at once and waited for together. Instead of one
+ * round trip to the shell per command, all commands and their tokens are sent in a single write
+ * and their output is read in one pass.
+ * 
+ * Usage: shell.add(new CommandBatch(command1, command2)).waitForFinish();
+ */
+public class CommandBatch {
+    final Command commands[];
+
+    public CommandBatch(Command... commands) {
+        if (commands.length == 0) {
+            throw new IllegalArgumentException("A batch needs at least one command");
+        }
+        this.commands = commands;
+    }
+
+    public Command[] getCommands() {
+        return commands;
+    }
+
+    /**
+     * Timeout of the whole batch, the sum of the timeouts of its commands
+     * 
+     * @return timeout in milliseconds
+     */
+    public long getTimeout() {
+        long timeout = 0;
+        for (Command command : commands) {
+            timeout += command.timeout;
+        }
+        return timeout;
+    }
+
+    /**
+     * Waits for all commands to finish and forwards their exitCodes into afterExecution methods.
+     * Commands are executed in order, so only the last one has to be waited for.
+     * 
+     * @throws TimeoutException
+     * @throws BrokenBusyboxException
+     */
+    public void waitForFinish() throws TimeoutException, BrokenBusyboxException {
+        Command last = commands[commands.length - 1];
+
+        // not affected by setting the clock, which is what batches are used for
+        long deadline = SystemClock.elapsedRealtime() + getTimeout();
+        synchronized (last) {
+            while (!last.finished) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    last.finished = true;
+                    last.terminate("Timeout");
+                    throw new TimeoutException("Timeout has occurred.");
+                }
+
+                try {
+                    last.wait(remaining);
+                } catch (InterruptedException e) {
+                    Log.e(RootCommands.TAG, "InterruptedException in waitForFinish()", e);
+                }
+            }
+        }
+
+        // all finished, does not wait anymore
+        for (Command command : commands) {
+            command.waitForFinish();
+        }
+    }
+
+}
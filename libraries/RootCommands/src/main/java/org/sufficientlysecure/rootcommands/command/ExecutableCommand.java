@@ -40,8 +40,20 @@ public abstract class ExecutableCommand extends Command {
      * @param parameters
      */
     public ExecutableCommand(Context context, String executableName, String parameters) {
-        super(getLibDirectory(context) + File.separator + EXECUTABLE_PREFIX + executableName
-                + EXECUTABLE_SUFFIX + " " + parameters);
+        super(getExecutable(context, executableName).getAbsolutePath() + " " + parameters);
+    }
+
+    /**
+     * Get the file an executable is deployed to, e.g. to check if it is included for the
+     * architecture of this device
+     * 
+     * @param context
+     * @param executableName
+     * @return file in lib directory of app
+     */
+    public static File getExecutable(Context context, String executableName) {
+        return new File(getLibDirectory(context), EXECUTABLE_PREFIX + executableName
+                + EXECUTABLE_SUFFIX);
     }
 
     /**
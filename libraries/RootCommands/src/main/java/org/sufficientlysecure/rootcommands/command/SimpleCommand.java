@@ -23,11 +23,21 @@ public class SimpleCommand extends Command {
         super(command);
     }
 
+    public SimpleCommand(int timeout, String... command) {
+        super(timeout, command);
+    }
+
     @Override
     public void output(int id, String line) {
         sb.append(line).append('\n');
     }
 
+    @Override
+    public void output(int id, CharSequence line) {
+        // copy directly from the view
+        sb.append(line).append('\n');
+    }
+
     @Override
     public void afterExecution(int id, int exitCode) {
     }
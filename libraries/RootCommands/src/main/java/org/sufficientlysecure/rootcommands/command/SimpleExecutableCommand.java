@@ -30,6 +30,12 @@ public class SimpleExecutableCommand extends ExecutableCommand {
         sb.append(line).append('\n');
     }
 
+    @Override
+    public void output(int id, CharSequence line) {
+        // copy directly from the view
+        sb.append(line).append('\n');
+    }
+
     @Override
     public void afterExecution(int id, int exitCode) {
     }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines from a Reader without creating a String per line. readLine() returns a view on the
+ * internal buffer, which is only valid until the next call. Use toString() on it to keep a line.
+ */
+public class LineReader {
+    private final Reader reader;
+    private char[] buffer = new char[8192];
+
+    // valid chars are between start and end
+    private int start = 0;
+    private int end = 0;
+    private boolean eof = false;
+    // the last line ended with \r, a following \n belongs to its terminator
+    private boolean skipLF = false;
+
+    private final Line line = new Line();
+
+    /**
+     * View on a part of the buffer
+     */
+    private static class Line implements CharSequence {
+        private char[] chars;
+        private int offset;
+        private int length;
+
+        Line() {
+        }
+
+        Line(char[] chars, int offset, int length) {
+            set(chars, offset, length);
+        }
+
+        void set(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return chars[offset + index];
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end
+                        + ", length " + length);
+            }
+            return new Line(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+
+    public LineReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next line, terminated by \n, \r or \r\n like BufferedReader.readLine()
+     * 
+     * @return line without terminator, only valid until the next call, or null on EOF
+     * @throws IOException
+     */
+    public CharSequence readLine() throws IOException {
+        int searchFrom = start;
+        while (true) {
+            if (skipLF && start < end) {
+                if (buffer[start] == '\n') {
+                    start++;
+                    searchFrom = start;
+                }
+                skipLF = false;
+            }
+
+            for (int i = searchFrom; i < end; i++) {
+                char c = buffer[i];
+                if (c == '\n' || c == '\r') {
+                    line.set(buffer, start, i - start);
+                    start = i + 1;
+                    skipLF = (c == '\r');
+                    return line;
+                }
+            }
+
+            if (eof) {
+                if (start < end) {
+                    // last line without terminator
+                    line.set(buffer, start, end - start);
+                    start = end;
+                    return line;
+                }
+                return null;
+            }
+
+            // make room at the end, the current line starts at the beginning afterwards
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            } else if (end == buffer.length) {
+                char[] newBuffer = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, end);
+                buffer = newBuffer;
+            }
+            searchFrom = end;
+
+            int read = reader.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                eof = true;
+            } else {
+                end += read;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Returns the index of the first occurrence of part in s
+     * 
+     * @param s
+     * @param part
+     * @param fromIndex
+     * @return index or -1 if not found
+     */
+    public static int indexOf(CharSequence s, String part, int fromIndex) {
+        if (part.length() == 0) {
+            return Math.min(Math.max(0, fromIndex), s.length());
+        }
+        if (s instanceof Line) {
+            // scan the buffer directly instead of calling charAt for every char
+            Line line = (Line) s;
+            return indexOf(line.chars, line.offset, line.length, part, fromIndex);
+        }
+        if (s instanceof String) {
+            return ((String) s).indexOf(part, fromIndex);
+        }
+
+        int max = s.length() - part.length();
+        for (int i = Math.max(0, fromIndex); i <= max; i++) {
+            int j = 0;
+            while (j < part.length() && s.charAt(i + j) == part.charAt(j)) {
+                j++;
+            }
+            if (j == part.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(char[] chars, int offset, int length, String part,
+            int fromIndex) {
+        char first = part.charAt(0);
+        int max = offset + length - part.length();
+        for (int i = offset + Math.max(0, fromIndex); i <= max; i++) {
+            if (chars[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < part.length() && chars[i + j] == part.charAt(j)) {
+                j++;
+            }
+            if (j == part.length()) {
+                return i - offset;
+            }
+        }
+        return -1;
+    }
+
+    public static boolean contains(CharSequence s, String part) {
+        return indexOf(s, part, 0) >= 0;
+    }
+
+    /**
+     * Compares s without leading and trailing whitespace to other, like s.trim().equals(other)
+     * 
+     * @param s
+     * @param other
+     * @return true if equal
+     */
+    public static boolean equalsTrimmed(CharSequence s, String other) {
+        int first = 0;
+        int last = s.length();
+        while (first < last && s.charAt(first) <= ' ') {
+            first++;
+        }
+        while (last > first && s.charAt(last - 1) <= ' ') {
+            last--;
+        }
+        if (last - first != other.length()) {
+            return false;
+        }
+        for (int i = first; i < last; i++) {
+            if (s.charAt(i) != other.charAt(i - first)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a non-negative decimal number
+     * 
+     * @param s
+     * @param start
+     * @param end
+     * @return number or -1 if there are no digits, other characters or it overflows
+     */
+    public static int parseInt(CharSequence s, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9' || value > (Integer.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
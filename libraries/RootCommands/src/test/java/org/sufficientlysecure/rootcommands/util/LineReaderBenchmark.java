@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Compares the time and the bytes allocated per pass for parsing shell output the old way,
+ * BufferedReader.readLine with indexOf, substring, split and Integer.parseInt, and with the
+ * LineReader views used by Shell now. The input is ps-like output of 20000 lines with 10 token
+ * lines in between. Runs on a desktop JVM that supports com.sun.management.ThreadMXBean, e.g.
+ * 
+ * <pre>
+ * java -cp build/intermediates/classes/debug:build/intermediates/classes/test/debug \
+ *     org.sufficientlysecure.rootcommands.util.LineReaderBenchmark
+ * </pre>
+ */
+public final class LineReaderBenchmark {
+    private static final String TOKEN = "F*D^W@#FGF";
+    private static final int COMMANDS = 10;
+    private static final int LINES_PER_COMMAND = 2000;
+
+    private static final int WARMUP = 30;
+    private static final int ITERATIONS = 50;
+
+    private static Object threadBean;
+    private static Method allocatedBytes;
+
+    // results are summed up, so the parsing is not optimized away
+    private static long sink;
+
+    public static void main(String[] args) throws Exception {
+        threadBean = ManagementFactory.getThreadMXBean();
+        allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                "getThreadAllocatedBytes", long.class);
+
+        byte[] input = createInput();
+        for (int i = 0; i < WARMUP; i++) {
+            parseBufferedReader(input);
+            parseLineReader(input);
+        }
+
+        long startBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseBufferedReader(input);
+        }
+        long oldTime = System.nanoTime() - startTime;
+        long oldBytes = getAllocatedBytes() - startBytes;
+
+        startBytes = getAllocatedBytes();
+        startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parseLineReader(input);
+        }
+        long newTime = System.nanoTime() - startTime;
+        long newBytes = getAllocatedBytes() - startBytes;
+
+        int lines = COMMANDS * (LINES_PER_COMMAND + 1);
+        System.out.println(lines + " lines per pass, checksum " + sink);
+        print("BufferedReader", oldTime, oldBytes);
+        print("LineReader", newTime, newBytes);
+    }
+
+    private static void print(String name, long nanos, long bytes) {
+        System.out.println(String.format("%-16s %8.2f ms %8d KB per pass", name, nanos / 1e6
+                / ITERATIONS, bytes / 1024 / ITERATIONS));
+    }
+
+    private static byte[] createInput() {
+        StringBuilder sb = new StringBuilder();
+        for (int command = 0; command < COMMANDS; command++) {
+            for (int i = 0; i < LINES_PER_COMMAND; i++) {
+                sb.append("u0_a").append(i).append("    ").append(1000 + i)
+                        .append("   1     123456 12345 ffffffff 00000000 S com.example.process")
+                        .append(i).append('\n');
+            }
+            sb.append(TOKEN).append(' ').append(command).append(" 0\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Parsing as done by Shell and SimpleCommand before LineReader
+     */
+    private static void parseBufferedReader(byte[] input) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(input)));
+        String line;
+        int id = 0;
+        while ((line = reader.readLine()) != null) {
+            int pos = line.indexOf(TOKEN);
+            if (pos >= 0) {
+                String[] fields = line.substring(pos).split(" ");
+                if (Integer.parseInt(fields[1]) == id) {
+                    sink += Integer.parseInt(fields[2]);
+                    id++;
+                    continue;
+                }
+            }
+            if (line.contains("Value too large for defined data type")) {
+                sink++;
+            }
+            sink += line.length();
+        }
+    }
+
+    /**
+     * Parsing as done by Shell and SimpleCommand now
+     */
+    private static void parseLineReader(byte[] input) throws Exception {
+        LineReader reader = new LineReader(new InputStreamReader(new ByteArrayInputStream(input)));
+        CharSequence line;
+        int id = 0;
+        while ((line = reader.readLine()) != null) {
+            int pos = LineReader.indexOf(line, TOKEN, 0);
+            if (pos >= 0) {
+                int idStart = pos + TOKEN.length() + 1;
+                int idEnd = idStart;
+                while (idEnd < line.length() && line.charAt(idEnd) != ' ') {
+                    idEnd++;
+                }
+                if (LineReader.parseInt(line, idStart, idEnd) == id) {
+                    sink += LineReader.parseInt(line, idEnd + 1, line.length());
+                    id++;
+                    continue;
+                }
+            }
+            if (LineReader.contains(line, "Value too large for defined data type")) {
+                sink++;
+            }
+            sink += line.length();
+        }
+    }
+
+    private static long getAllocatedBytes() throws Exception {
+        return ((Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId()))
+                .longValue();
+    }
+}